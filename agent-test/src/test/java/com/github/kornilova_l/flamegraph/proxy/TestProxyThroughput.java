@@ -0,0 +1,64 @@
+package com.github.kornilova_l.flamegraph.proxy;
+
+import com.github.kornilova_l.proxy_test_classes.Counter;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import static com.github.kornilova_l.flamegraph.proxy.TestWithProxy.addProxy;
+import static com.github.kornilova_l.flamegraph.proxy.TestWithProxy.clearOutputFile;
+import static com.github.kornilova_l.flamegraph.proxy.TestWithProxy.loadAgent;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares cost of recording calls of method of class that is loaded by {@link MyClassLoader} (uses Proxy)
+ * with cost of recording calls of the same method of class that is loaded by system classloader.
+ * Each call of {@link Counter#run(long, String, double)} records COUNT events.
+ * Times are only printed: they are measured while agent and logging thread are running,
+ * so comparison of them would make the test flaky on a loaded machine
+ * !!!
+ * Each test must be run separately
+ * because some of them modify classpath
+ */
+public class TestProxyThroughput {
+    private static final int COUNT = 100_000;
+    private static final int WARM_UP_ROUNDS = 5;
+    private static final int ROUNDS = 5;
+
+    private static long measure(Method method, Object instance) throws InvocationTargetException, IllegalAccessException {
+        long start = System.nanoTime();
+        assertEquals(COUNT, method.invoke(instance, (long) COUNT, "", 0d));
+        return System.nanoTime() - start;
+    }
+
+    @Test
+    public void testThroughput() throws Exception {
+        addProxy();
+        loadAgent("throughput_config.txt", "&timing=nanos");
+        clearOutputFile();
+
+        Class<?> directClass = Class.forName(Counter.class.getCanonicalName());
+        Class<?> proxyClass = new MyClassLoader().loadClass(Counter.class.getCanonicalName());
+
+        Method directMethod = directClass.getMethod("run", long.class, String.class, double.class);
+        Object directInstance = directClass.newInstance();
+        Method proxyMethod = proxyClass.getMethod("run", long.class, String.class, double.class);
+        Object proxyInstance = proxyClass.newInstance();
+
+        for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+            measure(directMethod, directInstance);
+            measure(proxyMethod, proxyInstance);
+        }
+        /* rounds are interleaved so both paths run with the same amount of events in queue */
+        long direct = Long.MAX_VALUE;
+        long proxy = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            direct = Math.min(direct, measure(directMethod, directInstance));
+            proxy = Math.min(proxy, measure(proxyMethod, proxyInstance));
+        }
+
+        System.out.println("Direct: " + direct / COUNT + " ns per call, Proxy: " + proxy / COUNT + " ns per call" +
+                " (proxy is " + String.format("%.2f", (double) proxy / direct) + " times slower)");
+    }
+}
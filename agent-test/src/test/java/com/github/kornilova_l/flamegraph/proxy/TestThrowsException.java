@@ -34,7 +34,9 @@ public class TestThrowsException {
 
             assertNewThread(inputStream, "Test worker");
 
-            assertMethodEvent(inputStream, "(JLjava/lang/String;D)I", true);
+            long methodId = assertNewMethod(inputStream, "run", "(JLjava/lang/String;D)I");
+
+            assertMethodEvent(inputStream, methodId, true);
 
             assertEndOfEvents(inputStream);
         } catch (IOException e) {
@@ -31,9 +31,17 @@ public class TestWithProxy {
     private static final Path pathToAgentDir = Paths.get(new File(".").toPath().toAbsolutePath().getParent().getParent().toString(), "agent", "build", "libs").toAbsolutePath();
 
     static void loadAgent() {
+        loadAgent("config.txt", "");
+    }
+
+    /**
+     * @param options agent options that are appended to arguments (for example "&timing=nanos")
+     */
+    static void loadAgent(String configFileName, String options) {
         AgentLoader.loadAgent(Paths.get(pathToAgentDir.toString(), "javaagent.jar").toString(),
                 outputFile.toPath().toString()
-                        + "&" + new File("src/test/resources/config.txt").toPath().toAbsolutePath().toString());
+                        + "&" + new File("src/test/resources/" + configFileName).toPath().toAbsolutePath().toString()
+                        + options);
     }
 
     static void invokeTestMethod(Class testClazz) throws InvocationTargetException {
@@ -52,11 +60,21 @@ public class TestWithProxy {
                 throw e;
             }
         }
+        flushAgent();
+    }
+
+    /**
+     * Waits until everything is written to the file.
+     * Agent is not a dependency of this module, its classes are loaded by system classloader when agent is loaded
+     */
+    static void flushAgent() {
         try {
-            /* wait until everything is written to the file */
-            Thread.sleep(3000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            ClassLoader.getSystemClassLoader()
+                    .loadClass("com.github.kornilova_l.flamegraph.javaagent.agent.Agent")
+                    .getMethod("flush")
+                    .invoke(null);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new RuntimeException("Cannot flush agent", e);
         }
     }
 
@@ -83,11 +101,22 @@ public class TestWithProxy {
         }
     }
 
+    /**
+     * @return id of method
+     */
     @SuppressWarnings("SameParameterValue")
-    static void assertMethodEvent(InputStream inputStream, String desc, boolean hasThrowable) throws IOException {
+    static long assertNewMethod(InputStream inputStream, String methodName, String desc) throws IOException {
+        EventProtos.Event event = EventProtos.Event.parseDelimitedFrom(inputStream);
+        assertEquals(EventProtos.Event.TypeCase.NEWMETHOD, event.getTypeCase());
+        assertEquals(methodName, event.getNewMethod().getMethodName());
+        assertEquals(desc, event.getNewMethod().getDesc());
+        return event.getNewMethod().getId();
+    }
+
+    static void assertMethodEvent(InputStream inputStream, long methodId, boolean hasThrowable) throws IOException {
         EventProtos.Event event = EventProtos.Event.parseDelimitedFrom(inputStream);
         assertEquals(EventProtos.Event.TypeCase.METHODEVENT, event.getTypeCase());
-        assertEquals(desc, event.getMethodEvent().getDesc());
+        assertEquals(methodId, event.getMethodEvent().getMethodId());
 
         EventProtos.Var.Object t = event.getMethodEvent().getThrowable();
         if (hasThrowable) {
@@ -132,7 +161,9 @@ public class TestWithProxy {
 
             assertNewThread(inputStream, "Test worker");
 
-            assertMethodEvent(inputStream, "(JLjava/lang/String;D)I", false);
+            long methodId = assertNewMethod(inputStream, "run", "(JLjava/lang/String;D)I");
+
+            assertMethodEvent(inputStream, methodId, false);
 
             assertEndOfEvents(inputStream);
         } catch (IOException e) {
@@ -0,0 +1,20 @@
+package com.github.kornilova_l.proxy_test_classes;
+
+/**
+ * Calls instrumented method {@link #increment(int)} many times
+ */
+public class Counter implements TestModule {
+
+    @Override
+    public int run(long l, String s, double d) {
+        int res = 0;
+        for (long i = 0; i < l; i++) {
+            res = increment(res);
+        }
+        return res;
+    }
+
+    private int increment(int value) {
+        return value + 1;
+    }
+}
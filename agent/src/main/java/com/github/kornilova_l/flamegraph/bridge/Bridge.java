@@ -0,0 +1,164 @@
+package com.github.kornilova_l.flamegraph.bridge;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Classes of this package are appended to bootstrap class path by javaagent,
+ * so instrumented system classes can call Bridge directly instead of using reflection.
+ * Javaagent is loaded by system classloader and it installs {@link BridgeHandler}
+ * that passes events to LoggerQueue.
+ * <p>
+ * Classes of this package must not depend on other classes of javaagent
+ */
+@SuppressWarnings("unused")
+public class Bridge {
+    private static volatile BridgeHandler handler = null;
+    /**
+     * Returned by {@link #startTask(Object)} if task was not submitted to instrumented executor,
+     * so context of thread is not changed
+     */
+    private static final Object NOT_STARTED = new Object();
+
+    public static void setHandler(BridgeHandler handler) {
+        Bridge.handler = handler;
+    }
+
+    /**
+     * This method is called concurrently
+     */
+    public static void addToQueue(Object retVal,
+                                  long startTime,
+                                  long duration,
+                                  Object[] parameters,
+                                  Thread thread,
+                                  int methodId) {
+        BridgeHandler handler = Bridge.handler;
+        if (handler != null) { // events that happen before agent is initialized are lost
+            handler.addToQueue(retVal, startTime, duration, parameters, thread, methodId);
+        }
+    }
+
+    /**
+     * This method is called concurrently
+     */
+    public static void addToQueue(Throwable throwable,
+                                  boolean saveMessage,
+                                  long startTime,
+                                  long duration,
+                                  Object[] parameters,
+                                  Thread thread,
+                                  int methodId) {
+        BridgeHandler handler = Bridge.handler;
+        if (handler != null) {
+            handler.addToQueue(throwable, saveMessage, startTime, duration, parameters, thread, methodId);
+        }
+    }
+
+    /**
+     * Exit of method with compact probes. This method is called concurrently
+     */
+    public static void exit(long startTime, int methodId) {
+        BridgeHandler handler = Bridge.handler;
+        if (handler != null) {
+            handler.exit(startTime, methodId);
+        }
+    }
+
+    /**
+     * Exit of method with compact probes by throwable. This method is called concurrently
+     */
+    public static void exitThrown(Throwable throwable, long startTime, int methodId) {
+        BridgeHandler handler = Bridge.handler;
+        if (handler != null) {
+            handler.exitThrown(throwable, startTime, methodId);
+        }
+    }
+
+    /**
+     * It is called by instrumented executors when task is submitted.
+     * Task is not replaced: submission is attached to it and it is taken when task starts
+     * (see {@link #runTask(Runnable)} and {@link #startTask(Object)})
+     */
+    public static void attachSubmission(Object task, Object executor) {
+        BridgeHandler handler = Bridge.handler;
+        if (handler != null && task != null) {
+            handler.attachSubmission(task, executor);
+        }
+    }
+
+    /**
+     * It is called by ForkJoinPool for tasks that it adapts to its own ForkJoinTask.
+     * Adapter is never exposed by pool, so task may be replaced.
+     * ForkJoinTask is used by pool as is, so it is not wrapped
+     *
+     * @return task that runs with context of submission
+     */
+    public static Runnable wrap(Runnable task, Object executor) {
+        BridgeHandler handler = Bridge.handler;
+        if (handler == null || task == null || task instanceof ContextRunnable) {
+            return task;
+        }
+        if (task instanceof ForkJoinTask) {
+            handler.attachSubmission(task, executor);
+            return task;
+        }
+        return new ContextRunnable(task, handler.submitTask(executor));
+    }
+
+    /**
+     * @return task that runs with context of submission
+     * @see #wrap(Runnable, Object)
+     */
+    public static <T> Callable<T> wrap(Callable<T> task, Object executor) {
+        BridgeHandler handler = Bridge.handler;
+        if (handler == null || task == null || task instanceof ContextCallable) {
+            return task;
+        }
+        return new ContextCallable<>(task, handler.submitTask(executor));
+    }
+
+    /**
+     * It is called by ThreadPoolExecutor instead of task.run()
+     */
+    public static void runTask(Runnable task) {
+        Object previous = startTask(task);
+        try {
+            task.run();
+        } finally {
+            finishTask(previous);
+        }
+    }
+
+    /**
+     * It is called by ForkJoinTask before it is executed
+     *
+     * @return value that must be passed to {@link #finishTask(Object)}
+     */
+    public static Object startTask(Object task) {
+        BridgeHandler handler = Bridge.handler;
+        if (handler == null) {
+            return NOT_STARTED;
+        }
+        Object submission = handler.takeSubmission(task);
+        return submission == null ? NOT_STARTED : handler.startTask(submission);
+    }
+
+    /**
+     * @return previous context of current thread
+     */
+    static Object startSubmission(Object submission) {
+        BridgeHandler handler = Bridge.handler;
+        return handler == null ? NOT_STARTED : handler.startTask(submission);
+    }
+
+    /**
+     * @param previous value returned by {@link #startTask(Object)}
+     */
+    public static void finishTask(Object previous) {
+        BridgeHandler handler = Bridge.handler;
+        if (handler != null && previous != NOT_STARTED) {
+            handler.finishTask(previous);
+        }
+    }
+}
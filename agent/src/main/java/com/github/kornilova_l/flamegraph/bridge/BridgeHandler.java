@@ -0,0 +1,50 @@
+package com.github.kornilova_l.flamegraph.bridge;
+
+/**
+ * It is implemented by javaagent and installed to {@link Bridge}.
+ * Methods have the same parameters as addToQueue methods of LoggerQueue.
+ * Submissions and contexts of tasks are passed as Object because their classes are not visible from bootstrap
+ */
+public interface BridgeHandler {
+    void addToQueue(Object retVal,
+                    long startTime,
+                    long duration,
+                    Object[] parameters,
+                    Thread thread,
+                    int methodId);
+
+    void addToQueue(Throwable throwable,
+                    boolean saveMessage,
+                    long startTime,
+                    long duration,
+                    Object[] parameters,
+                    Thread thread,
+                    int methodId);
+
+    void exit(long startTime, int methodId);
+
+    void exitThrown(Throwable throwable, long startTime, int methodId);
+
+    /**
+     * @return submission that is passed to {@link #startTask(Object)}
+     */
+    Object submitTask(Object executor);
+
+    /**
+     * Keeps submission until it is taken by {@link #takeSubmission(Object)}.
+     * If task already has submission, it is not changed
+     */
+    void attachSubmission(Object task, Object executor);
+
+    /**
+     * @return submission of task or null if task was not submitted or was already started
+     */
+    Object takeSubmission(Object task);
+
+    /**
+     * @return previous context of thread that is passed to {@link #finishTask(Object)}
+     */
+    Object startTask(Object submission);
+
+    void finishTask(Object previousContext);
+}
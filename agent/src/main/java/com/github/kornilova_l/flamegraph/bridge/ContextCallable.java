@@ -0,0 +1,33 @@
+package com.github.kornilova_l.flamegraph.bridge;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Calls task with context that was captured when task was submitted.
+ * Waiting in queue of executor is recorded when task starts.
+ * It wraps only tasks that ForkJoinPool adapts to its own tasks (see {@link Bridge#wrap(Callable, Object)})
+ */
+class ContextCallable<T> implements Callable<T> {
+    private final Callable<T> task;
+    private final Object submission;
+
+    ContextCallable(Callable<T> task, Object submission) {
+        this.task = task;
+        this.submission = submission;
+    }
+
+    @Override
+    public T call() throws Exception {
+        Object previous = Bridge.startSubmission(submission);
+        try {
+            return task.call();
+        } finally {
+            Bridge.finishTask(previous);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return task.toString();
+    }
+}
@@ -0,0 +1,31 @@
+package com.github.kornilova_l.flamegraph.bridge;
+
+/**
+ * Runs task with context that was captured when task was submitted.
+ * Waiting in queue of executor is recorded when task starts.
+ * It wraps only tasks that ForkJoinPool adapts to its own tasks (see {@link Bridge#wrap(Runnable, Object)})
+ */
+class ContextRunnable implements Runnable {
+    private final Runnable task;
+    private final Object submission;
+
+    ContextRunnable(Runnable task, Object submission) {
+        this.task = task;
+        this.submission = submission;
+    }
+
+    @Override
+    public void run() {
+        Object previous = Bridge.startSubmission(submission);
+        try {
+            task.run();
+        } finally {
+            Bridge.finishTask(previous);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return task.toString();
+    }
+}
@@ -0,0 +1,133 @@
+package com.github.kornilova_l.flamegraph.bridge;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runtime on/off switch of recording.
+ * <p>
+ * Switchable probes call enter, exit and exitThrown through invokedynamic.
+ * {@link #bootstrap(MethodHandles.Lookup, String, MethodType)} links every call site of the same name
+ * to one shared {@link MutableCallSite}. While recording is off, enter returns constant 0 and exits do nothing,
+ * so JIT folds probes to no-op. Switching changes targets of the three call sites,
+ * JIT deoptimizes dependent methods and probes are relinked without retransformation of classes.
+ * <p>
+ * Recording state is also checked by exits of compact probes, which are used instead of switchable probes
+ * in system classes and in classes older than Java 7
+ */
+@SuppressWarnings("unused")
+public class RecordingSwitch {
+    private static final MethodType ENTER_TYPE = MethodType.methodType(long.class);
+    private static final MethodType EXIT_TYPE = MethodType.methodType(void.class, long.class, int.class);
+    private static final MethodType EXIT_THROWN_TYPE =
+            MethodType.methodType(void.class, Throwable.class, long.class, int.class);
+    private static final MutableCallSite enter = new MutableCallSite(ENTER_TYPE);
+    private static final MutableCallSite exit = new MutableCallSite(EXIT_TYPE);
+    private static final MutableCallSite exitThrown = new MutableCallSite(EXIT_THROWN_TYPE);
+    private static final MethodHandle enterOff = MethodHandles.constant(long.class, 0L);
+    private static final MethodHandle exitOff;
+    private static final MethodHandle exitThrownOff;
+    private static final MethodHandle exitOn;
+    private static final MethodHandle exitThrownOn;
+    private static final MethodHandle currentTimeMillis;
+    private static final MethodHandle nanoTime;
+    private static volatile boolean isRecording = true;
+    private static TimeUnit timeUnit = TimeUnit.MILLISECONDS;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            exitOff = lookup.findStatic(RecordingSwitch.class, "ignoreExit", EXIT_TYPE);
+            exitThrownOff = lookup.findStatic(RecordingSwitch.class, "ignoreExitThrown", EXIT_THROWN_TYPE);
+            exitOn = lookup.findStatic(RecordingSwitch.class, "exit", EXIT_TYPE);
+            exitThrownOn = lookup.findStatic(RecordingSwitch.class, "exitThrown", EXIT_THROWN_TYPE);
+            currentTimeMillis = lookup.findStatic(System.class, "currentTimeMillis", ENTER_TYPE);
+            nanoTime = lookup.findStatic(System.class, "nanoTime", ENTER_TYPE);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+        setTargets();
+    }
+
+    /**
+     * Bootstrap method of switchable probes
+     *
+     * @param name enter, exit or exitThrown
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type) {
+        switch (name) {
+            case "enter":
+                return enter;
+            case "exit":
+                return exit;
+            case "exitThrown":
+                return exitThrown;
+            default:
+                throw new IllegalArgumentException("Unknown probe: " + name);
+        }
+    }
+
+    /**
+     * It is called by javaagent before classes are instrumented
+     *
+     * @param timeUnit    unit of time of probes
+     * @param isRecording initial state of recording
+     */
+    public static synchronized void init(TimeUnit timeUnit, boolean isRecording) {
+        RecordingSwitch.timeUnit = timeUnit;
+        RecordingSwitch.isRecording = isRecording;
+        setTargets();
+    }
+
+    public static boolean isRecording() {
+        return isRecording;
+    }
+
+    /**
+     * Turns probes on or off. It may be called from any thread
+     */
+    public static synchronized void setRecording(boolean isRecording) {
+        if (RecordingSwitch.isRecording != isRecording) {
+            RecordingSwitch.isRecording = isRecording;
+            setTargets();
+        }
+    }
+
+    private static void setTargets() {
+        if (isRecording) {
+            enter.setTarget(timeUnit == TimeUnit.NANOSECONDS ? nanoTime : currentTimeMillis);
+            exit.setTarget(exitOn);
+            exitThrown.setTarget(exitThrownOn);
+        } else {
+            enter.setTarget(enterOff);
+            exit.setTarget(exitOff);
+            exitThrown.setTarget(exitThrownOff);
+        }
+        MutableCallSite.syncAll(new MutableCallSite[]{enter, exit, exitThrown});
+    }
+
+    /**
+     * Start time is 0 if method was entered while recording was off
+     */
+    private static void exit(long startTime, int methodId) {
+        if (startTime != 0) {
+            Bridge.exit(startTime, methodId);
+        }
+    }
+
+    private static void exitThrown(Throwable throwable, long startTime, int methodId) {
+        if (startTime != 0) {
+            Bridge.exitThrown(throwable, startTime, methodId);
+        }
+    }
+
+    private static void ignoreExit(long startTime, int methodId) {
+    }
+
+    private static void ignoreExitThrown(Throwable throwable, long startTime, int methodId) {
+    }
+}
@@ -10,10 +10,15 @@ import java.util.Optional;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Creates numbered files in log dir: 0001.ser, 0002.ser...
+ * Numbering continues after the largest number of files that are already in dir
+ */
 public class AgentFileManager {
     private static final String DELIMITER = System.getProperty("os.name").startsWith("Windows") ? "\\" : "/";
     private static final int FILE_NAME_LENGTH = 4;
     private final File logDir;
+    private int lastFileNum = -1;
 
     public AgentFileManager(@NotNull String logDirPath) {
         logDir = new File(logDirPath);
@@ -26,6 +31,25 @@ public class AgentFileManager {
         assert logDir.exists() && logDir.isDirectory();
     }
 
+    @NotNull
+    public File getLogDir() {
+        return logDir;
+    }
+
+    /**
+     * File is not created
+     *
+     * @param extension extension of file name (for example ".ser")
+     * @return file with next number
+     */
+    @NotNull
+    public File getNextFile(@NotNull String extension) {
+        if (lastFileNum == -1) {
+            lastFileNum = getLargestFileNum();
+        }
+        return new File(logDir, intToString(++lastFileNum) + extension);
+    }
+
     /**
      * 1 -> 0001
      * 235 -> 0235
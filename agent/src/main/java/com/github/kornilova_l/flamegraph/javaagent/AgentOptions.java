@@ -0,0 +1,95 @@
+package com.github.kornilova_l.flamegraph.javaagent;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Optional parameters of javaagent.
+ * They are passed after output file name and configuration file name:
+ * output&config&key1=value1&key2=value2
+ */
+public class AgentOptions {
+    private final Map<String, String> options = new HashMap<>();
+
+    public AgentOptions() {
+    }
+
+    /**
+     * @param parameters all parameters of javaagent
+     * @param from       index of first optional parameter
+     */
+    public AgentOptions(@NotNull String[] parameters, int from) {
+        for (int i = from; i < parameters.length; i++) {
+            String parameter = parameters[i];
+            int eq = parameter.indexOf('=');
+            if (eq == -1) {
+                System.out.println("Option must be specified as key=value: " + parameter);
+                continue;
+            }
+            options.put(parameter.substring(0, eq).trim(), parameter.substring(eq + 1).trim());
+        }
+    }
+
+    public boolean isEmpty() {
+        return options.isEmpty();
+    }
+
+    @NotNull
+    public String getString(@NotNull String key, @NotNull String defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    public long getLong(@NotNull String key, long defaultValue) {
+        String value = options.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Option " + key + " must be a number: " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return number of bytes. Value may have suffix k, m or g
+     */
+    public long getBytes(@NotNull String key, long defaultValue) {
+        String value = options.get(key);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        long multiplier = 1;
+        switch (Character.toLowerCase(value.charAt(value.length() - 1))) {
+            case 'k':
+                multiplier = 1024;
+                break;
+            case 'm':
+                multiplier = 1024 * 1024;
+                break;
+            case 'g':
+                multiplier = 1024 * 1024 * 1024;
+                break;
+        }
+        try {
+            return Long.parseLong(multiplier == 1 ? value : value.substring(0, value.length() - 1)) * multiplier;
+        } catch (NumberFormatException e) {
+            System.out.println("Option " + key + " must be a number of bytes (for example 64m): " + value);
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(@NotNull String key, boolean defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    @Override
+    public String toString() {
+        return options.toString();
+    }
+}
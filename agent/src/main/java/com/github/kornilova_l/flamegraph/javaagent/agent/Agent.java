@@ -1,9 +1,13 @@
 package com.github.kornilova_l.flamegraph.javaagent.agent;
 
-import com.github.kornilova_l.flamegraph.configuration.MethodConfig;
+import com.github.kornilova_l.flamegraph.bridge.RecordingSwitch;
+import com.github.kornilova_l.flamegraph.javaagent.AgentFileManager;
+import com.github.kornilova_l.flamegraph.javaagent.AgentOptions;
 import com.github.kornilova_l.flamegraph.javaagent.logger.Logger;
 import com.github.kornilova_l.flamegraph.javaagent.logger.LoggerQueue;
+import com.github.kornilova_l.flamegraph.javaagent.logger.OverflowPolicy;
 import com.github.kornilova_l.flamegraph.javaagent.logger.WaitingLoggingToFinish;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.BufferedReader;
@@ -11,64 +15,342 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.lang.instrument.Instrumentation;
-import java.lang.instrument.UnmodifiableClassException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 @SuppressWarnings("unused")
 public class Agent {
+    private static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    @Nullable
+    private static volatile Logger logger;
+    @Nullable
+    private static volatile Reconfiguration reconfiguration;
+    @Nullable
+    private static volatile File outputFile;
+    /**
+     * Events are written for at most this time by dump and stop commands
+     */
+    private static final long FLUSH_TIMEOUT_SECONDS = 60;
 
     /**
-     * @param config output file name and configuration file name separated by '&'
+     * @param config output file name and configuration file name separated by '&'.
+     *               Optional parameters may follow in form key=value (see {@link AgentOptions}):
+     *               probes=startdata|locals|compact|switchable - bytecode that is inserted in instrumented methods
+     *               recording=on|off - initial state of switchable probes
+     *               control=FILE - switchable probes are turned on and off when "on" or "off" is written to FILE
+     *               watch-config=true|false - configuration file is watched and loaded classes are retransformed
+     *               when patterns that are applicable to them change
+     *               retransform-batch=N - at most N classes are retransformed at once after configuration changed
+     *               retransform-interval=MS - pause between batches of retransformed classes
+     *               timing=millis|nanos - System.currentTimeMillis() or System.nanoTime() is used
+     *               ring=N - number of event slots of each thread
+     *               buffer=SIZE - memory budget for event slots of all threads (for example 64m)
+     *               overflow=drop-newest|drop-oldest|sample|spill - what is done with event if slots of thread are full
+     *               drain-batch=N - events are written as soon as a thread has N unwritten events
+     *               drain-fill=PERCENT - events are written as soon as this percent of slots of a thread is occupied
+     *               max-latency=MS - events are written at least once in this number of milliseconds
+     *               group-virtual-threads=true|false - virtual threads share rings and are recorded as a few threads
+     *               (or as scopes that are set by LoggerQueue.setVirtualThreadScope()), otherwise each of them is recorded
+     *               segment=SIZE - events are written to memory-mapped segment files of this size (for example 64m)
+     *               in dir with name of output file without extension
+     *               segment-time=MINUTES - segment is finished after this time (segments of 64m are used if size is not set)
+     *               compress=true|false - finished segments are compressed with Deflater
+     *               keep=K - at most K finished segments are kept, the oldest are deleted
+     *               encoders=N - events are encoded by N worker threads (only for output to single file)
+     *               async-context=true|false - tasks that are submitted to executors run with context of submission
+     *               and their events have ids of task, parent task and request (requires bridge)
+     *               queue-wait=true|false - time that tasks wait in queues of executors is recorded
+     *               for each executor and submitting method (requires bridge)
      */
     public static void premain(String config, Instrumentation inst) {
         start(config, inst);
     }
 
     private static void start(String config, Instrumentation inst) {
-        LoggerQueue.initLoggerQueue();
         String[] parameters = config.split("&");
+        if (!hasConfigFile(parameters)) {
+            System.err.println("Configuration file is not set");
+            return;
+        }
         String configFile = parameters[1];
         System.out.println("Configuration file: " + configFile);
         List<String> methods = getMethodsList(new File(configFile));
         if (methods == null) {
             return;
         }
-        createLogger(new File(parameters[0]));
+        AgentOptions options = new AgentOptions(parameters, 2);
+        if (!options.isEmpty()) {
+            System.out.println("Options: " + options);
+        }
+        ProbeSettings settings = ProbeSettings.fromOptions(options);
+        LoggerQueue.setTimeUnit(settings.timeUnit);
+        LoggerQueue.initLoggerQueue(
+                (int) options.getLong("ring", LoggerQueue.DEFAULT_RING_CAPACITY),
+                options.getBytes("buffer", LoggerQueue.DEFAULT_BUFFER_SIZE),
+                OverflowPolicy.fromOption(options.getString("overflow", OverflowPolicy.DROP_NEWEST.toString())),
+                (int) options.getLong("drain-batch", LoggerQueue.DEFAULT_DRAIN_BATCH_SIZE),
+                (int) options.getLong("drain-fill", LoggerQueue.DEFAULT_DRAIN_FILL_PERCENT),
+                options.getBoolean("group-virtual-threads", true)
+        );
+        outputFile = new File(parameters[0]);
+        createLogger(outputFile, settings.timeUnit, options);
         AgentConfigurationManager configurationManager = new AgentConfigurationManager(methods);
         configurationManager.printConfiguration();
-        inst.addTransformer(new ProfilingClassFileTransformer(configurationManager), true);
+        boolean recordTaskContexts = options.getBoolean("async-context", false);
+        boolean recordQueueWait = options.getBoolean("queue-wait", false);
+        LoggerQueue.initTaskTracking(recordTaskContexts, recordQueueWait);
+        boolean isBridgeInstalled = BridgeInstaller.install(inst);
+        /* RecordingSwitch must be loaded after bridge is installed */
+        RecordingSwitch.init(settings.timeUnit, isRecording(options, true));
+        String controlFile = options.getString("control", "");
+        if (!controlFile.isEmpty()) {
+            RecordingControlFile.watch(new File(controlFile));
+        }
+        ProfilingClassFileTransformer transformer = new ProfilingClassFileTransformer(configurationManager, settings,
+                isBridgeInstalled, recordTaskContexts || recordQueueWait);
+        inst.addTransformer(transformer, true);
+        ClassRetransformer retransformer = ClassRetransformer.start(inst,
+                (int) options.getLong("retransform-batch", ClassRetransformer.DEFAULT_BATCH_SIZE),
+                options.getLong("retransform-interval", ClassRetransformer.DEFAULT_INTERVAL_MS));
+        Reconfiguration reconfiguration = new Reconfiguration(inst, transformer, retransformer,
+                configurationManager, isBridgeInstalled);
+        Agent.reconfiguration = reconfiguration;
+        if (options.getBoolean("watch-config", false)) {
+            ConfigurationFileWatcher.watch(new File(configFile), reconfiguration);
+        }
+        if (isBridgeInstalled) {
+            retransformBootstrapClasses(inst, transformer, retransformer, configurationManager);
+        }
+        /* if agent is attached to running JVM, classes of application are already loaded */
+        List<Class<?>> loadedClasses = new ArrayList<>();
+        for (Class<?> clazz : inst.getAllLoadedClasses()) {
+            if (clazz.getClassLoader() != null && inst.isModifiableClass(clazz) &&
+                    configurationManager.findIncludingConfigs(clazz.getName(), false).size() != 0) {
+                loadedClasses.add(clazz);
+            }
+        }
+        if (loadedClasses.size() != 0) {
+            System.out.println(loadedClasses.size() + " loaded classes will be retransformed");
+            retransformer.retransform(loadedClasses);
+        }
+    }
 
-        try {
-            for (Class clazz : inst.getAllLoadedClasses()) {
-                /* we may want to instrument some classes that were loaded by bootstrap
-                 * before agent was loaded. */
-                if (clazz.getClassLoader() == null) { // if was loaded by bootstrap
-                    List<MethodConfig> methodConfigs = configurationManager
-                            .findIncludingConfigs(clazz.getName(), true);
-                    if (methodConfigs.size() != 0) {
-                        inst.retransformClasses(clazz);
-                    }
-                }
+    /**
+     * @return true if configuration file follows output file (options that follow it contain '=')
+     */
+    private static boolean hasConfigFile(String[] parameters) {
+        return parameters.length >= 2 && !parameters[1].contains("=");
+    }
+
+    /**
+     * We may want to instrument some classes that were loaded by bootstrap before agent was loaded.
+     * Executors are usually among them, so they are retransformed before application continues.
+     * Class that cannot be retransformed does not stop retransformation of others
+     */
+    private static void retransformBootstrapClasses(Instrumentation inst,
+                                                    ProfilingClassFileTransformer transformer,
+                                                    ClassRetransformer retransformer,
+                                                    AgentConfigurationManager configurationManager) {
+        List<Class<?>> bootstrapClasses = new ArrayList<>();
+        for (Class<?> clazz : inst.getAllLoadedClasses()) {
+            if (clazz.getClassLoader() == null && inst.isModifiableClass(clazz) &&
+                    (configurationManager.findIncludingConfigs(clazz.getName(), true).size() != 0 ||
+                            transformer.isTaskSubmissionClass(clazz.getName().replace('.', '/')))) {
+                bootstrapClasses.add(clazz);
             }
+        }
+        if (bootstrapClasses.size() == 0) {
+            return;
+        }
+        try {
+            retransformer.retransformNow(() -> bootstrapClasses);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        } catch (UnmodifiableClassException e) {
+    /**
+     * It is called when javaagent is added to running JVM by attach launcher or by tests.
+     * Config is either the same as in {@link #premain(String, Instrumentation)} or, if agent is already loaded,
+     * only options separated by '&':
+     * command=stop|dump|status - stops recording and restores original bytecode of instrumented classes,
+     * writes recorded events or describes recording,
+     * recording=on|off turns switchable probes on and off (on also instruments classes again after stop),
+     * config=FILE replaces configuration (only classes affected by changed patterns are retransformed).
+     * If option response=FILE is set, result is written to FILE
+     */
+    public static void agentmain(String config, Instrumentation inst) {
+        String[] parameters = config.split("&");
+        boolean isStartRequest = !parameters[0].contains("=");
+        /* options of start request follow output file and configuration file */
+        AgentOptions options = new AgentOptions(parameters, !isStartRequest ? 0 : hasConfigFile(parameters) ? 2 : 1);
+        String responseFile = options.getString("response", "");
+        String response;
+        if (logger == null) {
+            if (isStartRequest && !hasConfigFile(parameters)) {
+                response = "Configuration file is not set";
+            } else if (isStartRequest) {
+                start(config, inst);
+                response = logger == null ? "Agent was not started, see output of JVM" : "Recording to " + outputFile;
+            } else {
+                response = "Agent is not started";
+            }
+        } else if (isStartRequest) {
+            if (hasConfigFile(parameters)) {
+                options = new AgentOptions(new String[]{"config=" + parameters[1], "recording=on"}, 0);
+            }
+            response = "Agent is already recording to " + outputFile + ". " + executeCommand(options);
+        } else {
+            response = executeCommand(options);
+        }
+        if (responseFile.isEmpty()) {
+            System.out.println(response);
+            return;
+        }
+        try {
+            Files.write(new File(responseFile).toPath(), response.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    @NotNull
+    private static String executeCommand(@NotNull AgentOptions options) {
+        Logger logger = Objects.requireNonNull(Agent.logger);
+        switch (options.getString("command", "")) {
+            case "stop":
+                RecordingSwitch.setRecording(false);
+                return "Recording is off. " + restoreClasses() + flush(logger);
+            case "dump":
+                return flush(logger);
+            case "status":
+                return "Recording to " + outputFile + "\n" +
+                        "Recording is " + (RecordingSwitch.isRecording() ? "on" : "off") + "\n" +
+                        "Events written: " + logger.getEventsWritten() +
+                        " (" + logger.getEventsPerSecond() + " events/s)\n" +
+                        "Bytes written: " + logger.getBytesWritten() +
+                        " (" + logger.getBytesPerSecond() + " bytes/s)";
+            case "":
+                break;
+            default:
+                return "Unknown command: " + options.getString("command", "");
+        }
+        StringBuilder response = new StringBuilder();
+        String configFile = options.getString("config", "");
+        Reconfiguration reconfiguration = Agent.reconfiguration;
+        if (!configFile.isEmpty() && reconfiguration != null) {
+            List<String> methods = getMethodsList(new File(configFile));
+            if (methods != null) {
+                reconfiguration.update(methods);
+                response.append("Configuration is loaded from ").append(configFile).append(". ");
+            } else {
+                response.append("Cannot read configuration from ").append(configFile).append(". ");
+            }
+        }
+        if (!options.getString("recording", "").isEmpty()) {
+            boolean isRecording = isRecording(options, RecordingSwitch.isRecording());
+            if (isRecording && reconfiguration != null) {
+                reconfiguration.reinstall(); // classes may have been restored by stop command
+            }
+            RecordingSwitch.setRecording(isRecording);
+            response.append("Recording is ").append(isRecording ? "on" : "off");
+        }
+        return response.toString();
+    }
+
+    @NotNull
+    private static String restoreClasses() {
+        Reconfiguration reconfiguration = Agent.reconfiguration;
+        if (reconfiguration == null) {
+            return "";
+        }
+        try {
+            return reconfiguration.restoreClasses() + ". ";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "Interrupted. ";
+        }
+    }
+
+    @NotNull
+    private static String flush(@NotNull Logger logger) {
+        try {
+            if (logger.flush(FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                return "Events are written to " + outputFile;
+            }
+            return "Events were not written in " + FLUSH_TIMEOUT_SECONDS + " seconds";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "Interrupted";
+        }
+    }
+
+    private static boolean isRecording(AgentOptions options, boolean defaultValue) {
+        String value = options.getString("recording", defaultValue ? "on" : "off");
+        Boolean isRecording = RecordingControlFile.parseState(value);
+        if (isRecording == null) {
+            System.out.println("Option recording must be on or off: " + value);
+            return defaultValue;
+        }
+        return isRecording;
+    }
+
     /**
-     * For tests. Library looks for method with this name
-     * when adding javaagent to running JVM
+     * Waits until all events that were recorded before the call are written to output file and forced to disk.
+     * It can be called by application or by tests before output is read
+     * (agent classes are loaded by system classloader)
      */
-    public static void agentmain(String config, Instrumentation inst) {
-        start(config, inst);
+    public static void flush() throws InterruptedException {
+        Logger logger = Agent.logger;
+        if (logger != null) {
+            logger.flush();
+        }
     }
 
-    private static void createLogger(File logFile) {
-        Logger logger = new Logger(logFile);
+    /**
+     * Agent is considered started with given logger, so commands of {@link #agentmain(String, Instrumentation)}
+     * can be checked by tests without instrumentation. Logger must be run by caller
+     */
+    static void setLogger(@Nullable Logger logger, @Nullable File outputFile) {
+        Agent.outputFile = outputFile;
+        Agent.logger = logger;
+    }
+
+    /**
+     * If segment size or segment time is set, events are written to segments in dir
+     * that has the same path as logFile but without extension
+     */
+    private static void createLogger(File logFile, TimeUnit timeUnit, AgentOptions options) {
+        long segmentSize = options.getBytes("segment", 0);
+        long segmentMinutes = options.getLong("segment-time", 0);
+        Logger logger;
+        if (segmentSize > 0 || segmentMinutes > 0) {
+            String path = logFile.getPath();
+            int extensionStart = path.lastIndexOf('.');
+            if (extensionStart > path.lastIndexOf(File.separatorChar)) {
+                path = path.substring(0, extensionStart);
+            }
+            logger = new Logger(new AgentFileManager(path),
+                    (int) Math.min(segmentSize > 0 ? segmentSize : DEFAULT_SEGMENT_SIZE, Integer.MAX_VALUE),
+                    TimeUnit.MINUTES.toMillis(segmentMinutes),
+                    options.getBoolean("compress", false),
+                    (int) options.getLong("keep", 0),
+                    timeUnit);
+        } else {
+            logger = new Logger(logFile, timeUnit);
+        }
+        logger.setMaxLatency(options.getLong("max-latency", Logger.DEFAULT_MAX_LATENCY));
+        int encodersCount = (int) options.getLong("encoders", 0);
+        if (encodersCount > 0) {
+            logger.setParallelEncoding(encodersCount);
+        }
 
+        Agent.logger = logger;
         Thread loggerThread = new Thread(logger, "logging thread");
         loggerThread.setDaemon(true);
         loggerThread.start();
@@ -77,7 +359,7 @@ public class Agent {
     }
 
     @Nullable
-    private static List<String> getMethodsList(File file) {
+    static List<String> getMethodsList(File file) {
         try (BufferedReader bufferedReader = new BufferedReader(new FileReader(file))) {
             return bufferedReader.lines().filter((line) -> !Objects.equals(line, "")).collect(Collectors.toList());
         } catch (IOException e) {
@@ -88,6 +88,23 @@ class AgentConfigurationManager {
         }
     }
 
+    /**
+     * If several configs are applicable to method then the smallest threshold is used
+     */
+    static void setDurationThreshold(@NotNull MethodConfig trueMethodConfig,
+                                     @NotNull List<MethodConfig> methodConfigs) {
+        for (MethodConfig methodConfig : methodConfigs) {
+            long threshold = methodConfig.getDurationThreshold();
+            if (threshold == MethodConfig.DEFAULT_DURATION_THRESHOLD) {
+                continue;
+            }
+            if (trueMethodConfig.getDurationThreshold() == MethodConfig.DEFAULT_DURATION_THRESHOLD ||
+                    threshold < trueMethodConfig.getDurationThreshold()) {
+                trueMethodConfig.setDurationThreshold(threshold);
+            }
+        }
+    }
+
     private static void mergeSavingParameters(List<MethodConfig.Parameter> toParameters,
                                               @NotNull List<MethodConfig.Parameter> fromParameters) {
         for (int i = 0; i < fromParameters.size(); i++) {
@@ -121,19 +138,34 @@ class AgentConfigurationManager {
         className = className.replace('/', '.');
         List<MethodConfig> applicableMethodConfigs = new ArrayList<>();
         for (MethodConfig config : configuration.getIncludingMethodConfigs()) {
-            if (isSystemClass) {
-                if (config.getClassPatternString().equals(className)) {
-                    applicableMethodConfigs.add(config);
-                }
-            } else {
-                if (config.isApplicableTo(className)) {
-                    applicableMethodConfigs.add(config);
-                }
+            if (isApplicableToClass(config, className, isSystemClass)) {
+                applicableMethodConfigs.add(config);
             }
         }
         return applicableMethodConfigs;
     }
 
+    /**
+     * @param className     name of class with dots
+     * @param isSystemClass see {@link #findIncludingConfigs(String, boolean)}
+     */
+    static boolean isApplicableToClass(@NotNull MethodConfig config, @NotNull String className, boolean isSystemClass) {
+        if (isSystemClass) {
+            return config.getClassPatternString().equals(className);
+        }
+        return config.isApplicableTo(className);
+    }
+
+    @NotNull
+    List<MethodConfig> getIncludingMethodConfigs() {
+        return configuration.getIncludingMethodConfigs();
+    }
+
+    @NotNull
+    List<MethodConfig> getExcludingMethodConfigs() {
+        return configuration.getExcludingMethodConfigs();
+    }
+
     boolean isMethodExcluded(MethodConfig methodConfig) {
         return configuration.getExcludingConfigs(methodConfig).size() != 0;
     }
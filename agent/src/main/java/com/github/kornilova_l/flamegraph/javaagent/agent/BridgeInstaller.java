@@ -0,0 +1,69 @@
+package com.github.kornilova_l.flamegraph.javaagent.agent;
+
+import com.github.kornilova_l.flamegraph.bridge.Bridge;
+import com.github.kornilova_l.flamegraph.javaagent.logger.LoggerQueueBridgeHandler;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Copies classes of package com.github.kornilova_l.flamegraph.bridge from javaagent jar to separate jar
+ * and appends it to bootstrap class path.
+ * It must be done before Bridge is used by javaagent, otherwise Bridge will be loaded by system classloader
+ * and system classes will not see it
+ */
+class BridgeInstaller {
+    private static final String BRIDGE_PACKAGE = "com/github/kornilova_l/flamegraph/bridge/";
+    private static final String[] BRIDGE_CLASSES = {"Bridge", "BridgeHandler", "ContextRunnable", "ContextCallable",
+            "RecordingSwitch"};
+
+    /**
+     * @return true if system classes can call Bridge
+     */
+    static boolean install(@NotNull Instrumentation inst) {
+        try {
+            File bridgeJar = File.createTempFile("flamegraph-bridge", ".jar");
+            bridgeJar.deleteOnExit();
+            writeBridgeJar(bridgeJar);
+            inst.appendToBootstrapClassLoaderSearch(new JarFile(bridgeJar));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Cannot add bridge to bootstrap class path. System classes will not be instrumented");
+            LoggerQueueBridgeHandler.install(); // switchable probes call Bridge anyway
+            return false;
+        }
+        LoggerQueueBridgeHandler.install();
+        if (Bridge.class.getClassLoader() != null) { // Bridge was loaded before jar was appended
+            System.out.println("Bridge is not loaded by bootstrap. System classes will not be instrumented");
+            return false;
+        }
+        return true;
+    }
+
+    private static void writeBridgeJar(File bridgeJar) throws IOException {
+        try (JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(bridgeJar))) {
+            for (String className : BRIDGE_CLASSES) {
+                String entryName = BRIDGE_PACKAGE + className + ".class";
+                try (InputStream inputStream = BridgeInstaller.class.getClassLoader().getResourceAsStream(entryName)) {
+                    if (inputStream == null) {
+                        throw new IOException("Cannot find " + entryName);
+                    }
+                    jarOutputStream.putNextEntry(new JarEntry(entryName));
+                    byte[] buffer = new byte[4096];
+                    int count;
+                    while ((count = inputStream.read(buffer)) != -1) {
+                        jarOutputStream.write(buffer, 0, count);
+                    }
+                    jarOutputStream.closeEntry();
+                }
+            }
+        }
+    }
+}
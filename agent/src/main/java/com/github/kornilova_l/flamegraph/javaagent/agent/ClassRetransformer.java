@@ -0,0 +1,119 @@
+package com.github.kornilova_l.flamegraph.javaagent.agent;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Retransforms classes in background thread.
+ * Each call of {@link Instrumentation#retransformClasses(Class[])} stops application threads,
+ * so classes are retransformed in batches of {@link #batchSize} with pause of {@link #intervalMs} between batches
+ * (retransformation of thousands of classes at once causes long pause and many deoptimizations)
+ */
+class ClassRetransformer implements Runnable {
+    static final int DEFAULT_BATCH_SIZE = 100;
+    static final long DEFAULT_INTERVAL_MS = 100;
+    private final Instrumentation inst;
+    private final int batchSize;
+    private final long intervalMs;
+    private final BlockingQueue<Class<?>> queue = new LinkedBlockingQueue<>();
+    /**
+     * Batches of background thread and {@link #retransformNow(Supplier)} do not run concurrently
+     */
+    private final Object lock = new Object();
+
+    private ClassRetransformer(@NotNull Instrumentation inst, int batchSize, long intervalMs) {
+        this.inst = inst;
+        this.batchSize = Math.max(1, batchSize);
+        this.intervalMs = Math.max(0, intervalMs);
+    }
+
+    @NotNull
+    static ClassRetransformer start(@NotNull Instrumentation inst, int batchSize, long intervalMs) {
+        ClassRetransformer retransformer = new ClassRetransformer(inst, batchSize, intervalMs);
+        Thread thread = new Thread(retransformer, "retransformation");
+        thread.setDaemon(true);
+        thread.start();
+        return retransformer;
+    }
+
+    /**
+     * Classes are retransformed asynchronously
+     */
+    void retransform(@NotNull Collection<Class<?>> classes) {
+        queue.addAll(classes);
+    }
+
+    /**
+     * Retransforms classes in calling thread in batches with the same pauses.
+     * Classes that are waiting in queue are not retransformed
+     *
+     * @param classesSupplier it is called after batch that is being retransformed by background thread is finished
+     * @return number of classes that were retransformed successfully
+     */
+    int retransformNow(@NotNull Supplier<List<Class<?>>> classesSupplier) throws InterruptedException {
+        synchronized (lock) {
+            queue.clear();
+            List<Class<?>> classes = classesSupplier.get();
+            int retransformed = 0;
+            for (int from = 0; from < classes.size(); from += batchSize) {
+                if (from != 0) {
+                    Thread.sleep(intervalMs);
+                }
+                retransformed += retransformBatch(new LinkedHashSet<>(
+                        classes.subList(from, Math.min(from + batchSize, classes.size()))));
+            }
+            return retransformed;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                /* class may be queued twice if configuration changes quickly */
+                Set<Class<?>> batch = new LinkedHashSet<>();
+                batch.add(queue.take());
+                List<Class<?>> drained = new ArrayList<>();
+                queue.drainTo(drained, batchSize - 1);
+                batch.addAll(drained);
+                synchronized (lock) {
+                    retransformBatch(batch);
+                }
+                Thread.sleep(intervalMs);
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * @return number of classes that were retransformed successfully
+     */
+    private int retransformBatch(@NotNull Set<Class<?>> batch) {
+        try {
+            inst.retransformClasses(batch.toArray(new Class<?>[0]));
+            return batch.size();
+        } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+            /* whole batch fails if one class fails, retransform classes one by one to find it */
+            int retransformed = 0;
+            for (Class<?> clazz : batch) {
+                try {
+                    inst.retransformClasses(clazz);
+                    retransformed++;
+                } catch (UnmodifiableClassException | RuntimeException | LinkageError classException) {
+                    System.out.println("Cannot retransform " + clazz.getName() + ": " + classException);
+                }
+            }
+            return retransformed;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.kornilova_l.flamegraph.javaagent.agent;
+
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes of {@link ProbeMode#COMPACT}. Entry stores time to local variable,
+ * each return calls exit(startTime, methodId) of LoggerQueue (or Bridge for system classes)
+ * and the only exception handler calls exitThrown(throwable, startTime, methodId) and rethrows.
+ * Duration, threshold and current thread are computed by called method.
+ * It produces bytecode similar to CompactExpected
+ * (see it in test classes com.github.kornilova_l.flamegraph.javaagent.generate.test_classes.CompactExpected)
+ * <p>
+ * Bytecode grows by 4-5 bytes at entry, by 5-8 bytes at each return and by 7-10 bytes of exception handler
+ * (loading of start time takes 1-2 bytes and loading of method id takes 1-3 bytes),
+ * so method with one return grows by 16-23 bytes.
+ * Throwable is recorded only by handler, so unlike other probes nothing is inserted before ATHROW
+ * <p>
+ * Switchable probes ({@link ProbeMode#SWITCHABLE}) have the same layout, but entry and exits are invokedynamic
+ * calls that are linked by {@link com.github.kornilova_l.flamegraph.bridge.RecordingSwitch}
+ * (see SwitchableExpected). Entry is a call too, so clock is not read while recording is off
+ */
+class CompactMethodVisitor extends AdviceAdapter {
+    private final int methodId;
+    private final TimeUnit timeUnit;
+    /**
+     * Internal name of class with static exit methods
+     */
+    private final String queueClass;
+    /**
+     * Bootstrap method of switchable probes or null if probes call queueClass
+     */
+    @Nullable
+    private final Handle bootstrap;
+    private final Label start = new Label();
+    private int startTimeLocal;
+
+    CompactMethodVisitor(int access,
+                         String methodName,
+                         String desc,
+                         MethodVisitor mv,
+                         int methodId,
+                         ProbeSettings settings,
+                         String queueClass,
+                         @Nullable Handle bootstrap) {
+        super(ASM5, mv, access, methodName, desc);
+        this.methodId = methodId;
+        timeUnit = settings.timeUnit;
+        this.queueClass = queueClass;
+        this.bootstrap = bootstrap;
+    }
+
+    @Override
+    protected void onMethodEnter() {
+        if (bootstrap != null) {
+            mv.visitInvokeDynamicInsn("enter", "()J", bootstrap);
+        } else if (timeUnit == TimeUnit.NANOSECONDS) {
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+        } else {
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "currentTimeMillis", "()J", false);
+        }
+        startTimeLocal = newLocal(Type.LONG_TYPE);
+        mv.visitVarInsn(LSTORE, startTimeLocal);
+        mv.visitLabel(start); // try-catch beginning
+    }
+
+    @Override
+    protected void onMethodExit(int opcode) {
+        if (opcode == ATHROW) { // throwable is recorded by handler
+            return;
+        }
+        mv.visitVarInsn(LLOAD, startTimeLocal);
+        push(methodId);
+        callProbe("exit", "(JI)V");
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        Label endOfTryCatch = new Label();
+        Label handler = new Label();
+        mv.visitTryCatchBlock(start, endOfTryCatch, handler, "java/lang/Throwable");
+        mv.visitLabel(endOfTryCatch);
+        mv.visitLabel(handler);
+        dup(); // throwable
+        mv.visitVarInsn(LLOAD, startTimeLocal);
+        push(methodId);
+        callProbe("exitThrown", "(Ljava/lang/Throwable;JI)V");
+        mv.visitInsn(ATHROW);
+        super.visitMaxs(maxStack, maxLocals);
+    }
+
+    private void callProbe(String name, String desc) {
+        if (bootstrap != null) {
+            mv.visitInvokeDynamicInsn(name, desc, bootstrap);
+        } else {
+            mv.visitMethodInsn(INVOKESTATIC, queueClass, name, desc, false);
+        }
+    }
+}
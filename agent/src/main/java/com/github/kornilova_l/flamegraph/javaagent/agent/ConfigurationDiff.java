@@ -0,0 +1,94 @@
+package com.github.kornilova_l.flamegraph.javaagent.agent;
+
+import com.github.kornilova_l.flamegraph.configuration.MethodConfig;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Method configs that were added to or removed from configuration.
+ * It is used to find loaded classes that must be retransformed after configuration changed.
+ * Configs are compared by {@link MethodConfig#toString()}, so change of saved parameters
+ * or of duration threshold is a change of config
+ */
+class ConfigurationDiff {
+    private final AgentConfigurationManager oldConfiguration;
+    private final AgentConfigurationManager newConfiguration;
+    private final List<MethodConfig> changedIncludingConfigs;
+    private final List<MethodConfig> changedExcludingConfigs;
+
+    ConfigurationDiff(@NotNull AgentConfigurationManager oldConfiguration,
+                      @NotNull AgentConfigurationManager newConfiguration) {
+        this.oldConfiguration = oldConfiguration;
+        this.newConfiguration = newConfiguration;
+        changedIncludingConfigs = symmetricDifference(oldConfiguration.getIncludingMethodConfigs(),
+                newConfiguration.getIncludingMethodConfigs());
+        changedExcludingConfigs = symmetricDifference(oldConfiguration.getExcludingMethodConfigs(),
+                newConfiguration.getExcludingMethodConfigs());
+    }
+
+    @NotNull
+    private static List<MethodConfig> symmetricDifference(@NotNull List<MethodConfig> oldConfigs,
+                                                          @NotNull List<MethodConfig> newConfigs) {
+        Set<String> oldStrings = toStrings(oldConfigs);
+        Set<String> newStrings = toStrings(newConfigs);
+        List<MethodConfig> changed = new ArrayList<>();
+        for (MethodConfig config : oldConfigs) {
+            if (!newStrings.contains(config.toString())) {
+                changed.add(config);
+            }
+        }
+        for (MethodConfig config : newConfigs) {
+            if (!oldStrings.contains(config.toString())) {
+                changed.add(config);
+            }
+        }
+        return changed;
+    }
+
+    @NotNull
+    private static Set<String> toStrings(@NotNull List<MethodConfig> configs) {
+        Set<String> strings = new HashSet<>();
+        for (MethodConfig config : configs) {
+            strings.add(config.toString());
+        }
+        return strings;
+    }
+
+    boolean isEmpty() {
+        return changedIncludingConfigs.isEmpty() && changedExcludingConfigs.isEmpty();
+    }
+
+    /**
+     * Result is approximate: class may be retransformed even if none of its methods is affected,
+     * but class is never skipped if instrumentation of its methods changed
+     *
+     * @param className     name of class with dots
+     * @param isSystemClass true if class is loaded by bootstrap
+     * @return true if class must be retransformed
+     */
+    boolean changesClass(@NotNull String className, boolean isSystemClass) {
+        for (MethodConfig config : changedIncludingConfigs) {
+            if (AgentConfigurationManager.isApplicableToClass(config, className, isSystemClass)) {
+                return true;
+            }
+        }
+        for (MethodConfig config : changedExcludingConfigs) {
+            if (config.isApplicableTo(className)) {
+                /* excluding config matters only if some methods of class are included */
+                return oldConfiguration.findIncludingConfigs(className, isSystemClass).size() != 0 ||
+                        newConfiguration.findIncludingConfigs(className, isSystemClass).size() != 0;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return changedIncludingConfigs.size() + " including and " +
+                changedExcludingConfigs.size() + " excluding patterns changed";
+    }
+}
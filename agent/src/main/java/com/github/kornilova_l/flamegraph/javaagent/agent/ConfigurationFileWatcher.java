@@ -0,0 +1,50 @@
+package com.github.kornilova_l.flamegraph.javaagent.agent;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Watches configuration file of javaagent (option "watch-config").
+ * When file is modified it is read again and passed to {@link Reconfiguration}.
+ * File is checked every {@link #CHECK_INTERVAL_MS}
+ */
+class ConfigurationFileWatcher implements Runnable {
+    private static final long CHECK_INTERVAL_MS = 1000;
+    private final File file;
+    private final Reconfiguration reconfiguration;
+    private long lastModified;
+
+    private ConfigurationFileWatcher(@NotNull File file, @NotNull Reconfiguration reconfiguration) {
+        this.file = file;
+        this.reconfiguration = reconfiguration;
+        lastModified = file.lastModified();
+    }
+
+    static void watch(@NotNull File file, @NotNull Reconfiguration reconfiguration) {
+        Thread thread = new Thread(new ConfigurationFileWatcher(file, reconfiguration), "configuration watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(CHECK_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long modified = file.lastModified(); // 0 if file does not exist
+            if (modified == 0 || modified == lastModified) {
+                continue;
+            }
+            lastModified = modified;
+            List<String> methods = Agent.getMethodsList(file);
+            if (methods != null) {
+                reconfiguration.update(methods);
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.github.kornilova_l.flamegraph.javaagent.agent;
+
+import com.github.kornilova_l.flamegraph.configuration.MethodConfig;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.util.List;
+
+/**
+ * Keeps start time, duration, saved parameters and flag "thrown by method"
+ * in local variables of instrumented method instead of creating
+ * {@link com.github.kornilova_l.flamegraph.proxy.StartData} on each call.
+ * So enter and exit of method do not allocate anything.
+ * <p>
+ * If parameters or return value are saved then they are not boxed:
+ * parameters are copied to local variables on enter and on exit they are passed
+ * to {@link com.github.kornilova_l.flamegraph.javaagent.logger.EventRecord} of current thread
+ * through methods with primitive arguments.
+ * It produces bytecode similar to LocalVariablesExpected
+ * (see it in test classes com.github.kornilova_l.flamegraph.javaagent.generate.test_classes.LocalVariablesExpected)
+ * <p>
+ * It is used for classes that have system classloader in chain
+ * because Proxy still works with StartData.
+ * System classes also keep data in local variables (see {@link SystemClassMethodVisitor}).
+ */
+class LocalVariablesMethodVisitor extends ProfilingMethodVisitor {
+    private final static String EVENT_RECORD_CLASS = LOGGER_PACKAGE_NAME + "EventRecord";
+    private int startTimeLocal;
+    private int durationLocal;
+    private int parametersLocal;
+    private int thrownByMethodLocal;
+    /**
+     * True if parameters or return value are passed to EventRecord
+     */
+    private final boolean captureValues;
+    private final int[] savedParameterLocals;
+    private final Type[] savedParameterTypes;
+    private int returnValueLocal = -1;
+
+    LocalVariablesMethodVisitor(int access,
+                                String methodName,
+                                String desc,
+                                MethodVisitor mv,
+                                MethodConfig methodConfig,
+                                int methodId,
+                                ProbeSettings settings) {
+        this(access, methodName, desc, mv, methodConfig, methodId, settings, true);
+    }
+
+    /**
+     * @param canCaptureValues false if instrumented class does not see EventRecord.
+     *                         Then saved parameters and return value are boxed
+     */
+    LocalVariablesMethodVisitor(int access,
+                                String methodName,
+                                String desc,
+                                MethodVisitor mv,
+                                MethodConfig methodConfig,
+                                int methodId,
+                                ProbeSettings settings,
+                                boolean canCaptureValues) {
+        super(access, methodName, desc, mv, true, methodConfig, methodId, settings);
+        int countSavedParameters = getSavedParameters(methodConfig).length;
+        savedParameterLocals = new int[countSavedParameters];
+        savedParameterTypes = new Type[countSavedParameters];
+        captureValues = canCaptureValues && (countSavedParameters > 0 || saveReturnValue);
+    }
+
+    @Override
+    void saveStartData() {
+        getTime();
+        startTimeLocal = newLocal(Type.LONG_TYPE);
+        mv.visitVarInsn(LSTORE, startTimeLocal);
+
+        if (captureValues) {
+            copySavedParameters();
+        } else {
+            loadArrayWithParameters();
+            parametersLocal = newLocal(Type.getType(Object[].class));
+            mv.visitVarInsn(ASTORE, parametersLocal);
+        }
+
+        loadFalse();
+        thrownByMethodLocal = newLocal(Type.BOOLEAN_TYPE);
+        mv.visitVarInsn(ISTORE, thrownByMethodLocal);
+
+        durationLocal = newLocal(Type.LONG_TYPE); // it is set on exit
+    }
+
+    @Override
+    void saveExitTime() {
+        getTime();
+        mv.visitVarInsn(LLOAD, startTimeLocal);
+        mv.visitInsn(LSUB);
+        mv.visitVarInsn(LSTORE, durationLocal);
+    }
+
+    @Override
+    void setThrownByMethod() {
+        loadTrue();
+        mv.visitVarInsn(ISTORE, thrownByMethodLocal);
+    }
+
+    @Override
+    void getIfWasThrownByMethod() {
+        mv.visitVarInsn(ILOAD, thrownByMethodLocal);
+    }
+
+    @Override
+    void loadStartTime() {
+        mv.visitVarInsn(LLOAD, startTimeLocal);
+    }
+
+    @Override
+    void loadDuration() {
+        mv.visitVarInsn(LLOAD, durationLocal);
+    }
+
+    @Override
+    void loadParameters() {
+        mv.visitVarInsn(ALOAD, parametersLocal);
+    }
+
+    /**
+     * Parameters may be changed by method, so values are copied on enter
+     */
+    private void copySavedParameters() {
+        List<String> jvmParameters = MethodConfig.splitDesc(
+                methodDesc.substring(methodDesc.indexOf("(") + 1, methodDesc.indexOf(")"))
+        );
+        List<MethodConfig.Parameter> parameters = methodConfig.getParameters();
+        int posOfParam = isStatic() ? 0 : 1;
+        int index = 0; // index of saved parameter
+        for (int i = 0; i < parameters.size(); i++) {
+            if (parameters.get(i).isEnabled()) {
+                Type type = Type.getType(jvmParameters.get(i));
+                mv.visitVarInsn(type.getOpcode(ILOAD), posOfParam);
+                savedParameterLocals[index] = newLocal(type);
+                savedParameterTypes[index] = type;
+                mv.visitVarInsn(type.getOpcode(ISTORE), savedParameterLocals[index]);
+                index++;
+            }
+            posOfParam += getObjSize(jvmParameters.get(i));
+        }
+    }
+
+    @Override
+    void retValAddToQueue(int opcode) {
+        if (!captureValues) {
+            super.retValAddToQueue(opcode);
+            return;
+        }
+        Type returnType = Type.getReturnType(methodDesc);
+        boolean saveReturnValue = this.saveReturnValue && opcode != RETURN;
+        if (saveReturnValue) {
+            if (returnValueLocal == -1) {
+                returnValueLocal = newLocal(returnType);
+            }
+            if (returnType.getSize() == 2) {
+                dup2();
+            } else {
+                dup();
+            }
+            mv.visitVarInsn(returnType.getOpcode(ISTORE), returnValueLocal);
+        }
+        getEventRecord();
+        addSavedParameters();
+        if (saveReturnValue) {
+            dup();
+            mv.visitVarInsn(returnType.getOpcode(ILOAD), returnValueLocal);
+            invokeEventRecord("setReturnValue", returnType);
+        }
+        loadStartTime();
+        loadDuration();
+        getThread();
+        loadMethodId();
+        mv.visitMethodInsn(INVOKESTATIC, LOGGER_PACKAGE_NAME + "LoggerQueue", "addToQueue",
+                "(L" + EVENT_RECORD_CLASS + ";JJLjava/lang/Thread;I)V", false);
+    }
+
+    /**
+     * Throwable must be on stack.
+     * It will be duplicated
+     */
+    @Override
+    void throwableAddToQueue() {
+        if (!captureValues) {
+            super.throwableAddToQueue();
+            return;
+        }
+        dup(); // duplicate throwable
+        if (saveReturnValue) { // if save message
+            loadTrue();
+        } else {
+            loadFalse();
+        }
+        getEventRecord();
+        addSavedParameters();
+        loadStartTime();
+        loadDuration();
+        getThread();
+        loadMethodId();
+        mv.visitMethodInsn(INVOKESTATIC, LOGGER_PACKAGE_NAME + "LoggerQueue", "addToQueue",
+                "(Ljava/lang/Throwable;ZL" + EVENT_RECORD_CLASS + ";JJLjava/lang/Thread;I)V", false);
+    }
+
+    private void getEventRecord() {
+        mv.visitMethodInsn(INVOKESTATIC, LOGGER_PACKAGE_NAME + "LoggerQueue", "getEventRecord",
+                "()L" + EVENT_RECORD_CLASS + ";", false);
+    }
+
+    /**
+     * EventRecord must be on stack. It stays on stack
+     */
+    private void addSavedParameters() {
+        for (int i = 0; i < savedParameterLocals.length; i++) {
+            dup();
+            mv.visitVarInsn(savedParameterTypes[i].getOpcode(ILOAD), savedParameterLocals[i]);
+            invokeEventRecord("addParameter", savedParameterTypes[i]);
+        }
+    }
+
+    private void invokeEventRecord(String methodName, Type valueType) {
+        String valueDesc = valueType.getSort() == Type.OBJECT || valueType.getSort() == Type.ARRAY ?
+                "Ljava/lang/Object;" :
+                valueType.getDescriptor();
+        mv.visitMethodInsn(INVOKEVIRTUAL, EVENT_RECORD_CLASS, methodName, "(" + valueDesc + ")V", false);
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.kornilova_l.flamegraph.javaagent.agent;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Defines what bytecode is inserted at entry and exit of instrumented method.
+ * It is set by javaagent option "probes"
+ */
+enum ProbeMode {
+    /**
+     * New {@link com.github.kornilova_l.flamegraph.proxy.StartData} is created on each call.
+     * It is the only mode that is used for classes that cannot see LoggerQueue
+     * (they use Proxy)
+     */
+    START_DATA("startdata"),
+    /**
+     * Start time, duration and flag "thrown by method" are kept in local variables of instrumented method.
+     * Nothing is allocated on enter and exit (except array of saved parameters)
+     */
+    LOCAL_VARIABLES("locals"),
+    /**
+     * Start time is kept in local variable, each exit is a single call of LoggerQueue (or Bridge)
+     * with start time and id of method. Duration threshold is checked by the called method,
+     * so instrumented method grows as little as possible and stays small enough to be inlined by JIT
+     * (see {@link CompactMethodVisitor}).
+     * Methods that save parameters or return value are instrumented as in {@link #LOCAL_VARIABLES}
+     */
+    COMPACT("compact"),
+    /**
+     * Probes have the same layout as {@link #COMPACT}, but they are invokedynamic calls
+     * that can be turned off and on at runtime without retransformation
+     * (see {@link com.github.kornilova_l.flamegraph.bridge.RecordingSwitch}).
+     * Parameters and return values are not saved in this mode.
+     * System classes and classes older than Java 7 get compact probes that check the switch in the called method
+     */
+    SWITCHABLE("switchable");
+
+    private final String optionValue;
+
+    ProbeMode(String optionValue) {
+        this.optionValue = optionValue;
+    }
+
+    @NotNull
+    static ProbeMode fromOption(@NotNull String value) {
+        for (ProbeMode mode : values()) {
+            if (mode.optionValue.equals(value)) {
+                return mode;
+            }
+        }
+        System.out.println("Unknown probes mode: " + value + ". " + START_DATA.optionValue + " is used");
+        return START_DATA;
+    }
+
+    @Override
+    public String toString() {
+        return optionValue;
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.kornilova_l.flamegraph.javaagent.agent;
+
+import com.github.kornilova_l.flamegraph.configuration.MethodConfig;
+import com.github.kornilova_l.flamegraph.javaagent.AgentOptions;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings that define bytecode of probes.
+ * They are read from javaagent options once
+ */
+class ProbeSettings {
+    static final ProbeSettings DEFAULT = new ProbeSettings(ProbeMode.START_DATA, TimeUnit.MILLISECONDS);
+    /**
+     * Method call is recorded if it took more than 1ms and threshold is not specified in configuration
+     */
+    private static final long DEFAULT_DURATION_THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    final ProbeMode probeMode;
+    /**
+     * {@link TimeUnit#MILLISECONDS} if System.currentTimeMillis() is used by probes,
+     * {@link TimeUnit#NANOSECONDS} if System.nanoTime() is used
+     */
+    final TimeUnit timeUnit;
+
+    ProbeSettings(@NotNull ProbeMode probeMode, @NotNull TimeUnit timeUnit) {
+        this.probeMode = probeMode;
+        this.timeUnit = timeUnit;
+    }
+
+    @NotNull
+    static ProbeSettings fromOptions(@NotNull AgentOptions options) {
+        return new ProbeSettings(
+                ProbeMode.fromOption(options.getString("probes", ProbeMode.START_DATA.toString())),
+                parseTimeUnit(options.getString("timing", "millis"))
+        );
+    }
+
+    @NotNull
+    static TimeUnit parseTimeUnit(@NotNull String timing) {
+        switch (timing) {
+            case "millis":
+                return TimeUnit.MILLISECONDS;
+            case "nanos":
+                return TimeUnit.NANOSECONDS;
+            default:
+                System.out.println("Unknown timing: " + timing + ". millis is used");
+                return TimeUnit.MILLISECONDS;
+        }
+    }
+
+    /**
+     * @return minimal duration of recorded call in units of {@link #timeUnit}
+     */
+    long getDurationThreshold(@NotNull MethodConfig methodConfig) {
+        long thresholdNanos = methodConfig.getDurationThreshold();
+        if (thresholdNanos == MethodConfig.DEFAULT_DURATION_THRESHOLD) {
+            thresholdNanos = DEFAULT_DURATION_THRESHOLD_NANOS;
+        }
+        return timeUnit.convert(thresholdNanos, TimeUnit.NANOSECONDS);
+    }
+}
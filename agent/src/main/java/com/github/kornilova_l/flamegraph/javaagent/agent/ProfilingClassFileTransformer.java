@@ -1,21 +1,63 @@
 package com.github.kornilova_l.flamegraph.javaagent.agent;
 
 import com.github.kornilova_l.flamegraph.configuration.MethodConfig;
+import com.github.kornilova_l.flamegraph.javaagent.logger.LoggerQueue;
 import com.github.kornilova_l.flamegraph.proxy.Proxy;
 import com.github.kornilova_l.flamegraph.proxy.StartData;
+import org.jetbrains.annotations.NotNull;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 
 import java.lang.instrument.ClassFileTransformer;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 class ProfilingClassFileTransformer implements ClassFileTransformer {
 
-    private AgentConfigurationManager configurationManager;
+    /**
+     * It is replaced when configuration changes (see {@link Reconfiguration})
+     */
+    private volatile AgentConfigurationManager configurationManager;
+    private final ProbeSettings settings;
+    /**
+     * False if {@link com.github.kornilova_l.flamegraph.bridge.Bridge} is not in bootstrap class path
+     */
+    private final boolean instrumentSystemClasses;
+    /**
+     * If true executors are instrumented (see {@link TaskSubmissionClassVisitor}). Requires bridge
+     */
+    private final boolean instrumentTaskSubmission;
+    /**
+     * Internal names of classes that were instrumented, by classloader (key of bootstrap classes is null).
+     * Classloaders are weak keys, so unloaded classes are forgotten
+     */
+    private final Map<ClassLoader, Set<String>> modifiedClasses = new WeakHashMap<>();
 
-    ProfilingClassFileTransformer(AgentConfigurationManager configurationManager) {
+    ProfilingClassFileTransformer(AgentConfigurationManager configurationManager,
+                                  ProbeSettings settings,
+                                  boolean instrumentSystemClasses,
+                                  boolean instrumentTaskSubmission) {
         this.configurationManager = configurationManager;
+        this.settings = settings;
+        this.instrumentSystemClasses = instrumentSystemClasses;
+        this.instrumentTaskSubmission = instrumentSystemClasses && instrumentTaskSubmission;
+    }
+
+    void setConfigurationManager(AgentConfigurationManager configurationManager) {
+        this.configurationManager = configurationManager;
+    }
+
+    /**
+     * @return true if executor class is instrumented
+     */
+    boolean isTaskSubmissionClass(String className) {
+        return instrumentTaskSubmission && TaskSubmissionClassVisitor.isSubmissionClass(className);
     }
 
     private static boolean hasSystemCLInChain(ClassLoader loader) {
@@ -37,36 +79,93 @@ class ProfilingClassFileTransformer implements ClassFileTransformer {
                             byte[] classfileBuffer) {
         String classWithoutPackage = getClassWithoutPackage(className);
         if (!isClassOfAgent(className) && // exclude classes of agent
-                !classWithoutPackage.toLowerCase().contains("classloader")) { // exclude classloaders
+                !classWithoutPackage.toLowerCase().contains("classloader") && // exclude classloaders
+                (loader != null || instrumentSystemClasses)) {
+            AgentConfigurationManager configurationManager = this.configurationManager;
             List<MethodConfig> methodConfigs = configurationManager.findIncludingConfigs(className, loader == null);
-            if (methodConfigs.size() != 0) {
+            boolean wrapTasks = loader == null && isTaskSubmissionClass(className);
+            if (methodConfigs.size() != 0 || wrapTasks) {
                 boolean hasSystemClassLoaderInChain = hasSystemCLInChain(loader);
                 /* if classloader of the class has system classloader in chain then there will be
                  * no problems with using LoggerQueue and StartData.
-                 * if class was loaded by bootstrap (loader == null) then reflection will be used. And it is stable.
+                 * if class was loaded by bootstrap (loader == null) then Bridge will be used.
+                 * switchable probes only use classes of bridge, which every classloader sees if bridge is installed.
                  * in other cases classloader must be able to load Proxy and StartData */
-                if (hasSystemClassLoaderInChain || loader == null || classLoaderCanFindProxy(loader)) {
+                if (hasSystemClassLoaderInChain || loader == null ||
+                        (settings.probeMode == ProbeMode.SWITCHABLE && instrumentSystemClasses) ||
+                        classLoaderCanFindProxy(loader)) {
                     ClassReader cr = new ClassReader(classfileBuffer);
                     ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_FRAMES);
                     // uncomment for debugging
 //                TraceClassVisitor cv = new TraceClassVisitor(cw, new PrintWriter(System.out));
+                    ClassVisitor cv = wrapTasks ? new TaskSubmissionClassVisitor(cw, className) : cw;
                     // SKIP_FRAMES avoids visiting frames that will be ignored and recomputed from scratch in the class writer.
                     cr.accept(
                             new ProfilingClassVisitor(
-                                    cw,
+                                    cv,
                                     className,
+                                    loader,
                                     hasSystemClassLoaderInChain,
                                     methodConfigs,
                                     configurationManager,
-                                    loader == null
+                                    loader == null,
+                                    settings,
+                                    LoggerQueue.getMethodTable()
                             ), ClassReader.SKIP_FRAMES);
-                    return cw.toByteArray();
+                    byte[] bytes = cw.toByteArray();
+                    setModified(loader, className, true);
+                    return bytes;
                 }
             }
         }
+        if (classBeingRedefined != null) { // class is not instrumented with current configuration
+            setModified(loader, className, false);
+        }
         return classfileBuffer; // do not modify classes of the javaagent
     }
 
+    private void setModified(ClassLoader loader, String className, boolean isModified) {
+        synchronized (modifiedClasses) {
+            Set<String> classNames = modifiedClasses.get(loader);
+            if (isModified) {
+                if (classNames == null) {
+                    classNames = new HashSet<>();
+                    modifiedClasses.put(loader, classNames);
+                }
+                classNames.add(className);
+            } else if (classNames != null) {
+                classNames.remove(className);
+            }
+        }
+    }
+
+    /**
+     * @param loadedClasses all loaded classes
+     * @return classes that have instrumented bytecode
+     */
+    @NotNull
+    List<Class<?>> findModifiedClasses(@NotNull Class<?>[] loadedClasses) {
+        List<Class<?>> classes = new ArrayList<>();
+        synchronized (modifiedClasses) {
+            for (Class<?> clazz : loadedClasses) {
+                Set<String> classNames = modifiedClasses.get(clazz.getClassLoader());
+                if (classNames != null && classNames.contains(clazz.getName().replace('.', '/'))) {
+                    classes.add(clazz);
+                }
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * It is called when transformer is removed and modified classes are restored
+     */
+    void clearModifiedClasses() {
+        synchronized (modifiedClasses) {
+            modifiedClasses.clear();
+        }
+    }
+
     private String getClassWithoutPackage(String className) {
         int lastSlash = className.lastIndexOf('/');
         if (lastSlash == -1) { // does not contain package
@@ -80,6 +179,7 @@ class ProfilingClassFileTransformer implements ClassFileTransformer {
         if (className.startsWith("com/github/kornilova_l/")) {
             return className.startsWith("com/github/kornilova_l/flamegraph/javaagent/") ||
                     className.startsWith("com/github/kornilova_l/flamegraph/proxy/") ||
+                    className.startsWith("com/github/kornilova_l/flamegraph/bridge/") ||
                     className.startsWith("com/github/kornilova_l/flamegraph/proto/") ||
                     className.startsWith("com/github/kornilova_l/libs/com/google/protobuf/");
         }
@@ -1,7 +1,9 @@
 package com.github.kornilova_l.flamegraph.javaagent.agent;
 
 import com.github.kornilova_l.flamegraph.configuration.MethodConfig;
+import com.github.kornilova_l.flamegraph.javaagent.logger.MethodTable;
 import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
@@ -9,24 +11,52 @@ import java.util.List;
 
 
 class ProfilingClassVisitor extends ClassVisitor {
+    private static final Handle RECORDING_SWITCH_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC,
+            "com/github/kornilova_l/flamegraph/bridge/RecordingSwitch",
+            "bootstrap",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;",
+            false);
     private final String className;
+    /**
+     * Loader of class, null for bootstrap classes. Methods of the same class keep their ids
+     * when class is transformed again
+     */
+    private final ClassLoader loader;
     private final boolean hasSystemCL;
     private final List<MethodConfig> includingConfigs;
     private final AgentConfigurationManager configurationManager;
     private final boolean isSystemClass;
+    private final ProbeSettings settings;
+    private final MethodTable methodTable;
+    /**
+     * invokedynamic is available since class file version of Java 7
+     */
+    private boolean supportsInvokeDynamic = false;
 
     ProfilingClassVisitor(ClassVisitor cv,
                           String className,
+                          ClassLoader loader,
                           boolean hasSystemCL,
                           List<MethodConfig> includingConfigs,
                           AgentConfigurationManager configurationManager,
-                          boolean isSystemClass) {
+                          boolean isSystemClass,
+                          ProbeSettings settings,
+                          MethodTable methodTable) {
         super(Opcodes.ASM5, cv);
         this.className = className;
+        this.loader = loader;
         this.hasSystemCL = hasSystemCL;
         this.includingConfigs = includingConfigs;
         this.configurationManager = configurationManager;
         this.isSystemClass = isSystemClass;
+        this.settings = settings;
+        this.methodTable = methodTable;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        supportsInvokeDynamic = (version & 0xFFFF) >= Opcodes.V1_7;
+        super.visit(version, access, name, signature, superName, interfaces);
     }
 
     @Override
@@ -47,10 +77,36 @@ class ProfilingClassVisitor extends ClassVisitor {
                 );
                 if (includingConfigsForMethod.size() != 0) {
                     AgentConfigurationManager.setSaveParameters(trueMethodConfig, includingConfigsForMethod);
+                    AgentConfigurationManager.setDurationThreshold(trueMethodConfig, includingConfigsForMethod);
+                    int[] savedParameters = ProfilingMethodVisitor.getSavedParameters(trueMethodConfig);
+                    int methodId = methodTable.register(loader, className, methodName, desc,
+                            (access & Opcodes.ACC_STATIC) != 0,
+                            savedParameters,
+                            settings.getDurationThreshold(trueMethodConfig));
+                    if (settings.probeMode == ProbeMode.SWITCHABLE) {
+                        /* classes that cannot see LoggerQueue call Bridge
+                         * (transformer instruments them only if bridge is installed) */
+                        return new CompactMethodVisitor(access, methodName, desc, mv, methodId, settings,
+                                hasSystemCL && !isSystemClass ?
+                                        ProfilingMethodVisitor.LOGGER_PACKAGE_NAME + "LoggerQueue" :
+                                        SystemClassMethodVisitor.BRIDGE_CLASS,
+                                supportsInvokeDynamic && !isSystemClass ? RECORDING_SWITCH_BOOTSTRAP : null);
+                    }
+                    boolean savesValues = savedParameters.length != 0 || trueMethodConfig.isSaveReturnValue();
+                    if (settings.probeMode == ProbeMode.COMPACT && !savesValues && (hasSystemCL || isSystemClass)) {
+                        return new CompactMethodVisitor(access, methodName, desc, mv, methodId, settings,
+                                isSystemClass ? SystemClassMethodVisitor.BRIDGE_CLASS :
+                                        ProfilingMethodVisitor.LOGGER_PACKAGE_NAME + "LoggerQueue", null);
+                    }
                     if (isSystemClass) {
-                        return new SystemClassMethodVisitor(access, methodName, desc, mv, className, hasSystemCL, trueMethodConfig);
+                        return new SystemClassMethodVisitor(access, methodName, desc, mv,
+                                trueMethodConfig, methodId, settings);
+                    } else if (hasSystemCL && settings.probeMode != ProbeMode.START_DATA) {
+                        return new LocalVariablesMethodVisitor(access, methodName, desc, mv,
+                                trueMethodConfig, methodId, settings);
                     } else {
-                        return new ProfilingMethodVisitor(access, methodName, desc, mv, className, hasSystemCL, trueMethodConfig);
+                        return new ProfilingMethodVisitor(access, methodName, desc, mv, hasSystemCL,
+                                trueMethodConfig, methodId, settings);
                     }
                 }
             }
@@ -5,58 +5,67 @@ import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.commons.AdviceAdapter;
 
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 class ProfilingMethodVisitor extends AdviceAdapter {
     private final static Pattern returnTypePattern = Pattern.compile("(?<=\\)).*"); // (?<=\)).*
-    private final static String LOGGER_PACKAGE_NAME = "com/github/kornilova_l/flamegraph/javaagent/logger/";
+    final static String LOGGER_PACKAGE_NAME = "com/github/kornilova_l/flamegraph/javaagent/logger/";
     private final static String PROXY_PACKAGE_NAME = "com/github/kornilova_l/flamegraph/proxy/";
     private final static String START_DATA_CLASS = PROXY_PACKAGE_NAME + "StartData";
     private final static String START_DATA_TYPE = "L" + START_DATA_CLASS + ";";
-    final String methodName;
-    final String className;
+    /**
+     * Id of method in {@link com.github.kornilova_l.flamegraph.javaagent.logger.MethodTable}.
+     * Probes pass it instead of class name, method name and description
+     */
+    private final int methodId;
     private final boolean hasSystemCL;
-    private final MethodConfig methodConfig;
+    final MethodConfig methodConfig;
+    private final ProbeSettings settings;
+    /**
+     * Minimal duration of recorded call in units of {@link ProbeSettings#timeUnit}
+     */
+    private final long durationThreshold;
     int startDataLocal;
     private final Label start = new Label();
     private final Label endOfTryCatch = new Label();
     final boolean saveReturnValue;
-    final String savedParameters;
 
 
     ProfilingMethodVisitor(int access, String methodName, String desc,
-                           MethodVisitor mv, String className, boolean hasSystemCL, MethodConfig methodConfig) {
+                           MethodVisitor mv, boolean hasSystemCL, MethodConfig methodConfig, int methodId,
+                           ProbeSettings settings) {
         super(ASM5, mv, access, methodName, desc);
-        this.className = className;
-        this.methodName = methodName;
+        this.methodId = methodId;
         this.hasSystemCL = hasSystemCL;
         this.methodConfig = methodConfig;
-        this.savedParameters = getSavedParameters();
+        this.settings = settings;
+        this.durationThreshold = settings.getDurationThreshold(methodConfig);
         saveReturnValue = methodConfig.isSaveReturnValue();
     }
 
-    private String getSavedParameters() {
-        List<Integer> indexes = new LinkedList<>();
+    /**
+     * @return indexes (starting from 1) of parameters that are saved by probe
+     */
+    static int[] getSavedParameters(MethodConfig methodConfig) {
         List<MethodConfig.Parameter> parameters = methodConfig.getParameters();
-        int length = parameters.size();
-        for (int i = 0; i < length; i++) {
-            if (parameters.get(i).isEnabled()) {
-                indexes.add(i + 1);
+        int countEnabledParams = 0;
+        for (MethodConfig.Parameter parameter : parameters) {
+            if (parameter.isEnabled()) {
+                countEnabledParams++;
             }
         }
-        StringBuilder stringBuilder = new StringBuilder();
-        length = indexes.size();
-        for (int i = 0; i < length; i++) {
-            stringBuilder.append(indexes.get(i));
-            if (i < length - 1) {
-                stringBuilder.append(",");
+        int[] indexes = new int[countEnabledParams];
+        int j = 0;
+        for (int i = 0; i < parameters.size(); i++) {
+            if (parameters.get(i).isEnabled()) {
+                indexes[j++] = i + 1;
             }
         }
-        return stringBuilder.toString();
+        return indexes;
     }
 
     private static int getSizeOfRetVal(int opcode) {
@@ -67,7 +76,7 @@ class ProfilingMethodVisitor extends AdviceAdapter {
         return 1;
     }
 
-    private static int getObjSize(String paramDesc) {
+    static int getObjSize(String paramDesc) {
         switch (paramDesc) {
             case "Z": // boolean
             case "I": // int
@@ -86,12 +95,15 @@ class ProfilingMethodVisitor extends AdviceAdapter {
 
     @Override
     protected void onMethodEnter() {
-        createStartData();
         saveStartData();
         mv.visitLabel(start); // try-catch beginning
     }
 
-    private void saveStartData() {
+    /**
+     * Saves everything that is needed on exit from method to local variables
+     */
+    void saveStartData() {
+        createStartData();
         startDataLocal = newLocal(org.objectweb.asm.Type.getType(START_DATA_TYPE));
         mv.visitVarInsn(ASTORE, startDataLocal);
     }
@@ -103,6 +115,15 @@ class ProfilingMethodVisitor extends AdviceAdapter {
         mv.visitTypeInsn(NEW, START_DATA_CLASS);
         dup();
         getTime();
+        loadArrayWithParameters();
+        mv.visitMethodInsn(INVOKESPECIAL, START_DATA_CLASS, "<init>", "(J[Ljava/lang/Object;)V", false);
+    }
+
+    /**
+     * Leaves on stack array with values of saved parameters
+     * or null if parameters are not saved
+     */
+    void loadArrayWithParameters() {
         int countEnabledParams = 0;
         for (MethodConfig.Parameter parameter : methodConfig.getParameters()) {
             if (parameter.isEnabled()) {
@@ -114,7 +135,6 @@ class ProfilingMethodVisitor extends AdviceAdapter {
         } else {
             loadNull();
         }
-        mv.visitMethodInsn(INVOKESPECIAL, START_DATA_CLASS, "<init>", "(J[Ljava/lang/Object;)V", false);
     }
 
     private void endTryCatch() {
@@ -125,8 +145,6 @@ class ProfilingMethodVisitor extends AdviceAdapter {
                                       // So code after it is executed if exception is thrown
         mv.visitLabel(handler);
 
-        maybeSaveThrowable();
-
         getIfWasThrownByMethod();
         Label athrowLabel = new Label(); // label before ATHROW instruction
         mv.visitJumpInsn(IFNE, athrowLabel); // if value on stack is not zero == if was thrown by method go to ATHROW
@@ -134,25 +152,13 @@ class ProfilingMethodVisitor extends AdviceAdapter {
 
         mv.visitLabel(athrowLabel);
 
-        maybeLoadThrowable();
-
         mv.visitInsn(ATHROW);
     }
 
-    void maybeSaveThrowable() {
-        /* throwable is saved in SystemClassMethodVisitor
-         * I added this method here to avoid unclear overrides */
-    }
-
-    void maybeLoadThrowable() {
-        /* throwable is loaded in SystemClassMethodVisitor
-         * I added this method here to avoid unclear overrides */
-    }
-
     private void prepareAndAddThrowableToQueue(Label athrowLabel) {
         saveExitTime();
-        getIfTimeIsMoreOneMs();
-        mv.visitJumpInsn(IFLE, athrowLabel); // if method took < 1ms
+        getIfDurationIsMoreThanThreshold();
+        mv.visitJumpInsn(IFLE, athrowLabel); // if method took less than threshold
         throwableAddToQueue();
     }
 
@@ -175,19 +181,24 @@ class ProfilingMethodVisitor extends AdviceAdapter {
         String description = null;
         switch (type) {
             case RetVal:
-                description = "(Ljava/lang/Object;JJ[Ljava/lang/Object;Ljava/lang/Thread;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;ZLjava/lang/String;)V";
+                description = "(Ljava/lang/Object;JJ[Ljava/lang/Object;Ljava/lang/Thread;I)V";
                 break;
             case Throwable:
-                description = "(Ljava/lang/Throwable;ZJJ[Ljava/lang/Object;Ljava/lang/Thread;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;ZLjava/lang/String;)V";
+                description = "(Ljava/lang/Throwable;ZJJ[Ljava/lang/Object;Ljava/lang/Thread;I)V";
                 break;
         }
+        mv.visitMethodInsn(INVOKESTATIC, getQueueClass(), "addToQueue", description, false);
+    }
+
+    /**
+     * @return internal name of class with static addToQueue methods
+     * that is visible to instrumented class
+     */
+    String getQueueClass() {
         if (hasSystemCL) {
-            mv.visitMethodInsn(INVOKESTATIC, LOGGER_PACKAGE_NAME + "LoggerQueue", "addToQueue",
-                    description, false);
-        } else {
-            mv.visitMethodInsn(INVOKESTATIC, PROXY_PACKAGE_NAME + "Proxy", "addToQueue",
-                    description, false);
+            return LOGGER_PACKAGE_NAME + "LoggerQueue";
         }
+        return PROXY_PACKAGE_NAME + "Proxy";
     }
 
     private void getArrayWithParameters(int arraySize) {
@@ -308,24 +319,24 @@ class ProfilingMethodVisitor extends AdviceAdapter {
         }
     }
 
-    private void getIsStatic() {
-        if (isStatic()) {
-            loadTrue();
-        } else {
-            loadFalse();
-        }
+    void loadMethodId() {
+        push(methodId);
     }
 
-    private void loadFalse() {
+    void loadFalse() {
         mv.visitInsn(ICONST_0);
     }
 
-    private void loadTrue() {
+    void loadTrue() {
         mv.visitInsn(ICONST_1);
     }
 
     void getTime() {
-        mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "currentTimeMillis", "()J", false);
+        if (settings.timeUnit == TimeUnit.NANOSECONDS) {
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+        } else {
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "currentTimeMillis", "()J", false);
+        }
     }
 
     void getThread() {
@@ -343,10 +354,10 @@ class ProfilingMethodVisitor extends AdviceAdapter {
         if (opcode == ATHROW) {
             setThrownByMethod(); // ignore this throwable in catch block
         }
-        getIfTimeIsMoreOneMs();
+        getIfDurationIsMoreThanThreshold();
 
         Label endOfIfBlockThatAddsEvent = addIfLess(); // end of if block
-        addToQueue(opcode); // this is executed if duration > 1ms
+        addToQueue(opcode); // this is executed if duration > threshold
         mv.visitLabel(endOfIfBlockThatAddsEvent); // end of if-block and try-catch block
         /* here is RETURN instruction. It is visited automatically */
     }
@@ -395,7 +406,6 @@ class ProfilingMethodVisitor extends AdviceAdapter {
             loadNull(); // there is nothing to save
         }
         getCommonExitData();
-        mv.visitLdcInsn(savedParameters);
         addToQueue(Type.RetVal);
     }
 
@@ -411,25 +421,15 @@ class ProfilingMethodVisitor extends AdviceAdapter {
             loadFalse();
         }
         getCommonExitData();
-        mv.visitLdcInsn(savedParameters);
         addToQueue(Type.Throwable);
     }
 
     private void getCommonExitData() {
-        getStartData();
-        mv.visitMethodInsn(INVOKEVIRTUAL, START_DATA_CLASS,
-                "getStartTime", "()J", false);
-        getStartData();
-        mv.visitMethodInsn(INVOKEVIRTUAL, START_DATA_CLASS,
-                "getDuration", "()J", false);
-        getStartData();
-        mv.visitMethodInsn(INVOKEVIRTUAL, START_DATA_CLASS,
-                "getParameters", "()[Ljava/lang/Object;", false);
+        loadStartTime();
+        loadDuration();
+        loadParameters();
         getThread();
-        mv.visitLdcInsn(className);
-        mv.visitLdcInsn(methodName);
-        mv.visitLdcInsn(methodDesc);
-        getIsStatic();
+        loadMethodId();
     }
 
     /**
@@ -450,21 +450,42 @@ class ProfilingMethodVisitor extends AdviceAdapter {
         mv.visitVarInsn(ALOAD, startDataLocal);
     }
 
+    void loadStartTime() {
+        getStartData();
+        mv.visitMethodInsn(INVOKEVIRTUAL, START_DATA_CLASS,
+                "getStartTime", "()J", false);
+    }
+
+    void loadDuration() {
+        getStartData();
+        mv.visitMethodInsn(INVOKEVIRTUAL, START_DATA_CLASS,
+                "getDuration", "()J", false);
+    }
+
+    void loadParameters() {
+        getStartData();
+        mv.visitMethodInsn(INVOKEVIRTUAL, START_DATA_CLASS,
+                "getParameters", "()[Ljava/lang/Object;", false);
+    }
+
     /**
-     * Adds boolean value to stack.
-     * The value is true if method took > 1ms
+     * Adds int value to stack.
+     * The value is positive if method took more than threshold
      */
-    void getIfTimeIsMoreOneMs() {
-        getStartData();
-        mv.visitMethodInsn(INVOKEVIRTUAL,
-                START_DATA_CLASS,
-                "getDuration",
-                "()J",
-                false);
-        mv.visitInsn(LCONST_1);
+    void getIfDurationIsMoreThanThreshold() {
+        loadDuration();
+        loadDurationThreshold();
         mv.visitInsn(LCMP);
     }
 
+    void loadDurationThreshold() {
+        if (durationThreshold == 0 || durationThreshold == 1) {
+            mv.visitInsn(LCONST_0 + (int) durationThreshold);
+        } else {
+            mv.visitLdcInsn(durationThreshold);
+        }
+    }
+
     private void retValToObj() {
         Matcher m = returnTypePattern.matcher(methodDesc);
         if (!m.find()) {
@@ -0,0 +1,123 @@
+package com.github.kornilova_l.flamegraph.javaagent.agent;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies new configuration to running application.
+ * Transformer gets new configuration, so classes that are loaded later are instrumented by it,
+ * and loaded classes are retransformed only if changed patterns are applicable to them
+ * (see {@link ConfigurationDiff}).
+ * <p>
+ * When recording stops transformer is removed and classes modified by it are retransformed back to original bytes,
+ * so application does not have probes until recording is started again
+ */
+class Reconfiguration {
+    private final Instrumentation inst;
+    private final ProfilingClassFileTransformer transformer;
+    private final ClassRetransformer retransformer;
+    /**
+     * False if system classes are not instrumented
+     */
+    private final boolean isBridgeInstalled;
+    private AgentConfigurationManager configurationManager;
+    private boolean isTransformerInstalled = true;
+
+    Reconfiguration(@NotNull Instrumentation inst,
+                    @NotNull ProfilingClassFileTransformer transformer,
+                    @NotNull ClassRetransformer retransformer,
+                    @NotNull AgentConfigurationManager configurationManager,
+                    boolean isBridgeInstalled) {
+        this.inst = inst;
+        this.transformer = transformer;
+        this.retransformer = retransformer;
+        this.configurationManager = configurationManager;
+        this.isBridgeInstalled = isBridgeInstalled;
+    }
+
+    /**
+     * It may be called from any thread
+     *
+     * @param methodConfigLines lines of new configuration file
+     */
+    synchronized void update(@NotNull List<String> methodConfigLines) {
+        AgentConfigurationManager newConfigurationManager = new AgentConfigurationManager(methodConfigLines);
+        ConfigurationDiff diff = new ConfigurationDiff(configurationManager, newConfigurationManager);
+        if (diff.isEmpty()) {
+            return;
+        }
+        System.out.println("Configuration is changed: " + diff);
+        newConfigurationManager.printConfiguration();
+        configurationManager = newConfigurationManager;
+        transformer.setConfigurationManager(newConfigurationManager);
+        if (!isTransformerInstalled) {
+            return; // classes are instrumented with new configuration when transformer is installed
+        }
+
+        List<Class<?>> changedClasses = new ArrayList<>();
+        for (Class<?> clazz : inst.getAllLoadedClasses()) {
+            boolean isSystemClass = clazz.getClassLoader() == null;
+            if ((isSystemClass && !isBridgeInstalled) || !inst.isModifiableClass(clazz)) {
+                continue;
+            }
+            if (diff.changesClass(clazz.getName(), isSystemClass)) {
+                changedClasses.add(clazz);
+            }
+        }
+        System.out.println(changedClasses.size() + " loaded classes will be retransformed");
+        retransformer.retransform(changedClasses);
+    }
+
+    /**
+     * Removes transformer and retransforms modified classes in calling thread,
+     * retransformation does not add probes because there is no transformer
+     *
+     * @return report with number of restored classes and time of restoring
+     */
+    @NotNull
+    synchronized String restoreClasses() throws InterruptedException {
+        if (!isTransformerInstalled) {
+            return "Classes are already restored";
+        }
+        inst.removeTransformer(transformer);
+        isTransformerInstalled = false;
+        long start = System.currentTimeMillis();
+        int[] modifiedCount = new int[1];
+        int restoredCount = retransformer.retransformNow(() -> {
+            List<Class<?>> modifiedClasses = transformer.findModifiedClasses(inst.getAllLoadedClasses());
+            modifiedCount[0] = modifiedClasses.size();
+            return modifiedClasses;
+        });
+        transformer.clearModifiedClasses();
+        return restoredCount + " of " + modifiedCount[0] + " modified classes are restored in " +
+                (System.currentTimeMillis() - start) + " ms";
+    }
+
+    /**
+     * Installs transformer after {@link #restoreClasses()}
+     * and retransforms loaded classes to which current configuration is applicable
+     */
+    synchronized void reinstall() {
+        if (isTransformerInstalled) {
+            return;
+        }
+        inst.addTransformer(transformer, true);
+        isTransformerInstalled = true;
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> clazz : inst.getAllLoadedClasses()) {
+            boolean isSystemClass = clazz.getClassLoader() == null;
+            if ((isSystemClass && !isBridgeInstalled) || !inst.isModifiableClass(clazz)) {
+                continue;
+            }
+            if (configurationManager.findIncludingConfigs(clazz.getName(), isSystemClass).size() != 0 ||
+                    (isSystemClass && transformer.isTaskSubmissionClass(clazz.getName().replace('.', '/')))) {
+                classes.add(clazz);
+            }
+        }
+        System.out.println(classes.size() + " loaded classes will be instrumented");
+        retransformer.retransform(classes);
+    }
+}
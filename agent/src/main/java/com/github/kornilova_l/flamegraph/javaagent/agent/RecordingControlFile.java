@@ -0,0 +1,86 @@
+package com.github.kornilova_l.flamegraph.javaagent.agent;
+
+import com.github.kornilova_l.flamegraph.bridge.RecordingSwitch;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Watches file that controls recording (javaagent option "control").
+ * If file contains "on" or "off" recording is turned on or off by {@link RecordingSwitch}.
+ * File is checked every {@link #CHECK_INTERVAL_MS}, it may be absent
+ */
+class RecordingControlFile implements Runnable {
+    private static final long CHECK_INTERVAL_MS = 500;
+    private final File file;
+    private long lastModified = 0;
+
+    RecordingControlFile(@NotNull File file) {
+        this.file = file;
+    }
+
+    static void watch(@NotNull File file) {
+        Thread thread = new Thread(new RecordingControlFile(file), "recording control");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            check();
+            try {
+                Thread.sleep(CHECK_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void check() {
+        long modified = file.lastModified(); // 0 if file does not exist
+        if (modified == 0 || modified == lastModified) {
+            return;
+        }
+        lastModified = modified;
+        Boolean isRecording = parseState(readFirstLine());
+        if (isRecording == null) {
+            System.out.println("Control file must contain on or off: " + file);
+            return;
+        }
+        if (isRecording != RecordingSwitch.isRecording()) {
+            System.out.println("Recording is turned " + (isRecording ? "on" : "off") + " by " + file);
+            RecordingSwitch.setRecording(isRecording);
+        }
+    }
+
+    @NotNull
+    private String readFirstLine() {
+        try {
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            return lines.isEmpty() ? "" : lines.get(0);
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    /**
+     * @return true for "on", false for "off" or null if value is unknown
+     */
+    @Nullable
+    static Boolean parseState(@NotNull String value) {
+        switch (value.trim()) {
+            case "on":
+                return true;
+            case "off":
+                return false;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.github.kornilova_l.flamegraph.javaagent.agent;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Instruments executors, so task runs with context that was captured at submission
+ * and its waiting in queue is recorded.
+ * Tasks are not replaced: submission is attached to task when it is submitted
+ * ({@link com.github.kornilova_l.flamegraph.bridge.Bridge#attachSubmission(Object, Object)})
+ * and it is taken when executor starts the task. So hooks of executor (beforeExecute(), afterExecute()),
+ * its queue, remove() and shutdownNow() see the task that was submitted.
+ * <p>
+ * ThreadPoolExecutor runs tasks with Bridge.runTask() instead of task.run(),
+ * ForkJoinTask takes its submission when it is executed.
+ * ForkJoinPool adapts Runnable and Callable that are not ForkJoinTasks to its own tasks that are never exposed,
+ * so such tasks are wrapped ({@link com.github.kornilova_l.flamegraph.bridge.Bridge#wrap(Runnable, Object)}).
+ * Async stages of CompletableFuture are submitted by Executor.execute(), so they are covered too.
+ * <p>
+ * Executors are system classes, so they are instrumented only if Bridge is in bootstrap class path
+ */
+class TaskSubmissionClassVisitor extends ClassVisitor {
+    private static final String BRIDGE = "com/github/kornilova_l/flamegraph/bridge/Bridge";
+    private static final String RUNNABLE = "Ljava/lang/Runnable;";
+    private static final String CALLABLE = "Ljava/util/concurrent/Callable;";
+    private static final String FORK_JOIN_TASK = "Ljava/util/concurrent/ForkJoinTask;";
+    /**
+     * Internal name of class -> name + descriptor of method -> how method is instrumented
+     */
+    private static final Map<String, Map<String, Hook>> HOOKS = new HashMap<>();
+
+    static {
+        Map<String, Hook> threadPoolExecutor = new HashMap<>();
+        /* AbstractExecutorService.submit() and invokeAll() call execute() with FutureTask */
+        threadPoolExecutor.put("execute(" + RUNNABLE + ")V", Hook.ATTACH_SUBMISSION);
+        threadPoolExecutor.put("runWorker(Ljava/util/concurrent/ThreadPoolExecutor$Worker;)V", Hook.RUN_TASKS);
+        HOOKS.put("java/util/concurrent/ThreadPoolExecutor", threadPoolExecutor);
+
+        Map<String, Hook> scheduledThreadPoolExecutor = new HashMap<>();
+        /* execute(), submit() and schedule() pass decorated ScheduledFutureTask to delayedExecute() */
+        scheduledThreadPoolExecutor.put("delayedExecute(Ljava/util/concurrent/RunnableScheduledFuture;)V",
+                Hook.ATTACH_SUBMISSION);
+        HOOKS.put("java/util/concurrent/ScheduledThreadPoolExecutor", scheduledThreadPoolExecutor);
+
+        Map<String, Hook> forkJoinPool = new HashMap<>();
+        forkJoinPool.put("execute(" + RUNNABLE + ")V", Hook.WRAP_TASK);
+        forkJoinPool.put("submit(" + RUNNABLE + ")" + FORK_JOIN_TASK, Hook.WRAP_TASK);
+        forkJoinPool.put("submit(" + CALLABLE + ")" + FORK_JOIN_TASK, Hook.WRAP_TASK);
+        forkJoinPool.put("execute(" + FORK_JOIN_TASK + ")V", Hook.ATTACH_SUBMISSION);
+        forkJoinPool.put("submit(" + FORK_JOIN_TASK + ")" + FORK_JOIN_TASK, Hook.ATTACH_SUBMISSION);
+        forkJoinPool.put("invoke(" + FORK_JOIN_TASK + ")Ljava/lang/Object;", Hook.ATTACH_SUBMISSION);
+        /* JDK 19+ */
+        forkJoinPool.put("externalSubmit(" + FORK_JOIN_TASK + ")" + FORK_JOIN_TASK, Hook.ATTACH_SUBMISSION);
+        forkJoinPool.put("lazySubmit(" + FORK_JOIN_TASK + ")" + FORK_JOIN_TASK, Hook.ATTACH_SUBMISSION);
+        HOOKS.put("java/util/concurrent/ForkJoinPool", forkJoinPool);
+
+        Map<String, Hook> forkJoinTask = new HashMap<>();
+        forkJoinTask.put("doExec()I", Hook.EXEC_TASK);
+        HOOKS.put("java/util/concurrent/ForkJoinTask", forkJoinTask);
+    }
+
+    enum Hook {
+        /**
+         * Bridge.attachSubmission(task, this) is called before the first instruction. Task is the first parameter
+         */
+        ATTACH_SUBMISSION,
+        /**
+         * Task (the first parameter) is replaced with Bridge.wrap(task, this) before the first instruction
+         */
+        WRAP_TASK,
+        /**
+         * Calls of Runnable.run() are replaced with Bridge.runTask(Runnable)
+         */
+        RUN_TASKS,
+        /**
+         * Bridge.startTask(this) is called at the beginning of method and Bridge.finishTask() at each exit
+         */
+        EXEC_TASK
+    }
+
+    private final Map<String, Hook> hooks;
+
+    /**
+     * @param className class for which {@link #isSubmissionClass(String)} is true
+     */
+    TaskSubmissionClassVisitor(ClassVisitor cv, String className) {
+        this(cv, HOOKS.get(className));
+    }
+
+    /**
+     * @param hooks name + descriptor of method -> how method is instrumented
+     */
+    TaskSubmissionClassVisitor(ClassVisitor cv, Map<String, Hook> hooks) {
+        super(Opcodes.ASM5, cv);
+        this.hooks = hooks;
+    }
+
+    /**
+     * @param className internal name of system class
+     */
+    static boolean isSubmissionClass(String className) {
+        return HOOKS.containsKey(className);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+        if ((access & (Opcodes.ACC_STATIC | Opcodes.ACC_ABSTRACT)) != 0) {
+            return mv;
+        }
+        Hook hook = hooks.get(name + desc);
+        if (hook == null) {
+            return mv;
+        }
+        switch (hook) {
+            case ATTACH_SUBMISSION:
+                return new SubmissionMethodVisitor(mv, null);
+            case WRAP_TASK:
+                return new SubmissionMethodVisitor(mv, Type.getArgumentTypes(desc)[0].getDescriptor());
+            case RUN_TASKS:
+                return new RunTasksMethodVisitor(mv);
+            case EXEC_TASK:
+                return new ExecTaskMethodVisitor(access, name, desc, mv);
+        }
+        return mv;
+    }
+
+    /**
+     * Inserts Bridge.attachSubmission(task, this) or task = Bridge.wrap(task, this) before the first instruction
+     */
+    private static class SubmissionMethodVisitor extends MethodVisitor {
+        /**
+         * Descriptor of task type if task is wrapped
+         */
+        private final String wrappedType;
+
+        SubmissionMethodVisitor(MethodVisitor mv, String wrappedType) {
+            super(Opcodes.ASM5, mv);
+            this.wrappedType = wrappedType;
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            if (wrappedType == null) {
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, BRIDGE, "attachSubmission",
+                        "(Ljava/lang/Object;Ljava/lang/Object;)V", false);
+            } else {
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, BRIDGE, "wrap",
+                        "(" + wrappedType + "Ljava/lang/Object;)" + wrappedType, false);
+                mv.visitVarInsn(Opcodes.ASTORE, 1);
+            }
+        }
+    }
+
+    /**
+     * Replaces task.run() with Bridge.runTask(task). Stack is the same before and after the call
+     */
+    private static class RunTasksMethodVisitor extends MethodVisitor {
+        RunTasksMethodVisitor(MethodVisitor mv) {
+            super(Opcodes.ASM5, mv);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+            if (opcode == Opcodes.INVOKEINTERFACE && owner.equals("java/lang/Runnable") &&
+                    name.equals("run") && desc.equals("()V")) {
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, BRIDGE, "runTask", "(" + RUNNABLE + ")V", false);
+                return;
+            }
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+        }
+    }
+
+    /**
+     * Entry stores result of Bridge.startTask(this) to local variable,
+     * each return and the only exception handler pass it to Bridge.finishTask()
+     * (handler rethrows throwable, like handler of {@link CompactMethodVisitor})
+     */
+    private static class ExecTaskMethodVisitor extends AdviceAdapter {
+        private final Label start = new Label();
+        private int previousLocal;
+
+        ExecTaskMethodVisitor(int access, String name, String desc, MethodVisitor mv) {
+            super(ASM5, mv, access, name, desc);
+        }
+
+        @Override
+        protected void onMethodEnter() {
+            loadThis();
+            mv.visitMethodInsn(INVOKESTATIC, BRIDGE, "startTask", "(Ljava/lang/Object;)Ljava/lang/Object;", false);
+            previousLocal = newLocal(Type.getType(Object.class));
+            mv.visitVarInsn(ASTORE, previousLocal);
+            mv.visitLabel(start);
+        }
+
+        @Override
+        protected void onMethodExit(int opcode) {
+            if (opcode == ATHROW) { // task is finished by handler
+                return;
+            }
+            finishTask();
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            Label endOfTryCatch = new Label();
+            Label handler = new Label();
+            mv.visitTryCatchBlock(start, endOfTryCatch, handler, null);
+            mv.visitLabel(endOfTryCatch);
+            mv.visitLabel(handler);
+            finishTask();
+            mv.visitInsn(ATHROW);
+            super.visitMaxs(maxStack, maxLocals);
+        }
+
+        private void finishTask() {
+            mv.visitVarInsn(ALOAD, previousLocal);
+            mv.visitMethodInsn(INVOKESTATIC, BRIDGE, "finishTask", "(Ljava/lang/Object;)V", false);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import com.github.kornilova_l.libs.com.google.protobuf.CodedOutputStream;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes delimited events to single output file.
+ * File channel is opened when the first event is written and it stays open for the whole recording.
+ * <p>
+ * Events are encoded to one of two direct buffers. When the buffer is full or {@link #flush()} is called
+ * it is passed to flushing thread which writes it to channel, and events are encoded to the other buffer.
+ * If the other buffer is not written yet, writing waits for it.
+ * <p>
+ * If flushing thread fails to write a buffer, the failure is kept and thrown by {@link #flush()},
+ * {@link #sync()} and {@link #close()}. Events of this buffer and of all later buffers are counted as lost,
+ * so output is not continued after a gap.
+ * <p>
+ * All methods except counters getters and {@link #isFlushing()} are called by logging thread
+ */
+class ChannelEventWriter extends EventWriter {
+    static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    private final File file;
+    /**
+     * Filled buffers that are waiting for flushing thread
+     */
+    private final BlockingQueue<ByteBuffer> filledBuffers = new ArrayBlockingQueue<>(2);
+    /**
+     * Number of events in each buffer of {@link #filledBuffers}, in the same order
+     */
+    private final BlockingQueue<Long> filledBuffersEvents = new ArrayBlockingQueue<>(2);
+    /**
+     * Value of {@link #eventsWritten} when current buffer was started
+     */
+    private long bufferStartEvents = 0;
+    /**
+     * Buffers that were written by flushing thread
+     */
+    private final BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<>(2);
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    /**
+     * Number of buffers that were passed to flushing thread and are not written yet
+     */
+    private final AtomicInteger buffersInFlight = new AtomicInteger();
+    /**
+     * Logging thread that waits until {@link #buffersInFlight} is 0. Flushing thread unparks it
+     */
+    private volatile Thread flushWaiter;
+    /**
+     * The first failure of flushing thread
+     */
+    private volatile IOException flushFailure;
+    /**
+     * Events that were encoded but were not written because of {@link #flushFailure}.
+     * It is updated only by flushing thread
+     */
+    private volatile long eventsNotFlushed = 0;
+
+    ChannelEventWriter(@NotNull File file, int bufferSize) {
+        this.file = file;
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+        freeBuffers.add(ByteBuffer.allocateDirect(bufferSize));
+        codedOutputStream = CodedOutputStream.newInstance(buffer);
+    }
+
+    /**
+     * Swaps buffers if bytes do not fit in current buffer
+     *
+     * @return false if bytes do not fit in buffer
+     */
+    @Override
+    boolean reserve(int size) throws IOException {
+        if (size > codedOutputStream.spaceLeft()) {
+            swapBuffers();
+            return size <= codedOutputStream.spaceLeft();
+        }
+        return true;
+    }
+
+    @Override
+    void writeDirectly(byte[] bytes) throws IOException {
+        awaitFlushed();
+        checkFlushFailure();
+        writeToChannel(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Passes encoded events to flushing thread. It does not wait until they are written
+     *
+     * @throws IOException if flushing thread failed to write some events
+     */
+    @Override
+    void flush() throws IOException {
+        passCurrentBuffer();
+        checkFlushFailure();
+    }
+
+    private void passCurrentBuffer() throws IOException {
+        codedOutputStream.flush();
+        if (buffer.position() != 0) {
+            swapBuffers();
+        }
+    }
+
+    private void checkFlushFailure() throws IOException {
+        IOException failure = flushFailure;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void swapBuffers() throws IOException {
+        codedOutputStream.flush(); // sets position of buffer
+        buffer.flip();
+        buffersInFlight.incrementAndGet();
+        filledBuffersEvents.add(eventsWritten - bufferStartEvents);
+        bufferStartEvents = eventsWritten;
+        filledBuffers.add(buffer);
+        try {
+            buffer = freeBuffers.take();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        buffer.clear();
+        codedOutputStream = CodedOutputStream.newInstance(buffer);
+    }
+
+    /**
+     * Waits until all buffers passed to flushing thread are written
+     */
+    private void awaitFlushed() throws IOException {
+        flushWaiter = Thread.currentThread();
+        try {
+            while (buffersInFlight.get() != 0) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new IOException(new InterruptedException());
+                }
+            }
+        } finally {
+            flushWaiter = null;
+        }
+    }
+
+    @Override
+    void start() {
+        Thread flushingThread = new Thread(this::runFlushing, "flushing thread");
+        flushingThread.setDaemon(true);
+        flushingThread.start();
+    }
+
+    /**
+     * @throws IOException if flushing thread failed to write some events
+     */
+    @Override
+    void sync() throws IOException {
+        passCurrentBuffer();
+        awaitFlushed();
+        checkFlushFailure();
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Writes all encoded events, forces them to disk and closes file.
+     * Events that are written after this are dropped, file is not opened again
+     *
+     * @throws IOException if flushing thread failed to write some events (file is closed anyway)
+     */
+    @Override
+    void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            isClosed = true;
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Body of flushing thread
+     */
+    void runFlushing() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            try {
+                ByteBuffer filledBuffer = filledBuffers.take();
+                long events = filledBuffersEvents.take();
+                if (flushFailure == null) {
+                    try {
+                        writeToChannel(filledBuffer);
+                    } catch (IOException e) {
+                        flushFailure = e;
+                    }
+                }
+                if (flushFailure != null) {
+                    eventsNotFlushed += events;
+                }
+                freeBuffers.add(filledBuffer);
+                buffersInFlight.decrementAndGet();
+                Thread waiter = flushWaiter;
+                if (waiter != null) {
+                    LockSupport.unpark(waiter);
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * It is called either by flushing thread or by logging thread when no buffer is in flight
+     */
+    private void writeToChannel(ByteBuffer byteBuffer) throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        while (byteBuffer.hasRemaining()) {
+            bytesWritten += channel.write(byteBuffer);
+        }
+    }
+
+    @Override
+    boolean isFlushing() {
+        return buffersInFlight.get() != 0;
+    }
+
+    @Override
+    long getEventsWritten() {
+        return eventsWritten - eventsNotFlushed;
+    }
+
+    @Override
+    long getEventsLost() {
+        return eventsLost + eventsNotFlushed;
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decides when logging thread drains rings.
+ * Logging thread waits until it is signalled by producer or until timeout.
+ * Producer signals when its ring is filled above threshold or when logging thread is idle.
+ * <p>
+ * Signal does not take locks: producer reads {@link #isSignalled} and only the first producer
+ * after logging thread started waiting unparks it, so unpark is called at most once per wait
+ */
+class DrainScheduler {
+    private volatile Thread waiter;
+    private volatile boolean isSignalled = false;
+    /**
+     * True if logging thread found no events last time and waits for the first one
+     */
+    private volatile boolean isIdle = false;
+
+    /**
+     * It is called by producers
+     */
+    void signal() {
+        if (!isSignalled) {
+            isSignalled = true;
+            Thread waiter = this.waiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    boolean isIdle() {
+        return isIdle;
+    }
+
+    /**
+     * It is called by logging thread.
+     * Returns when producer signals, when timeout elapses or spuriously
+     *
+     * @param idle if true producers signal on any new event
+     */
+    void await(long timeoutNanos, boolean idle) {
+        waiter = Thread.currentThread();
+        isIdle = idle;
+        if (!isSignalled && timeoutNanos > 0) {
+            LockSupport.parkNanos(this, timeoutNanos);
+        }
+        isIdle = false;
+        isSignalled = false;
+    }
+}
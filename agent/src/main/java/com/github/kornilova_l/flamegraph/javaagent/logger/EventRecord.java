@@ -0,0 +1,202 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import java.util.Arrays;
+
+/**
+ * Saved parameters and return value of a method call.
+ * Primitive values are kept in typed slots so they are never boxed:
+ * integral types, float and double are stored as raw bits in {@link #primitives}.
+ * <p>
+ * Each thread has one record which is filled by probe right before the event is added to queue
+ * (see {@link LoggerQueue#getEventRecord()}). Values are moved to record of ring slot
+ * and thread's record is reset.
+ */
+public class EventRecord {
+    /**
+     * Type of value that was not set
+     */
+    public static final char NONE = 0;
+    /**
+     * Type of object value. Other types are the same as in method description: I, J, Z, C, S, B, F, D
+     */
+    public static final char OBJECT = 'L';
+    private static final int INITIAL_CAPACITY = 4;
+    private char[] types;
+    private long[] primitives;
+    private Object[] objects;
+    private int size = 0;
+    private char returnType = NONE;
+    private long returnPrimitive;
+    private Object returnObject;
+
+    public EventRecord() {
+        this(INITIAL_CAPACITY);
+    }
+
+    private EventRecord(int capacity) {
+        types = new char[capacity];
+        primitives = new long[capacity];
+        objects = new Object[capacity];
+    }
+
+    public void addParameter(int value) {
+        add('I', value);
+    }
+
+    public void addParameter(long value) {
+        add('J', value);
+    }
+
+    public void addParameter(boolean value) {
+        add('Z', value ? 1 : 0);
+    }
+
+    public void addParameter(char value) {
+        add('C', value);
+    }
+
+    public void addParameter(short value) {
+        add('S', value);
+    }
+
+    public void addParameter(byte value) {
+        add('B', value);
+    }
+
+    public void addParameter(float value) {
+        add('F', Float.floatToRawIntBits(value));
+    }
+
+    public void addParameter(double value) {
+        add('D', Double.doubleToRawLongBits(value));
+    }
+
+    public void addParameter(Object value) {
+        ensureCapacity();
+        types[size] = OBJECT;
+        objects[size++] = value;
+    }
+
+    private void add(char type, long bits) {
+        ensureCapacity();
+        types[size] = type;
+        primitives[size++] = bits;
+    }
+
+    private void ensureCapacity() {
+        if (size == types.length) {
+            types = Arrays.copyOf(types, size * 2);
+            primitives = Arrays.copyOf(primitives, size * 2);
+            objects = Arrays.copyOf(objects, size * 2);
+        }
+    }
+
+    public void setReturnValue(int value) {
+        setReturnPrimitive('I', value);
+    }
+
+    public void setReturnValue(long value) {
+        setReturnPrimitive('J', value);
+    }
+
+    public void setReturnValue(boolean value) {
+        setReturnPrimitive('Z', value ? 1 : 0);
+    }
+
+    public void setReturnValue(char value) {
+        setReturnPrimitive('C', value);
+    }
+
+    public void setReturnValue(short value) {
+        setReturnPrimitive('S', value);
+    }
+
+    public void setReturnValue(byte value) {
+        setReturnPrimitive('B', value);
+    }
+
+    public void setReturnValue(float value) {
+        setReturnPrimitive('F', Float.floatToRawIntBits(value));
+    }
+
+    public void setReturnValue(double value) {
+        setReturnPrimitive('D', Double.doubleToRawLongBits(value));
+    }
+
+    public void setReturnValue(Object value) {
+        returnType = OBJECT;
+        returnObject = value;
+    }
+
+    private void setReturnPrimitive(char type, long bits) {
+        returnType = type;
+        returnPrimitive = bits;
+    }
+
+    /**
+     * Copies values to target record (its arrays are reused if they are big enough).
+     * Current record becomes empty
+     */
+    public void moveTo(EventRecord target) {
+        if (target.types.length < size) {
+            target.types = new char[size];
+            target.primitives = new long[size];
+            target.objects = new Object[size];
+        } else {
+            clearObjects(target.objects, size, target.size);
+        }
+        System.arraycopy(types, 0, target.types, 0, size);
+        System.arraycopy(primitives, 0, target.primitives, 0, size);
+        System.arraycopy(objects, 0, target.objects, 0, size);
+        target.size = size;
+        target.returnType = returnType;
+        target.returnPrimitive = returnPrimitive;
+        target.returnObject = returnObject;
+        reset();
+    }
+
+    public void reset() {
+        clearObjects(objects, 0, size); // do not keep references to user objects
+        size = 0;
+        returnType = NONE;
+        returnObject = null;
+    }
+
+    /**
+     * Records are moved while slot of ring is claimed, so Arrays.fill() is not used:
+     * it may be instrumented and its event would be dropped
+     */
+    private static void clearObjects(Object[] objects, int from, int to) {
+        for (int i = from; i < to; i++) {
+            objects[i] = null;
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public char getType(int i) {
+        return types[i];
+    }
+
+    public long getPrimitive(int i) {
+        return primitives[i];
+    }
+
+    public Object getObject(int i) {
+        return objects[i];
+    }
+
+    public char getReturnType() {
+        return returnType;
+    }
+
+    public long getReturnPrimitive() {
+        return returnPrimitive;
+    }
+
+    public Object getReturnObject() {
+        return returnObject;
+    }
+}
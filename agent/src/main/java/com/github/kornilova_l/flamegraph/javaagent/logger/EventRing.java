@@ -0,0 +1,420 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.AsyncContext;
+import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.MethodEventData;
+import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.RecordedThread;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Single-producer/single-consumer ring of preallocated slots.
+ * Each thread that records events has its own ring (producer is owner of ring)
+ * and logging thread drains all rings (it is consumer).
+ * <p>
+ * Producer fills slot at {@link #tail} and then publishes it by ordered write of tail.
+ * Consumer takes slots from {@link #head} by CAS, converts them to events, clears them
+ * and then releases them by ordered write of {@link #consumed}.
+ * Head is changed by CAS because with {@link OverflowPolicy#DROP_OLDEST} producer also takes the oldest slot
+ * (only if consumer is not reading slots at the moment).
+ * If ring is full the event is handled according to {@link OverflowPolicy}
+ * <p>
+ * Ring may be shared by several threads (virtual threads, see {@link LoggerQueue}).
+ * Then producer must hold lease of ring ({@link #tryLease()}) from claim to publish,
+ * so there is still one producer at a time
+ * <p>
+ * Producer may call instrumented method between claim and publish (for example Arrays.fill()
+ * if java.* classes are instrumented). Event of such nested call is dropped,
+ * because it would get the same slot as the event that is being filled
+ */
+class EventRing {
+    private static final AtomicLongFieldUpdater<EventRing> HEAD =
+            AtomicLongFieldUpdater.newUpdater(EventRing.class, "head");
+    private static final AtomicLongFieldUpdater<EventRing> CONSUMED =
+            AtomicLongFieldUpdater.newUpdater(EventRing.class, "consumed");
+    private static final AtomicLongFieldUpdater<EventRing> TAIL =
+            AtomicLongFieldUpdater.newUpdater(EventRing.class, "tail");
+    private static final AtomicIntegerFieldUpdater<EventRing> LEASED =
+            AtomicIntegerFieldUpdater.newUpdater(EventRing.class, "leased");
+    private static final AtomicLongFieldUpdater<EventRing> DROPPED_UNLEASED =
+            AtomicLongFieldUpdater.newUpdater(EventRing.class, "droppedUnleased");
+    /**
+     * {@link OverflowPolicy#SAMPLE} records every (2 ^ MAX_SAMPLING_LEVEL)th event at most
+     */
+    private static final int MAX_SAMPLING_LEVEL = 3;
+    private final MethodEventData[] slots;
+    private final int mask;
+    /**
+     * Owner of ring. It is null if ring is shared
+     */
+    @Nullable
+    private final Thread thread;
+    /**
+     * It is set to all slots, so producer does not look up identity of thread on each event
+     */
+    private final RecordedThread recordedThread;
+    private final boolean isShared;
+    /**
+     * 1 if producer of shared ring is between claim and publish
+     */
+    private volatile int leased = 0;
+    private final OverflowPolicy overflowPolicy;
+    @Nullable
+    private final OverflowQueue overflowQueue;
+    /**
+     * Producer fills this slot instead of ring slot if event is spilled.
+     * It is null if overflow policy is not {@link OverflowPolicy#SPILL}
+     */
+    private final MethodEventData spillSlot;
+    /**
+     * Index of next slot that will be taken by consumer
+     */
+    private volatile long head = 0;
+    /**
+     * Slots before this index may be filled again
+     */
+    private volatile long consumed = 0;
+    /**
+     * Index of next slot that will be filled by producer
+     */
+    private volatile long tail = 0;
+    /**
+     * Value of consumed that was seen by producer last time.
+     * It is read and written only by producer so volatile consumed is read only when
+     * occupied size (by cached value) reaches {@link #refreshSize}
+     */
+    private long cachedConsumed = 0;
+    private final long refreshSize;
+    /**
+     * True if slot returned by last {@link #claim()} is {@link #spillSlot}. Used only by producer
+     */
+    private boolean isSpilling = false;
+    /**
+     * True between {@link #claim()} that returned slot and {@link #publish()}. Used only by producer
+     */
+    private boolean isClaimed = false;
+    /**
+     * Context of task that owner of ring runs at the moment (see {@link LoggerQueue#swapContext(AsyncContext)}).
+     * It is not used by shared ring. Used only by producer
+     */
+    @Nullable
+    private AsyncContext context;
+    private int sampleCounter = 0;
+    private volatile long dropped = 0;
+    /**
+     * Events of threads that could not lease shared ring. It is changed by several threads
+     */
+    private volatile long droppedUnleased = 0;
+    private volatile long spilled = 0;
+    private volatile long highWaterMark = 0;
+    /**
+     * Value of {@link #dropped} that was written to recording. Used only by consumer
+     */
+    private long reportedDropped = 0;
+    /**
+     * Logging thread is signalled when this number of slots is occupied. It is null in tests
+     */
+    @Nullable
+    private final DrainScheduler drainScheduler;
+    private final long signalSize;
+
+    EventRing(@NotNull Thread thread, int capacity) {
+        this(thread, capacity, OverflowPolicy.DROP_NEWEST, null);
+    }
+
+    /**
+     * @param capacity      is rounded up to power of two
+     * @param overflowQueue must be set for {@link OverflowPolicy#SPILL}
+     */
+    EventRing(@NotNull Thread thread,
+              int capacity,
+              @NotNull OverflowPolicy overflowPolicy,
+              @Nullable OverflowQueue overflowQueue) {
+        this(thread, capacity, overflowPolicy, overflowQueue, null, capacity);
+    }
+
+    /**
+     * @param drainScheduler is signalled when ring has at least signalSize events
+     *                       or when logging thread waits for any event
+     */
+    EventRing(@NotNull Thread thread,
+              int capacity,
+              @NotNull OverflowPolicy overflowPolicy,
+              @Nullable OverflowQueue overflowQueue,
+              @Nullable DrainScheduler drainScheduler,
+              int signalSize) {
+        this(RecordedThread.of(thread), false, capacity, overflowPolicy, overflowQueue, drainScheduler, signalSize);
+    }
+
+    /**
+     * @param owner    thread or group of threads which events are added to ring
+     * @param isShared if true several threads add events to ring, so producer must lease ring
+     */
+    EventRing(@NotNull RecordedThread owner,
+              boolean isShared,
+              int capacity,
+              @NotNull OverflowPolicy overflowPolicy,
+              @Nullable OverflowQueue overflowQueue,
+              @Nullable DrainScheduler drainScheduler,
+              int signalSize) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        thread = owner.getThread();
+        recordedThread = owner;
+        this.isShared = isShared;
+        slots = new MethodEventData[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new MethodEventData(recordedThread);
+        }
+        mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.overflowQueue = overflowQueue;
+        spillSlot = overflowPolicy == OverflowPolicy.SPILL ? new MethodEventData(recordedThread) : null;
+        refreshSize = overflowPolicy == OverflowPolicy.SAMPLE ? size / 2 : size;
+        this.drainScheduler = drainScheduler;
+        this.signalSize = Math.max(1, Math.min(signalSize, size));
+    }
+
+    /**
+     * Called only by owner of ring.
+     * If slot is returned it must be filled and passed to {@link #publish()}
+     *
+     * @return free slot or null if event must not be recorded (it is counted as dropped)
+     */
+    @Nullable
+    MethodEventData claim() {
+        if (isClaimed) { // nested call of producer
+            dropped++;
+            return null;
+        }
+        long tail = this.tail;
+        long size = tail - cachedConsumed;
+        if (size >= refreshSize) {
+            cachedConsumed = consumed;
+            size = tail - cachedConsumed;
+        }
+        if (size >= slots.length) {
+            return claimOnOverflow(tail);
+        }
+        return claimSlot(tail, size);
+    }
+
+    /**
+     * @param size number of occupied slots
+     */
+    @Nullable
+    private MethodEventData claimSlot(long tail, long size) {
+        if (overflowPolicy == OverflowPolicy.SAMPLE && !isSampled(size)) {
+            dropped++; // single writer
+            return null;
+        }
+        if (size + 1 > highWaterMark) {
+            highWaterMark = size + 1;
+        }
+        isSpilling = false;
+        isClaimed = true;
+        return slots[(int) tail & mask];
+    }
+
+    @Nullable
+    private MethodEventData claimOnOverflow(long tail) {
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                long consumed = this.consumed; // must be read before head
+                long head = this.head;
+                if (tail - consumed < slots.length) { // consumer released slots after size was checked
+                    cachedConsumed = consumed;
+                    return claimSlot(tail, tail - consumed);
+                }
+                if (head == consumed && HEAD.compareAndSet(this, head, head + 1)) {
+                    /* ring is full so the oldest slot is also the slot at tail */
+                    MethodEventData slot = slots[(int) head & mask];
+                    slot.clear();
+                    this.consumed = head + 1;
+                    cachedConsumed = head + 1;
+                    dropped++;
+                    isSpilling = false;
+                    isClaimed = true;
+                    return slot;
+                }
+                break;
+            case SPILL:
+                if (overflowQueue.hasSpace()) {
+                    isSpilling = true;
+                    isClaimed = true;
+                    return spillSlot;
+                }
+                break;
+        }
+        dropped++;
+        return null;
+    }
+
+    /**
+     * If more than half of ring is occupied, every 2nd event is recorded,
+     * more than 3/4 - every 4th and so on
+     */
+    private boolean isSampled(long size) {
+        long free = slots.length - size;
+        int level = 0;
+        for (long part = slots.length >> 1; free < part && level < MAX_SAMPLING_LEVEL; part >>= 1) {
+            level++;
+        }
+        return (sampleCounter++ & ((1 << level) - 1)) == 0;
+    }
+
+    /**
+     * Called only by owner of ring after slot returned by {@link #claim()} is filled
+     */
+    void publish() {
+        if (isSpilling) {
+            spill(); // slot stays claimed, so events of nested calls are dropped instead of being spilled again
+            isClaimed = false;
+            if (drainScheduler != null) {
+                drainScheduler.signal(); // ring is full
+            }
+            return;
+        }
+        isClaimed = false;
+        long tail = this.tail + 1;
+        TAIL.lazySet(this, tail);
+        /* cached value of consumed is used, so size may be bigger than actual size */
+        if (drainScheduler != null && (tail - cachedConsumed >= signalSize || drainScheduler.isIdle())) {
+            drainScheduler.signal();
+        }
+    }
+
+    /**
+     * Event is not converted here because conversion calls toString() of parameters
+     * that may be slow or may call instrumented methods
+     */
+    private void spill() {
+        MethodEventData spilledSlot = new MethodEventData(recordedThread);
+        spillSlot.moveTo(spilledSlot);
+        spillSlot.clear();
+        if (overflowQueue.offer(spilledSlot)) {
+            spilled++;
+        } else {
+            dropped++;
+        }
+    }
+
+    /**
+     * Called only by logging thread
+     *
+     * @param maxCount maximum number of events that are passed to consumer
+     * @return number of drained events
+     */
+    int drain(@NotNull SlotConsumer consumer, int maxCount) {
+        while (true) {
+            long head = this.head;
+            long available = Math.min(tail - head, maxCount);
+            if (available <= 0) {
+                return 0;
+            }
+            if (HEAD.compareAndSet(this, head, head + available)) {
+                for (int i = 0; i < available; i++) {
+                    MethodEventData slot = slots[(int) (head + i) & mask];
+                    consumer.accept(slot);
+                    slot.clear();
+                }
+                while (consumed != head) { // producer that took the oldest slot has not released it yet
+                    Thread.yield();
+                }
+                CONSUMED.lazySet(this, head + available);
+                return (int) available;
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return consumed == tail;
+    }
+
+    /**
+     * @return true if owner of ring is finished, so no events will be added
+     */
+    boolean isOwnerDead() {
+        return thread != null && !thread.isAlive();
+    }
+
+    /**
+     * Called by producer of shared ring before {@link #claim()}
+     *
+     * @return false if ring is leased by other thread
+     */
+    boolean tryLease() {
+        return leased == 0 && LEASED.compareAndSet(this, 0, 1);
+    }
+
+    /**
+     * Called by producer of shared ring after {@link #publish()} (or after claim returned null)
+     */
+    void release() {
+        leased = 0;
+    }
+
+    /**
+     * Called by thread that did not lease shared ring, its event is not recorded
+     */
+    void dropUnleased() {
+        DROPPED_UNLEASED.incrementAndGet(this);
+    }
+
+    @Nullable
+    AsyncContext getContext() {
+        return context;
+    }
+
+    void setContext(@Nullable AsyncContext context) {
+        this.context = context;
+    }
+
+    boolean isShared() {
+        return isShared;
+    }
+
+    /**
+     * Called only by logging thread
+     *
+     * @return number of events dropped since previous call
+     */
+    long takeUnreportedDropped() {
+        long dropped = getDropped();
+        long unreported = dropped - reportedDropped;
+        reportedDropped = dropped;
+        return unreported;
+    }
+
+    int getCapacity() {
+        return slots.length;
+    }
+
+    long getDropped() {
+        return dropped + droppedUnleased;
+    }
+
+    long getSpilled() {
+        return spilled;
+    }
+
+    long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * @return current name of owner of ring
+     */
+    String getThreadName() {
+        return recordedThread.getName();
+    }
+
+    RecordedThread getRecordedThread() {
+        return recordedThread;
+    }
+
+    interface SlotConsumer {
+        void accept(@NotNull MethodEventData slot);
+    }
+}
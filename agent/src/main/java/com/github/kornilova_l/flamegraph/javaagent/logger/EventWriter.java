@@ -0,0 +1,189 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.MethodEventSerializer;
+import com.github.kornilova_l.flamegraph.proto.EventProtos.Event;
+import com.github.kornilova_l.libs.com.google.protobuf.CodedOutputStream;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes delimited events to output.
+ * Events are encoded to {@link #codedOutputStream}, subclasses decide where its bytes go.
+ * <p>
+ * All methods except counters getters and {@link #isFlushing()} are called by logging thread
+ */
+abstract class EventWriter {
+    CodedOutputStream codedOutputStream;
+    volatile long eventsWritten = 0;
+    volatile long bytesWritten = 0;
+    /**
+     * Events that were passed to writer but are not in output
+     */
+    volatile long eventsLost = 0;
+    /**
+     * It is set by {@link #close()}. Events that are written after it are dropped, output is not opened again
+     */
+    volatile boolean isClosed = false;
+
+    void write(@NotNull Event event) throws IOException {
+        if (isClosed) {
+            eventsLost++;
+            return;
+        }
+        int size = event.getSerializedSize();
+        if (!reserve(computeDelimitedSize(size))) {
+            byte[] bytes = new byte[computeDelimitedSize(size)];
+            CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+            out.writeUInt32NoTag(size);
+            event.writeTo(out);
+            writeDirectly(bytes);
+        } else {
+            codedOutputStream.writeUInt32NoTag(size);
+            event.writeTo(codedOutputStream);
+        }
+        eventsWritten++;
+    }
+
+    /**
+     * Writes method event that is prepared by serializer.
+     * Nothing is allocated unless event does not fit in {@link #codedOutputStream}
+     */
+    void write(@NotNull MethodEventSerializer serializer) throws IOException {
+        if (isClosed) {
+            eventsLost++;
+            return;
+        }
+        int size = serializer.getSerializedSize();
+        if (!reserve(computeDelimitedSize(size))) {
+            byte[] bytes = new byte[computeDelimitedSize(size)];
+            CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+            out.writeUInt32NoTag(size);
+            serializer.writeTo(out);
+            writeDirectly(bytes);
+        } else {
+            codedOutputStream.writeUInt32NoTag(size);
+            serializer.writeTo(codedOutputStream);
+        }
+        eventsWritten++;
+    }
+
+    /**
+     * Writes delimited events that are already encoded (see {@link ParallelEncoder})
+     *
+     * @param bytes from position to limit
+     * @param count number of events
+     */
+    void writeEncoded(@NotNull ByteBuffer bytes, int count) throws IOException {
+        if (isClosed) {
+            eventsLost += count;
+            return;
+        }
+        if (!reserve(bytes.remaining())) {
+            byte[] array = new byte[bytes.remaining()];
+            bytes.get(array);
+            writeDirectly(array);
+        } else {
+            codedOutputStream.write(bytes);
+        }
+        eventsWritten += count;
+    }
+
+    static int computeDelimitedSize(int size) {
+        return CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+    }
+
+    /**
+     * Makes space in {@link #codedOutputStream} for encoded bytes
+     *
+     * @param size number of bytes (including delimiters)
+     * @return false if bytes cannot fit in {@link #codedOutputStream},
+     * then they are passed to {@link #writeDirectly(byte[])}
+     */
+    abstract boolean reserve(int size) throws IOException;
+
+    /**
+     * Writes delimited messages after all previously encoded messages
+     */
+    abstract void writeDirectly(@NotNull byte[] bytes) throws IOException;
+
+    /**
+     * Writer that does not split output to segments always returns true
+     *
+     * @param size total size of delimited messages
+     * @return true if messages can be written to current segment
+     */
+    boolean fits(int size) {
+        return true;
+    }
+
+    /**
+     * Finishes current segment (if it is open) and opens next segment
+     *
+     * @param minSize next segment can hold at least this number of bytes
+     */
+    void startSegment(int minSize) throws IOException {
+    }
+
+    /**
+     * Finishes current segment. Next segment is opened by next write
+     */
+    void finishSegment() throws IOException {
+    }
+
+    /**
+     * @return true if current segment is open for too long and it should be finished
+     */
+    boolean isSegmentExpired() {
+        return false;
+    }
+
+    /**
+     * @return true if output is split to segments
+     */
+    boolean hasSegments() {
+        return false;
+    }
+
+    /**
+     * Starts background threads of writer if they are needed.
+     * It is called by logging thread before first event is written
+     */
+    void start() {
+    }
+
+    /**
+     * Passes encoded events to output. It does not wait until they are written
+     */
+    abstract void flush() throws IOException;
+
+    /**
+     * Writes all encoded events to output and forces them to storage device.
+     * Unlike {@link #flush()} it waits until events are written
+     */
+    abstract void sync() throws IOException;
+
+    /**
+     * Writes all encoded events, forces them to storage device and releases output.
+     * Events that are written after this are dropped
+     */
+    abstract void close() throws IOException;
+
+    /**
+     * @return true if some flushed events are not written to output yet
+     */
+    abstract boolean isFlushing();
+
+    long getEventsWritten() {
+        return eventsWritten;
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    long getEventsLost() {
+        return eventsLost;
+    }
+}
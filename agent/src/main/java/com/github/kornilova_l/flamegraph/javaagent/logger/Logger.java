@@ -1,95 +1,527 @@
 package com.github.kornilova_l.flamegraph.javaagent.logger;
 
+import com.github.kornilova_l.flamegraph.javaagent.AgentFileManager;
 import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.MethodEventData;
+import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.MethodEventSerializer;
+import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.RecordedThread;
 import com.github.kornilova_l.flamegraph.proto.EventProtos;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Thread which writes all events from loggingQueue to file.
- * Logger is created ones and all it's methods (except {link #printStatus()} are called from single thread
+ * Thread which writes all events from rings of loggingQueue to file.
+ * Logger is created ones and all it's methods (except {link #printStatus()} and {@link #flush()})
+ * are called from single thread
  */
 public class Logger implements Runnable {
     final LoggerQueue loggerQueue = LoggerQueue.getInstance();
-    private File file;
+    /**
+     * Output file or dir with segments
+     */
+    private final File file;
     private long lastLogTime;
     private long countEventsAdded = 0L;
-    private volatile boolean isWriting = false;
+    private final TimeUnit timeUnit;
+    /**
+     * Probes measure time in {@link #timeUnit}.
+     * System.nanoTime() does not count from epoch so this offset is added to start time of each event.
+     * It is 0 for milliseconds
+     */
+    private final long startTimeOffset;
+    private final long recordingStartTime;
+    private boolean isRecordingInfoWritten;
+    /**
+     * Maximum number of events that are taken from one ring at once.
+     * Rings are drained in turns so busy thread does not delay events of other threads
+     */
+    private static final int BATCH_SIZE = 256;
+    public static final long DEFAULT_MAX_LATENCY = 1000;
+    /**
+     * If previous drain found no events, logging thread waits this number of max latencies
+     * (or until any event is added)
+     */
+    private static final int IDLE_LATENCY_FACTOR = 10;
+    private long maxLatency = DEFAULT_MAX_LATENCY;
+    /**
+     * True if previous drain found no events
+     */
+    private boolean isIdle = false;
+    /**
+     * Status of rings of finished threads. It is printed by shutdown hook
+     */
+    private final List<String> removedRingsStatus = new CopyOnWriteArrayList<>();
+    private final EventWriter eventWriter;
+    /**
+     * Rates of writing between two last drains of rings.
+     * Bytes are written asynchronously so they are counted with a delay
+     */
+    private volatile long eventsPerSecond = 0;
+    private volatile long bytesPerSecond = 0;
+    private long lastEventsWritten = 0;
+    private long lastBytesWritten = 0;
+    private long lastRateTime;
+    private final long recordingWallStartTime;
+    private final EventRing.SlotConsumer slotWriter = this::writeSlot;
+    private final EventRing.SlotConsumer batchWriter = this::addSlotToBatch;
+    /**
+     * Encodes slots on worker threads. It is null if events are encoded by logging thread
+     */
+    private ParallelEncoder parallelEncoder;
+    /**
+     * Method events of slots are encoded without protobuf builders
+     */
+    private final MethodEventSerializer methodEventSerializer = new MethodEventSerializer();
+    /**
+     * Registration events of slot. List is reused because most slots do not need registration
+     */
+    private final List<EventProtos.Event> registrationEvents = new ArrayList<>();
+    /**
+     * Flush requests are numbered. Logging thread takes the last number before it drains rings,
+     * so when the drain is written and synced, all requests up to this number are completed
+     */
+    private final Object flushLock = new Object();
+    private long flushesRequested = 0;
+    private long flushesCompleted = 0;
+    /**
+     * Last flush request that was completed by drain that was not written because of error
+     */
+    private long flushesFailed = 0;
+    /**
+     * Writer keeps its failure and throws it again, so it is printed only once
+     */
+    private IOException lastFailure;
+    /**
+     * It is set by {@link #closeOutput()}. Logging thread stops and events are not written anymore
+     */
+    private volatile boolean isClosed = false;
 
-    public Logger(File file) {
-        this.file = file;
+    /**
+     * Events are written to single file
+     */
+    public Logger(File file, TimeUnit timeUnit) {
+        this(new ChannelEventWriter(file, ChannelEventWriter.DEFAULT_BUFFER_SIZE), file, timeUnit);
         System.out.println("Output file: " + file);
+    }
+
+    /**
+     * Events are written to memory-mapped segment files in dir of file manager.
+     * Each segment can be read without previous segments
+     *
+     * @param segmentSize        size of each segment in bytes
+     * @param maxSegmentDuration segment is finished after this number of milliseconds. 0 means no limit
+     * @param compress           if true finished segments are compressed in background
+     * @param maxSegments        maximum number of finished segments that are kept. 0 means no limit
+     */
+    public Logger(AgentFileManager fileManager,
+                  int segmentSize,
+                  long maxSegmentDuration,
+                  boolean compress,
+                  int maxSegments,
+                  TimeUnit timeUnit) {
+        this(new MappedEventWriter(fileManager, segmentSize, maxSegmentDuration,
+                        compress || maxSegments > 0 ? new SegmentArchiver(compress, maxSegments) : null),
+                fileManager.getLogDir(), timeUnit);
+        System.out.println("Output dir: " + file + ", segment size: " + segmentSize +
+                (maxSegmentDuration == 0 ? "" : ", segment duration: " + maxSegmentDuration + " ms") +
+                (compress ? ", segments are compressed" : "") +
+                (maxSegments == 0 ? "" : ", max segments: " + maxSegments));
+    }
+
+    private Logger(EventWriter eventWriter, File file, TimeUnit timeUnit) {
+        this.eventWriter = eventWriter;
+        this.file = file;
+        this.timeUnit = timeUnit;
         lastLogTime = System.currentTimeMillis();
+        lastRateTime = lastLogTime;
+        recordingWallStartTime = lastLogTime;
+        if (timeUnit == TimeUnit.NANOSECONDS) {
+            /* wall-clock anchor of recording */
+            long nanoTime = System.nanoTime();
+            recordingStartTime = TimeUnit.MILLISECONDS.toNanos(lastLogTime);
+            startTimeOffset = recordingStartTime - nanoTime;
+        } else {
+            recordingStartTime = lastLogTime;
+            startTimeOffset = 0;
+        }
+        /* old readers expect only milliseconds, so info is not needed for them */
+        isRecordingInfoWritten = timeUnit == TimeUnit.MILLISECONDS;
+    }
+
+    private EventProtos.Event createRecordingInfo() {
+        return EventProtos.Event.newBuilder()
+                .setRecordingInfo(EventProtos.Event.RecordingInfo.newBuilder()
+                        .setTimeUnit(EventProtos.Event.RecordingInfo.TimeUnit.NANOSECONDS)
+                        .setStartTime(recordingStartTime))
+                .build();
+    }
+
+    private void writeRecordingInfo() throws IOException {
+        EventProtos.Event recordingInfo = createRecordingInfo();
+        if (!eventWriter.fits(EventWriter.computeDelimitedSize(recordingInfo.getSerializedSize()))) {
+            startSegment(0); // info is written to beginning of segment
+            return;
+        }
+        eventWriter.write(recordingInfo);
+        isRecordingInfoWritten = true;
+    }
+
+    /**
+     * Starts next segment of recording. Each segment starts with recording info (if it is needed)
+     * and has its own registration events, so it can be read without previous segments.
+     * Registrations must be reset before group size is computed (see {@link #writeSlot(MethodEventData)})
+     *
+     * @param groupSize size of events that will be written right after segment is started
+     */
+    private void startSegment(int groupSize) throws IOException {
+        EventProtos.Event recordingInfo = timeUnit == TimeUnit.MILLISECONDS ? null : createRecordingInfo();
+        eventWriter.startSegment(groupSize +
+                (recordingInfo == null ? 0 : EventWriter.computeDelimitedSize(recordingInfo.getSerializedSize())));
+        if (recordingInfo != null) {
+            eventWriter.write(recordingInfo);
+            isRecordingInfoWritten = true;
+        }
+    }
+
+    private static int computeDelimitedSize(List<EventProtos.Event> events) {
+        int size = 0;
+        for (int i = 0; i < events.size(); i++) {
+            size += EventWriter.computeDelimitedSize(events.get(i).getSerializedSize());
+        }
+        return size;
     }
 
     void printStatus() {
         System.out.println("Methods count: " + countEventsAdded);
+        long seconds = Math.max(1, (System.currentTimeMillis() - recordingWallStartTime) / 1000);
+        System.out.println("Events written: " + eventWriter.getEventsWritten() +
+                " (" + eventWriter.getEventsWritten() / seconds + " per second)" +
+                ", bytes written: " + eventWriter.getBytesWritten() +
+                " (" + eventWriter.getBytesWritten() / seconds + " per second)" +
+                (eventWriter.getEventsLost() == 0 ? "" : ", events lost: " + eventWriter.getEventsLost()));
+        for (String ringStatus : removedRingsStatus) {
+            System.out.println(ringStatus);
+        }
+        for (EventRing ring : loggerQueue.getRings()) {
+            System.out.println(getStatus(ring));
+        }
     }
 
-    private void writeToFile(List<EventProtos.Event> events, OutputStream outputStream) {
+    private static String getStatus(EventRing ring) {
+        return "Thread \"" + ring.getThreadName() + "\": dropped " + ring.getDropped() +
+                ", spilled " + ring.getSpilled() +
+                ", high-water mark " + ring.getHighWaterMark() + " of " + ring.getCapacity();
+    }
+
+    private void writeToFile(List<EventProtos.Event> events) throws IOException {
+        for (int i = 0; i < events.size(); i++) {
+            eventWriter.write(events.get(i));
+        }
+    }
+
+    /**
+     * Registration events of slot and its method event are a group: they are always written to the same segment.
+     * If group does not fit in current segment, registrations are reset, so the group is created again
+     * and written to next segment
+     */
+    private void writeSlot(MethodEventData slot) {
+        countEventsAdded++;
+        long threadId = registerSlot(slot);
+        if (threadId == -1 || !methodEventSerializer.set(slot, threadId, startTimeOffset)) {
+            return;
+        }
+        int eventSize = EventWriter.computeDelimitedSize(methodEventSerializer.getSerializedSize());
         try {
-            for (EventProtos.Event event : events) {
-                event.writeDelimitedTo(outputStream);
+            if (!eventWriter.fits(computeDelimitedSize(registrationEvents) + eventSize)) {
+                MethodEventData.resetRegistrations();
+                registerSlot(slot); // id of thread does not change
+                startSegment(computeDelimitedSize(registrationEvents) + eventSize);
             }
-        } catch (IOException ignored) {
-            System.out.println("Trying to write to closed stream");
+            writeToFile(registrationEvents);
+            eventWriter.write(methodEventSerializer);
+        } catch (IOException e) {
+            reportFailure(e);
+        }
+    }
+
+    /**
+     * Events are encoded by worker threads, logging thread only registers names and writes encoded batches.
+     * Output split to segments needs the size of each event before it is written, so it is encoded by logging thread.
+     * It must be called before logger is started
+     *
+     * @param threadsCount number of worker threads
+     */
+    public void setParallelEncoding(int threadsCount) {
+        if (eventWriter.hasSegments()) {
+            System.out.println("Parallel encoding is not supported for segments, events are encoded by logging thread");
+            return;
+        }
+        parallelEncoder = new ParallelEncoder(threadsCount, eventWriter, startTimeOffset);
+    }
+
+    private void addSlotToBatch(MethodEventData slot) {
+        countEventsAdded++;
+        long threadId = registerSlot(slot);
+        if (threadId == -1) {
+            return;
+        }
+        try {
+            parallelEncoder.add(slot, threadId, registrationEvents);
+        } catch (IOException e) {
+            reportFailure(e);
         }
     }
 
+    /**
+     * @return id of thread or -1 if method is not registered
+     */
+    private long registerSlot(MethodEventData slot) {
+        registrationEvents.clear();
+        return MethodEventData.register(slot.getThread(), slot.getMethodId(), registrationEvents);
+    }
+
     void printDataForHuman() {
-        try (InputStream inputStream = new FileInputStream(file)) {
-            EventProtos.Event event = EventProtos.Event.parseDelimitedFrom(inputStream);
-            while (event != null) {
-                System.out.println(event.toString());
-                event = EventProtos.Event.parseDelimitedFrom(inputStream);
+        File[] files = file.isDirectory() ? file.listFiles() : new File[]{file};
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            try (InputStream inputStream = new FileInputStream(f)) {
+                EventProtos.Event event = EventProtos.Event.parseDelimitedFrom(inputStream);
+                while (event != null) {
+                    System.out.println(event.toString());
+                    event = EventProtos.Event.parseDelimitedFrom(inputStream);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
 
+    /**
+     * @param maxLatency events are written at least once in this number of milliseconds.
+     *                   It must be called before logger is started
+     */
+    public void setMaxLatency(long maxLatency) {
+        this.maxLatency = Math.max(1, maxLatency);
+    }
+
+    /**
+     * Logging thread waits until producer signals that its ring is filled above threshold
+     * (see {@link DrainScheduler}) or until max latency elapses since previous drain.
+     * If previous drain found no events, it waits longer but any new event wakes it up
+     */
     @Override
     public void run() {
-        /* Logger is a daemon thread so it will stop when program is finished */
-        //noinspection InfiniteLoopStatement
-        while (true) {
-            try {
-                long sleepTime = getSleepTime();
-                Thread.sleep(sleepTime);
-                lastLogTime = System.currentTimeMillis();
-                logEvents();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        eventWriter.start();
+        DrainScheduler drainScheduler = loggerQueue.getDrainScheduler();
+        /* Logger is a daemon thread so it will stop when program is finished or when output is closed */
+        while (!isClosed) {
+            long waitTime = isIdle ?
+                    maxLatency * IDLE_LATENCY_FACTOR :
+                    maxLatency - (System.currentTimeMillis() - lastLogTime);
+            drainScheduler.await(TimeUnit.MILLISECONDS.toNanos(waitTime), isIdle);
+            lastLogTime = System.currentTimeMillis();
+            logEvents();
+        }
+    }
+
+    private synchronized void logEvents() {
+        if (isClosed) { // producers may record events while other shutdown hooks run
+            return;
+        }
+        long flushesToComplete;
+        synchronized (flushLock) {
+            flushesToComplete = flushesRequested;
+        }
+        boolean isWritten = true;
+        try {
+            if (eventWriter.isSegmentExpired()) {
+                eventWriter.finishSegment(); // next group starts new segment
             }
+            if (!isRecordingInfoWritten) {
+                writeRecordingInfo();
+            }
+            boolean hasEvents = true;
+            isIdle = true;
+            EventRing.SlotConsumer consumer = parallelEncoder == null ? slotWriter : batchWriter;
+            OverflowQueue overflowQueue = loggerQueue.getOverflowQueue();
+            while (hasEvents) {
+                hasEvents = false;
+                for (EventRing ring : loggerQueue.getRings()) {
+                    if (ring.drain(consumer, BATCH_SIZE) != 0) {
+                        hasEvents = true;
+                        isIdle = false;
+                    }
+                }
+                /* events that did not fit are written after events that were in rings */
+                if (overflowQueue != null && overflowQueue.drain(consumer, BATCH_SIZE) != 0) {
+                    hasEvents = true;
+                    isIdle = false;
+                }
+            }
+            if (parallelEncoder != null) {
+                parallelEncoder.writeAll(); // events below are written directly
+            }
+            writeDroppedEvents();
+            removeRingsOfFinishedThreads();
+            if (flushesToComplete != flushesCompleted) {
+                eventWriter.sync();
+            } else {
+                eventWriter.flush();
+            }
+        } catch (IOException e) {
+            isWritten = false;
+            reportFailure(e);
         }
+        updateRates();
+        if (flushesToComplete != flushesCompleted) {
+            synchronized (flushLock) {
+                flushesCompleted = flushesToComplete;
+                if (!isWritten) {
+                    flushesFailed = flushesToComplete;
+                }
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until all events that were added to rings before the call are written to output
+     * and forced to storage device. Logging thread is woken up, so it does not wait for max latency
+     */
+    public void flush() throws InterruptedException {
+        flush(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
     }
 
-    private long getSleepTime() {
-        long delta = 1000 - (System.currentTimeMillis() - lastLogTime);
-        if (delta <= 0) {
-            return 0;
+    /**
+     * @return false if events were not written in timeout, if they were not written because of error
+     * or if output is closed
+     * @see #flush()
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        if (isClosed) {
+            return false;
+        }
+        long deadline = System.nanoTime() + Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+        long flushNumber;
+        synchronized (flushLock) {
+            flushNumber = ++flushesRequested;
+        }
+        loggerQueue.getDrainScheduler().signal();
+        synchronized (flushLock) {
+            while (flushesCompleted < flushNumber) {
+                if (isClosed) {
+                    return false;
+                }
+                long timeLeft = deadline - System.nanoTime();
+                if (timeLeft <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(flushLock, timeLeft);
+            }
+            return flushesFailed < flushNumber;
         }
-        return delta;
     }
 
+    private void reportFailure(IOException e) {
+        if (e != lastFailure) {
+            lastFailure = e;
+            e.printStackTrace();
+        }
+    }
 
-    private void logEvents() {
-        try (OutputStream outputStream = new FileOutputStream(file, true)) {
-            ConcurrentLinkedQueue<MethodEventData> queue = loggerQueue.queue;
-            isWriting = true;
-            while (!queue.isEmpty()) {
-                countEventsAdded++;
-                writeToFile(queue.remove().getEvents(), outputStream);
+    private void updateRates() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - lastRateTime;
+        if (elapsed <= 0) {
+            return;
+        }
+        long eventsWritten = eventWriter.getEventsWritten();
+        long bytesWritten = eventWriter.getBytesWritten();
+        eventsPerSecond = (eventsWritten - lastEventsWritten) * 1000 / elapsed;
+        bytesPerSecond = (bytesWritten - lastBytesWritten) * 1000 / elapsed;
+        lastEventsWritten = eventsWritten;
+        lastBytesWritten = bytesWritten;
+        lastRateTime = now;
+    }
+
+    /**
+     * Number of events that were not recorded is written to recording
+     * so it is known that data is incomplete
+     */
+    private void writeDroppedEvents() throws IOException {
+        for (EventRing ring : loggerQueue.getRings()) {
+            writeDroppedEvents(ring);
+        }
+    }
+
+    private void writeDroppedEvents(EventRing ring) throws IOException {
+        long dropped = ring.takeUnreportedDropped();
+        if (dropped != 0) {
+            List<EventProtos.Event> events = MethodEventData.getDroppedEvents(ring.getRecordedThread(), dropped);
+            if (!eventWriter.fits(computeDelimitedSize(events))) {
+                MethodEventData.resetRegistrations();
+                events = MethodEventData.getDroppedEvents(ring.getRecordedThread(), dropped);
+                startSegment(computeDelimitedSize(events));
             }
-            isWriting = false;
+            writeToFile(events);
+        }
+    }
+
+    private void removeRingsOfFinishedThreads() throws IOException {
+        for (EventRing ring : loggerQueue.getRings()) {
+            /* check order matters: finished thread cannot add events after isOwnerDead() returned true */
+            if (ring.isOwnerDead() && ring.isEmpty()) {
+                writeDroppedEvents(ring); // thread could drop events after writeDroppedEvents() was called
+                removedRingsStatus.add(getStatus(ring));
+                loggerQueue.removeRing(ring);
+            }
+        }
+    }
+
+    /**
+     * Writes all events that were passed to writer, forces them to disk and releases output.
+     * Segment file is truncated to written size.
+     * It is called by shutdown hook after {@link #flush(long, TimeUnit)}.
+     * Logging thread does not write events after this
+     */
+    synchronized void closeOutput() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        if (parallelEncoder != null) {
+            parallelEncoder.close(); // batches were written by logEvents()
+        }
+        try {
+            eventWriter.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            reportFailure(e);
+        }
+        synchronized (flushLock) {
+            flushLock.notifyAll(); // flushes that wait will not be completed
         }
     }
 
-    public boolean isWriting() {
-        return isWriting;
+    public long getEventsPerSecond() {
+        return eventsPerSecond;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getEventsWritten() {
+        return eventWriter.getEventsWritten();
+    }
+
+    public long getBytesWritten() {
+        return eventWriter.getBytesWritten();
     }
 }
@@ -1,27 +1,208 @@
 package com.github.kornilova_l.flamegraph.javaagent.logger;
 
+import com.github.kornilova_l.flamegraph.bridge.RecordingSwitch;
+import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.AsyncContext;
 import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.MethodEventData;
-import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.RetValEventData;
-import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.ThrowableEventData;
+import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.RecordedThread;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Each thread adds events to its own {@link EventRing}.
+ * Rings are registered here when thread adds first event, {@link Logger} drains all registered rings
+ * <p>
+ * Total number of slots of all rings is limited by memory budget.
+ * If the rest of budget is smaller than ring capacity, new thread gets smaller ring.
+ * If budget is exhausted new platform threads do not get rings, they add events to lanes (see below)
+ * with their own identity. Slots of lanes are reserved in budget, so lanes are always created
+ * <p>
+ * Virtual threads are too many to have a ring each. They share lanes: rings that are leased
+ * by producer for one event. The number of lanes depends on the number of carrier threads,
+ * and virtual thread is not unmounted between claim and publish, so all lanes are rarely leased at once.
+ * If they are, the event is dropped instead of waiting for a lane.
+ * Events of lane are recorded as events of one thread (or of scope that is set by application,
+ * see {@link #setVirtualThreadScope(String)}), so no state is kept for each virtual thread
+ * <p>
+ * Thread that runs submitted task has {@link AsyncContext} of the task (see {@link #swapContext(AsyncContext)}).
+ * Context of platform thread is kept in its ring, so publishing of event reads one more field of ring.
+ * Thread that did not record events yet keeps context in thread local, it is moved to ring when ring is created.
+ * Time that task waited in queue of executor is recorded when task starts (see {@link QueueWaitMethods})
+ */
 public class LoggerQueue {
+    public static final int DEFAULT_RING_CAPACITY = 8192;
+    public static final long DEFAULT_BUFFER_SIZE = 64L * 1024 * 1024;
+    public static final int DEFAULT_DRAIN_BATCH_SIZE = 1024;
+    public static final int DEFAULT_DRAIN_FILL_PERCENT = 50;
+    /**
+     * Approximate size of slot with its EventRecord.
+     * Objects that are referenced from slot (parameters, return values) are not counted
+     */
+    private static final int ESTIMATED_SLOT_SIZE = 128;
+    private static final int MIN_RING_CAPACITY = 16;
+    private static final String VIRTUAL_THREAD_GROUP = "VirtualThreads";
+    /**
+     * Thread.isVirtual() of JDK 21. It is null on older JDKs
+     */
+    @Nullable
+    private static final MethodHandle isVirtualHandle = findIsVirtual();
+    /**
+     * Scopes are interned, application is expected to use few of them
+     */
+    private static final Map<String, RecordedThread> scopes = new ConcurrentHashMap<>();
+    private static final ThreadLocal<RecordedThread> virtualThreadScopes = new ThreadLocal<>();
+    /**
+     * Lookup of scope is skipped until application sets first scope
+     */
+    private static volatile boolean hasScopes = false;
+    private static final ThreadLocal<AsyncContext> virtualThreadContexts = new ThreadLocal<>();
+    /**
+     * Lookup of context of virtual thread is skipped until first task with context runs in virtual thread
+     */
+    private static volatile boolean hasVirtualThreadContexts = false;
+    /**
+     * True if platform thread did not get a ring because budget was exhausted.
+     * Until then events of lanes are not checked for platform threads
+     */
+    private static volatile boolean hasThreadsWithoutRing = false;
     private static LoggerQueue loggerQueue;
-    final ConcurrentLinkedQueue<MethodEventData> queue = new ConcurrentLinkedQueue<>();
+    private static final MethodTable methodTable = new MethodTable();
+    private static final QueueWaitMethods queueWaitMethods = new QueueWaitMethods(methodTable);
+    /**
+     * Submissions of tasks that did not start yet (see {@link #attachSubmission(Object, Object)}).
+     * Tasks are weak keys, so submissions of tasks that never run are forgotten
+     */
+    private static final WeakIdentityMap<TaskSubmission> submissions = new WeakIdentityMap<>();
+    /**
+     * Tracking of tasks is configured by {@link #initTaskTracking(boolean, boolean)}
+     */
+    private static boolean recordTaskContexts = false;
+    private static boolean recordQueueWait = false;
+    /**
+     * Unit of time of probes. Time is measured here for compact probes and for waiting of tasks
+     */
+    private static TimeUnit timeUnit = TimeUnit.MILLISECONDS;
+    private static final ThreadLocal<EventRecord> eventRecords = ThreadLocal.withInitial(EventRecord::new);
+    private final int ringCapacity;
+    private final long maxSlots;
+    /**
+     * Slots of lanes that are not created yet are counted as allocated
+     */
+    private long allocatedSlots;
+    private final int laneCount;
+    private final OverflowPolicy overflowPolicy;
+    @Nullable
+    private final OverflowQueue overflowQueue;
+    private final List<EventRing> rings = new CopyOnWriteArrayList<>();
+    /**
+     * Ring is null for virtual threads that share {@link #lanes} and for threads that did not get a ring
+     */
+    private final ThreadLocal<EventRing> threadRings = ThreadLocal.withInitial(this::createRing);
+    /**
+     * Ring of current thread if it was already created. Contexts are read from it,
+     * so thread that only runs or submits tasks does not get a ring
+     */
+    private final ThreadLocal<EventRing> createdRings = new ThreadLocal<>();
+    /**
+     * If false each virtual thread gets its own ring as platform thread
+     */
+    private final boolean groupVirtualThreads;
+    /**
+     * Rings that are shared by virtual threads. They are created when first virtual thread records event
+     */
+    @Nullable
+    private volatile EventRing[] lanes;
+    private final DrainScheduler drainScheduler = new DrainScheduler();
+    private final int drainBatchSize;
+    private final int drainFillPercent;
+
+    private LoggerQueue(int ringCapacity,
+                        long bufferSize,
+                        OverflowPolicy overflowPolicy,
+                        int drainBatchSize,
+                        int drainFillPercent,
+                        boolean groupVirtualThreads) {
+        int capacity = Math.min(Math.max(ringCapacity, MIN_RING_CAPACITY), 1 << 30);
+        this.ringCapacity = Integer.highestOneBit(capacity - 1) << 1;
+        long budgetSlots = bufferSize / ESTIMATED_SLOT_SIZE;
+        this.overflowPolicy = overflowPolicy;
+        if (overflowPolicy == OverflowPolicy.SPILL) {
+            /* a quarter of budget is left for events that do not fit in rings */
+            overflowQueue = new OverflowQueue((int) Math.min(budgetSlots / 4, Integer.MAX_VALUE));
+            maxSlots = budgetSlots - overflowQueue.getCapacity();
+        } else {
+            overflowQueue = null;
+            maxSlots = budgetSlots;
+        }
+        this.drainBatchSize = drainBatchSize;
+        this.drainFillPercent = drainFillPercent;
+        this.groupVirtualThreads = groupVirtualThreads;
+        int carriers = Integer.getInteger("jdk.virtualThreadScheduler.parallelism",
+                Runtime.getRuntime().availableProcessors());
+        laneCount = Integer.highestOneBit(Math.max(carriers, 1) * 2 - 1);
+        allocatedSlots = (long) laneCount * MIN_RING_CAPACITY;
+    }
 
     /**
      * Method is called by javaagent.
      * It is needed for loading LoggerQueue by system classLoader
+     *
+     * @param ringCapacity        number of slots in ring of each thread. It is rounded up to power of two
+     * @param bufferSize          memory budget for slots of all rings in bytes
+     * @param overflowPolicy      what is done with event if ring of thread is full
+     * @param drainBatchSize      logging thread is woken up when ring has this number of events
+     * @param drainFillPercent    logging thread is woken up when this percent of ring is occupied
+     * @param groupVirtualThreads if true virtual threads share lanes, otherwise each of them gets a ring
      */
-    public static void initLoggerQueue() {
-        loggerQueue = new LoggerQueue();
+    public static void initLoggerQueue(int ringCapacity,
+                                       long bufferSize,
+                                       @NotNull OverflowPolicy overflowPolicy,
+                                       int drainBatchSize,
+                                       int drainFillPercent,
+                                       boolean groupVirtualThreads) {
+        loggerQueue = new LoggerQueue(ringCapacity, bufferSize, overflowPolicy, drainBatchSize, drainFillPercent,
+                groupVirtualThreads);
+    }
+
+    /**
+     * It is called by javaagent before executors are instrumented
+     *
+     * @param recordContexts  if true events of tasks have {@link AsyncContext}
+     * @param recordQueueWait if true time that task waited in queue of executor is recorded
+     */
+    public static void initTaskTracking(boolean recordContexts, boolean recordQueueWait) {
+        LoggerQueue.recordTaskContexts = recordContexts;
+        LoggerQueue.recordQueueWait = recordQueueWait;
+    }
+
+    /**
+     * It is called by javaagent before classes are instrumented
+     *
+     * @param timeUnit unit of time of probes
+     */
+    public static void setTimeUnit(@NotNull TimeUnit timeUnit) {
+        LoggerQueue.timeUnit = timeUnit;
     }
 
     static LoggerQueue getInstance() {
         return loggerQueue;
     }
 
+    /**
+     * Methods are registered here by transformer
+     */
+    public static MethodTable getMethodTable() {
+        return methodTable;
+    }
+
     /**
      * This method is called concurrently
      */
@@ -30,13 +211,17 @@ public class LoggerQueue {
                                   long duration,
                                   Object[] parameters,
                                   Thread thread,
-                                  String className,
-                                  String methodName,
-                                  String desc,
-                                  boolean isStatic,
-                                  String savedParameters) {
-        loggerQueue.addToQueue(new RetValEventData(thread, className, startTime, duration,
-                methodName, desc, isStatic, parameters, retVal, savedParameters));
+                                  int methodId) {
+        EventRing ring = loggerQueue.getRing();
+        if (ring == null) {
+            return;
+        }
+        MethodEventData slot = ring.claim();
+        if (slot != null) {
+            slot.setReturned(thread, methodId, startTime, duration, parameters, retVal);
+            publish(ring, slot);
+        }
+        release(ring);
     }
 
     /**
@@ -48,19 +233,390 @@ public class LoggerQueue {
                                   long duration,
                                   Object[] parameters,
                                   Thread thread,
-                                  String className,
-                                  String methodName,
-                                  String desc,
-                                  boolean isStatic,
-                                  String savedParameters) {
-        loggerQueue.addToQueue(new ThrowableEventData(thread, className, startTime, duration,
-                methodName, desc, isStatic, parameters, throwable, saveMessage, savedParameters));
+                                  int methodId) {
+        EventRing ring = loggerQueue.getRing();
+        if (ring == null) {
+            return;
+        }
+        MethodEventData slot = ring.claim();
+        if (slot != null) {
+            slot.setThrown(thread, methodId, startTime, duration, parameters, throwable, saveMessage);
+            publish(ring, slot);
+        }
+        release(ring);
+    }
+
+    /**
+     * Exit of method with compact probes. Call is recorded if it took more than duration threshold of method
+     * and recording is not turned off by {@link RecordingSwitch}.
+     * This method is called concurrently
+     *
+     * @param startTime time when method was entered
+     */
+    public static void exit(long startTime, int methodId) {
+        if (!RecordingSwitch.isRecording()) {
+            return;
+        }
+        long duration = currentTime() - startTime;
+        MethodTable.MethodInfo methodInfo = methodTable.get(methodId);
+        if (methodInfo != null && duration > methodInfo.durationThreshold) {
+            addToQueue(null, startTime, duration, null, Thread.currentThread(), methodId);
+        }
     }
 
     /**
+     * Exit of method with compact probes by throwable (thrown by method or by callee).
      * This method is called concurrently
+     *
+     * @param startTime time when method was entered
      */
-    public void addToQueue(MethodEventData methodEventData) {
-        queue.add(methodEventData);
+    public static void exitThrown(Throwable throwable, long startTime, int methodId) {
+        if (!RecordingSwitch.isRecording()) {
+            return;
+        }
+        long duration = currentTime() - startTime;
+        MethodTable.MethodInfo methodInfo = methodTable.get(methodId);
+        if (methodInfo != null && duration > methodInfo.durationThreshold) {
+            addToQueue(throwable, false, startTime, duration, null, Thread.currentThread(), methodId);
+        }
+    }
+
+    /**
+     * Probe fills returned record with saved parameters and return value
+     * and passes it to {@link #addToQueue(EventRecord, long, long, Thread, int)}
+     * or {@link #addToQueue(Throwable, boolean, EventRecord, long, long, Thread, int)}
+     *
+     * @return record of current thread
+     */
+    public static EventRecord getEventRecord() {
+        return eventRecords.get();
+    }
+
+    /**
+     * This method is called concurrently
+     */
+    public static void addToQueue(EventRecord record,
+                                  long startTime,
+                                  long duration,
+                                  Thread thread,
+                                  int methodId) {
+        EventRing ring = loggerQueue.getRing();
+        if (ring == null) {
+            record.reset();
+            return;
+        }
+        MethodEventData slot = ring.claim();
+        if (slot != null) {
+            slot.setReturned(thread, methodId, startTime, duration, record);
+            publish(ring, slot);
+        } else {
+            record.reset();
+        }
+        release(ring);
+    }
+
+    /**
+     * This method is called concurrently
+     */
+    public static void addToQueue(Throwable throwable,
+                                  boolean saveMessage,
+                                  EventRecord record,
+                                  long startTime,
+                                  long duration,
+                                  Thread thread,
+                                  int methodId) {
+        EventRing ring = loggerQueue.getRing();
+        if (ring == null) {
+            record.reset();
+            return;
+        }
+        MethodEventData slot = ring.claim();
+        if (slot != null) {
+            slot.setThrown(thread, methodId, startTime, duration, record, throwable, saveMessage);
+            publish(ring, slot);
+        } else {
+            record.reset();
+        }
+        release(ring);
+    }
+
+    /**
+     * Events of current virtual thread are recorded as events of thread with this name
+     * instead of events of its lane. It does not affect platform threads
+     *
+     * @param scope null removes scope of current thread
+     */
+    public static void setVirtualThreadScope(@Nullable String scope) {
+        if (scope == null) {
+            virtualThreadScopes.remove();
+            return;
+        }
+        virtualThreadScopes.set(scopes.computeIfAbsent(scope, name -> RecordedThread.group(name, VIRTUAL_THREAD_GROUP)));
+        hasScopes = true;
+    }
+
+    /**
+     * Context of a new task is captured when the task is submitted to executor
+     *
+     * @return context of task that is submitted by current thread
+     */
+    @NotNull
+    public static AsyncContext captureContext() {
+        return AsyncContext.capture(loggerQueue.getContext());
+    }
+
+    /**
+     * Sets context of current thread. It is called before task runs
+     * and again with returned value when task is finished
+     *
+     * @param context context of task or null if thread does not run a task
+     * @return previous context of current thread
+     */
+    @Nullable
+    public static AsyncContext swapContext(@Nullable AsyncContext context) {
+        EventRing ring = loggerQueue.createdRings.get();
+        AsyncContext previous;
+        if (ring != null) {
+            previous = ring.getContext();
+            ring.setContext(context);
+        } else {
+            previous = virtualThreadContexts.get();
+            virtualThreadContexts.set(context);
+            if (context != null) {
+                hasVirtualThreadContexts = true;
+            }
+        }
+        return previous;
+    }
+
+    /**
+     * It is called by thread that submits task to executor
+     */
+    @NotNull
+    static TaskSubmission submitTask(@NotNull Object executor) {
+        AsyncContext context = recordTaskContexts ? captureContext() : null;
+        if (!recordQueueWait) {
+            return new TaskSubmission(context, 0, 0);
+        }
+        return new TaskSubmission(context, currentTime(), queueWaitMethods.getMethodId(executor));
+    }
+
+    /**
+     * It is called by thread that submits task to executor that does not replace the task.
+     * Submission that is already attached is kept, so task that is passed from one instrumented method
+     * to another has context of the first submission
+     */
+    static void attachSubmission(@NotNull Object task, @NotNull Object executor) {
+        if (submissions.get(task) == null) {
+            submissions.putIfAbsent(task, submitTask(executor));
+        }
+    }
+
+    /**
+     * @return submission of task or null if it was not submitted or was already started
+     */
+    @Nullable
+    static TaskSubmission takeSubmission(@NotNull Object task) {
+        return submissions.remove(task);
+    }
+
+    /**
+     * It is called by thread that runs task before task starts.
+     * Waiting in queue is recorded with context of task
+     *
+     * @return context that must be passed to {@link #finishTask(AsyncContext)}
+     */
+    @Nullable
+    static AsyncContext startTask(@NotNull TaskSubmission submission) {
+        AsyncContext previous = recordTaskContexts ? swapContext(submission.context) : null;
+        if (submission.queueWaitMethodId != 0) {
+            long submitTime = submission.submitTime;
+            addToQueue(null, submitTime, currentTime() - submitTime, null, Thread.currentThread(),
+                    submission.queueWaitMethodId);
+        }
+        return previous;
+    }
+
+    static void finishTask(@Nullable AsyncContext previous) {
+        if (recordTaskContexts) {
+            swapContext(previous);
+        }
+    }
+
+    private static long currentTime() {
+        return timeUnit == TimeUnit.NANOSECONDS ? System.nanoTime() : System.currentTimeMillis();
+    }
+
+    @Nullable
+    private AsyncContext getContext() {
+        EventRing ring = createdRings.get();
+        if (ring != null) {
+            return ring.getContext();
+        }
+        return hasVirtualThreadContexts ? virtualThreadContexts.get() : null;
+    }
+
+    /**
+     * @return ring of current thread or leased lane. Null if all lanes are leased, the event is counted as dropped
+     */
+    @Nullable
+    private EventRing getRing() {
+        EventRing ring = threadRings.get();
+        return ring != null ? ring : leaseLane();
+    }
+
+    private static void publish(EventRing ring, MethodEventData slot) {
+        if (ring.isShared()) {
+            Thread thread = Thread.currentThread();
+            if (hasThreadsWithoutRing && !isVirtual(thread)) {
+                slot.setThread(RecordedThread.of(thread));
+            } else {
+                RecordedThread scope = hasScopes ? virtualThreadScopes.get() : null;
+                slot.setThread(scope != null ? scope : ring.getRecordedThread());
+            }
+            slot.setContext(hasVirtualThreadContexts ? virtualThreadContexts.get() : null);
+        } else {
+            slot.setContext(ring.getContext());
+        }
+        ring.publish();
+    }
+
+    private static void release(EventRing ring) {
+        if (ring.isShared()) {
+            ring.release();
+        }
+    }
+
+    /**
+     * Each lane is tried once. Thread does not wait for a lane
+     * because lanes may be leased by threads that are preempted
+     */
+    @Nullable
+    private EventRing leaseLane() {
+        EventRing[] lanes = this.lanes;
+        if (lanes == null) {
+            lanes = createLanes();
+        }
+        int mask = lanes.length - 1;
+        int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i < lanes.length; i++) {
+            EventRing lane = lanes[(start + i) & mask];
+            if (lane.tryLease()) {
+                return lane;
+            }
+        }
+        lanes[start & mask].dropUnleased();
+        return null;
+    }
+
+    /**
+     * Number of lanes is the number of carrier threads rounded up to power of two
+     */
+    private synchronized EventRing[] createLanes() {
+        if (lanes != null) {
+            return lanes;
+        }
+        EventRing[] lanes = new EventRing[laneCount];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = newRing(RecordedThread.group("Virtual threads " + (i + 1), VIRTUAL_THREAD_GROUP), true);
+        }
+        this.lanes = lanes;
+        return lanes;
+    }
+
+    /**
+     * Thread that does not get a ring keeps using lanes, even if budget is freed later.
+     * Context that was set before ring is created is moved to ring
+     */
+    @Nullable
+    private EventRing createRing() {
+        Thread thread = Thread.currentThread();
+        if (groupVirtualThreads && isVirtual(thread)) {
+            return null;
+        }
+        EventRing ring = newRing(RecordedThread.of(thread), false);
+        if (ring == null) {
+            hasThreadsWithoutRing = true;
+            return null;
+        }
+        AsyncContext context = virtualThreadContexts.get();
+        if (context != null) {
+            ring.setContext(context);
+            virtualThreadContexts.remove();
+        }
+        createdRings.set(ring);
+        return ring;
+    }
+
+    /**
+     * @return null if budget is exhausted. Lane is always created
+     */
+    @Nullable
+    private EventRing newRing(RecordedThread owner, boolean isShared) {
+        int capacity;
+        synchronized (this) {
+            if (isShared) {
+                allocatedSlots -= MIN_RING_CAPACITY; // reserved slots of lane
+            }
+            long freeSlots = maxSlots - allocatedSlots;
+            if (freeSlots >= ringCapacity) {
+                capacity = ringCapacity;
+            } else if (freeSlots >= MIN_RING_CAPACITY) {
+                capacity = Integer.highestOneBit((int) freeSlots);
+            } else if (isShared) {
+                capacity = MIN_RING_CAPACITY;
+            } else {
+                return null;
+            }
+            allocatedSlots += capacity;
+        }
+        int signalSize = (int) Math.min(drainBatchSize, (long) capacity * drainFillPercent / 100);
+        EventRing ring = new EventRing(owner, isShared, capacity, overflowPolicy, overflowQueue,
+                drainScheduler, signalSize);
+        rings.add(ring);
+        return ring;
+    }
+
+    static boolean isVirtual(Thread thread) {
+        if (isVirtualHandle == null) {
+            return false;
+        }
+        try {
+            return (boolean) isVirtualHandle.invokeExact(thread);
+        } catch (Throwable throwable) {
+            return false;
+        }
+    }
+
+    @Nullable
+    private static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) { // JDK before 21
+            return null;
+        }
+    }
+
+    List<EventRing> getRings() {
+        return rings;
+    }
+
+    /**
+     * Ring is removed when its thread is finished and all events of the ring are written
+     */
+    void removeRing(EventRing ring) {
+        rings.remove(ring);
+        synchronized (this) {
+            allocatedSlots -= ring.getCapacity();
+        }
+    }
+
+    DrainScheduler getDrainScheduler() {
+        return drainScheduler;
+    }
+
+    @Nullable
+    OverflowQueue getOverflowQueue() {
+        return overflowQueue;
     }
 }
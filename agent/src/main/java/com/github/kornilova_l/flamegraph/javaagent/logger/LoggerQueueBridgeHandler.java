@@ -0,0 +1,75 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import com.github.kornilova_l.flamegraph.bridge.Bridge;
+import com.github.kornilova_l.flamegraph.bridge.BridgeHandler;
+import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.AsyncContext;
+
+/**
+ * Receives events from instrumented system classes
+ */
+public class LoggerQueueBridgeHandler implements BridgeHandler {
+    /**
+     * Sets handler of Bridge. Call of Bridge.setHandler() must not be verified before bridge is
+     * appended to bootstrap class path, otherwise verifier loads BridgeHandler by system classloader
+     * and Bridge of bootstrap cannot use handler
+     */
+    public static void install() {
+        Bridge.setHandler(new LoggerQueueBridgeHandler());
+    }
+
+    @Override
+    public void addToQueue(Object retVal,
+                           long startTime,
+                           long duration,
+                           Object[] parameters,
+                           Thread thread,
+                           int methodId) {
+        LoggerQueue.addToQueue(retVal, startTime, duration, parameters, thread, methodId);
+    }
+
+    @Override
+    public void addToQueue(Throwable throwable,
+                           boolean saveMessage,
+                           long startTime,
+                           long duration,
+                           Object[] parameters,
+                           Thread thread,
+                           int methodId) {
+        LoggerQueue.addToQueue(throwable, saveMessage, startTime, duration, parameters, thread, methodId);
+    }
+
+    @Override
+    public void exit(long startTime, int methodId) {
+        LoggerQueue.exit(startTime, methodId);
+    }
+
+    @Override
+    public void exitThrown(Throwable throwable, long startTime, int methodId) {
+        LoggerQueue.exitThrown(throwable, startTime, methodId);
+    }
+
+    @Override
+    public Object submitTask(Object executor) {
+        return LoggerQueue.submitTask(executor);
+    }
+
+    @Override
+    public void attachSubmission(Object task, Object executor) {
+        LoggerQueue.attachSubmission(task, executor);
+    }
+
+    @Override
+    public Object takeSubmission(Object task) {
+        return LoggerQueue.takeSubmission(task);
+    }
+
+    @Override
+    public Object startTask(Object submission) {
+        return LoggerQueue.startTask((TaskSubmission) submission);
+    }
+
+    @Override
+    public void finishTask(Object previousContext) {
+        LoggerQueue.finishTask((AsyncContext) previousContext);
+    }
+}
@@ -0,0 +1,275 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import com.github.kornilova_l.flamegraph.javaagent.AgentFileManager;
+import com.github.kornilova_l.libs.com.google.protobuf.CodedOutputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes delimited events to memory-mapped segment files of fixed size.
+ * Segment is preallocated when it is opened and events are encoded straight to the mapping,
+ * so writing does not need system calls and pages are flushed by OS in background.
+ * <p>
+ * When event does not fit in segment, segment is truncated to its written size and next segment is opened.
+ * Event that is bigger than segment size gets a segment of its own size.
+ * Mapping is released before segment is truncated. Segment that cannot be truncated is an error,
+ * because readers would parse its zero tail as Events without type.
+ * <p>
+ * Unfinished segment ends with zero bytes, so reader that follows recording
+ * gets an Event without type at the end of written data.
+ * <p>
+ * Segment is also finished when it is open longer than max duration.
+ * Finished segments are passed to {@link SegmentArchiver} if it is set
+ */
+class MappedEventWriter extends EventWriter {
+    static final String SEGMENT_EXTENSION = ".ser";
+    private static final long ARCHIVE_TIMEOUT = 5000;
+    /**
+     * Releases mapping of buffer. It is null if mapping cannot be released explicitly,
+     * then it is released when buffer is collected
+     */
+    @Nullable
+    private static final MethodHandle unmapHandle = findUnmap();
+    private final AgentFileManager fileManager;
+    private final int segmentSize;
+    /**
+     * Segment is finished after this number of milliseconds. 0 means no limit
+     */
+    private final long maxSegmentDuration;
+    @Nullable
+    private final SegmentArchiver archiver;
+    private long segmentStartTime;
+    private File segmentFile;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    /**
+     * Number of bytes in closed segments
+     */
+    private long closedSegmentsBytes = 0;
+
+    MappedEventWriter(@NotNull AgentFileManager fileManager, int segmentSize) {
+        this(fileManager, segmentSize, 0, null);
+    }
+
+    /**
+     * @param fileManager        creates names of segment files
+     * @param maxSegmentDuration in milliseconds, 0 means no limit
+     * @param archiver           handles finished segments
+     */
+    MappedEventWriter(@NotNull AgentFileManager fileManager,
+                      int segmentSize,
+                      long maxSegmentDuration,
+                      @Nullable SegmentArchiver archiver) {
+        this.fileManager = fileManager;
+        this.segmentSize = segmentSize;
+        this.maxSegmentDuration = maxSegmentDuration;
+        this.archiver = archiver;
+    }
+
+    @Override
+    void start() {
+        if (archiver != null) {
+            Thread archiverThread = new Thread(archiver, "segment archiver");
+            archiverThread.setDaemon(true);
+            archiverThread.start();
+        }
+    }
+
+    @Override
+    boolean fits(int size) {
+        return codedOutputStream != null && size <= codedOutputStream.spaceLeft();
+    }
+
+    @Override
+    void startSegment(int minSize) throws IOException {
+        closeSegment();
+        if (isClosed) {
+            return;
+        }
+        openSegment(Math.max(segmentSize, minSize));
+    }
+
+    @Override
+    void finishSegment() throws IOException {
+        closeSegment();
+    }
+
+    @Override
+    boolean hasSegments() {
+        return true;
+    }
+
+    @Override
+    boolean isSegmentExpired() {
+        return maxSegmentDuration != 0 && channel != null &&
+                System.currentTimeMillis() - segmentStartTime >= maxSegmentDuration;
+    }
+
+    /**
+     * Opens next segment if bytes do not fit in current segment
+     *
+     * @return false if bytes do not fit in segment
+     */
+    @Override
+    boolean reserve(int size) throws IOException {
+        if (codedOutputStream != null && size <= codedOutputStream.spaceLeft()) {
+            return true;
+        }
+        closeSegment();
+        if (size > segmentSize) {
+            return false;
+        }
+        openSegment(segmentSize);
+        return true;
+    }
+
+    @Override
+    void writeDirectly(@NotNull byte[] bytes) throws IOException {
+        closeSegment();
+        openSegment(bytes.length);
+        codedOutputStream.writeRawBytes(bytes); // buffer gets its position from stream when segment is closed
+        closeSegment();
+    }
+
+    private void openSegment(int size) throws IOException {
+        segmentFile = fileManager.getNextFile(SEGMENT_EXTENSION);
+        channel = FileChannel.open(segmentFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size); // file is extended to size
+        codedOutputStream = CodedOutputStream.newInstance(buffer);
+        segmentStartTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Forces segment to disk, releases its mapping and truncates it to written size.
+     * Next message will open a new segment
+     *
+     * @throws IOException if segment cannot be truncated. It is not archived then
+     */
+    private void closeSegment() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        codedOutputStream.flush(); // sets position of buffer
+        int position = buffer.position();
+        buffer.force();
+        File segmentFile = this.segmentFile;
+        FileChannel channel = this.channel;
+        MappedByteBuffer buffer = this.buffer;
+        this.segmentFile = null;
+        this.channel = null;
+        this.buffer = null;
+        codedOutputStream = null;
+        closedSegmentsBytes += position;
+        bytesWritten = closedSegmentsBytes;
+        try {
+            unmap(buffer);
+            channel.truncate(position);
+            channel.force(true); // new size of file
+        } catch (IOException e) {
+            throw new IOException("Cannot truncate segment " + segmentFile, e);
+        } finally {
+            channel.close();
+        }
+        if (archiver != null) {
+            archiver.add(segmentFile);
+        }
+    }
+
+    /**
+     * Buffer must not be used after this call
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        if (unmapHandle == null) {
+            return;
+        }
+        try {
+            unmapHandle.invokeExact((ByteBuffer) buffer);
+        } catch (Throwable throwable) { // mapping is released when buffer is collected
+            System.err.println("Cannot release mapping of segment: " + throwable);
+        }
+    }
+
+    /**
+     * Unsafe.invokeCleaner() is available since Java 9, Java 8 has cleaner in direct buffer
+     */
+    @Nullable
+    private static MethodHandle findUnmap() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+        }
+        try {
+            Method cleaner = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return MethodHandles.filterReturnValue(MethodHandles.lookup().unreflect(cleaner),
+                    MethodHandles.lookup().unreflect(clean))
+                    .asType(MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Events are already in mapped memory, only counter of written bytes is updated
+     */
+    @Override
+    void flush() throws IOException {
+        if (codedOutputStream != null) {
+            codedOutputStream.flush();
+            bytesWritten = closedSegmentsBytes + buffer.position();
+        }
+    }
+
+    /**
+     * Forces pages of current segment to disk. Finished segments are already forced
+     */
+    @Override
+    void sync() throws IOException {
+        flush();
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Finishes current segment and waits until all finished segments are archived
+     * (at most {@link #ARCHIVE_TIMEOUT} milliseconds, so exit of application is not blocked).
+     * Events that are written after this are dropped, no segment is opened
+     */
+    @Override
+    void close() throws IOException {
+        closeSegment();
+        isClosed = true;
+        if (archiver != null && !archiver.awaitArchived(ARCHIVE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            System.err.println("Finished segments were not archived in " + ARCHIVE_TIMEOUT + " ms");
+        }
+    }
+
+    /**
+     * @return true if finished segments are being archived
+     */
+    @Override
+    boolean isFlushing() {
+        return archiver != null && archiver.isBusy();
+    }
+}
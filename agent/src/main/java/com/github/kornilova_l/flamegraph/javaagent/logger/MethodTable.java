@@ -0,0 +1,204 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Each instrumented method gets an id when its class is transformed.
+ * Probes pass only this id, name, description and indexes of saved parameters
+ * are looked up here when events are written.
+ * <p>
+ * Methods are registered by transformer (possibly from several threads)
+ * and read by logging thread, so {@link #methods} is replaced on each registration.
+ * <p>
+ * Class is transformed again each time configuration changes, so method that is registered again
+ * with the same class loader and the same probe layout keeps its id and table does not grow.
+ */
+public class MethodTable {
+    public static final String QUEUE_WAIT_METHOD = "<queue wait>";
+    private volatile MethodInfo[] methods = new MethodInfo[64];
+    private int size = 0;
+    /**
+     * Ids of registered methods by class loader of their class (key of bootstrap classes is null).
+     * Classloaders are weak keys, so ids of unloaded classes are forgotten
+     */
+    private final Map<ClassLoader, Map<MethodKey, Integer>> ids = new WeakHashMap<>();
+
+    /**
+     * Registers method of class that is loaded by bootstrap class loader
+     *
+     * @return id of method. Ids start from 1
+     */
+    public int register(@NotNull String className,
+                        @NotNull String methodName,
+                        @NotNull String desc,
+                        boolean isStatic,
+                        @NotNull int[] savedParameters) {
+        return register(null, className, methodName, desc, isStatic, savedParameters, 0);
+    }
+
+    /**
+     * @param loader            class loader of class, null for bootstrap class loader
+     * @param durationThreshold minimal duration of recorded call in units of time of probes.
+     *                          It is checked by LoggerQueue only for compact probes
+     * @return id of method. Ids start from 1.
+     * If method was registered with the same loader, parameters and threshold its id is returned
+     */
+    public synchronized int register(@Nullable ClassLoader loader,
+                                     @NotNull String className,
+                                     @NotNull String methodName,
+                                     @NotNull String desc,
+                                     boolean isStatic,
+                                     @NotNull int[] savedParameters,
+                                     long durationThreshold) {
+        MethodKey key = new MethodKey(className, methodName, desc, isStatic, savedParameters, durationThreshold);
+        Map<MethodKey, Integer> loaderIds = ids.get(loader);
+        if (loaderIds == null) {
+            loaderIds = new HashMap<>();
+            ids.put(loader, loaderIds);
+        }
+        Integer id = loaderIds.get(key);
+        if (id == null) {
+            id = add(new MethodInfo(className, methodName, desc, isStatic, savedParameters, durationThreshold, null));
+            loaderIds.put(key, id);
+        }
+        return id;
+    }
+
+    /**
+     * Registers method that is recorded when task starts after waiting in queue of executor
+     * (see {@link #QUEUE_WAIT_METHOD})
+     *
+     * @param executor  class name of executor followed by its identity hash code
+     * @param submitter class name and name of method that submitted tasks
+     * @return id of method
+     */
+    public synchronized int registerQueueWait(@NotNull String executor, @NotNull String submitter) {
+        return add(new MethodInfo(executor, QUEUE_WAIT_METHOD, "()V", false, new int[0], 0, submitter));
+    }
+
+    private int add(MethodInfo methodInfo) {
+        int id = ++size;
+        MethodInfo[] methods = this.methods;
+        if (id >= methods.length) {
+            methods = Arrays.copyOf(methods, methods.length * 2);
+        }
+        methods[id] = methodInfo;
+        this.methods = methods; // volatile write publishes new method
+        return id;
+    }
+
+    @Nullable
+    public MethodInfo get(int id) {
+        MethodInfo[] methods = this.methods;
+        if (id <= 0 || id >= methods.length) {
+            return null;
+        }
+        return methods[id];
+    }
+
+    /**
+     * Everything that probe of method depends on except its class loader
+     */
+    private static class MethodKey {
+        private final String className;
+        private final String methodName;
+        private final String desc;
+        private final boolean isStatic;
+        private final int[] savedParameters;
+        private final long durationThreshold;
+
+        MethodKey(String className,
+                  String methodName,
+                  String desc,
+                  boolean isStatic,
+                  int[] savedParameters,
+                  long durationThreshold) {
+            this.className = className;
+            this.methodName = methodName;
+            this.desc = desc;
+            this.isStatic = isStatic;
+            this.savedParameters = savedParameters.clone();
+            this.durationThreshold = durationThreshold;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MethodKey)) {
+                return false;
+            }
+            MethodKey key = (MethodKey) o;
+            return isStatic == key.isStatic &&
+                    durationThreshold == key.durationThreshold &&
+                    className.equals(key.className) &&
+                    methodName.equals(key.methodName) &&
+                    desc.equals(key.desc) &&
+                    Arrays.equals(savedParameters, key.savedParameters);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Objects.hash(className, methodName, desc, isStatic, durationThreshold);
+            return 31 * result + Arrays.hashCode(savedParameters);
+        }
+    }
+
+    public static class MethodInfo {
+        private static final AtomicIntegerFieldUpdater<MethodInfo> registeredSegmentUpdater =
+                AtomicIntegerFieldUpdater.newUpdater(MethodInfo.class, "registeredSegment");
+        public final String className;
+        public final String methodName;
+        public final String desc;
+        public final boolean isStatic;
+        /**
+         * Indexes (starting from 1) of parameters that are passed in array of parameters
+         */
+        public final int[] savedParameters;
+        /**
+         * Minimal duration of recorded call
+         * (see {@link #register(ClassLoader, String, String, String, boolean, int[], long)})
+         */
+        public final long durationThreshold;
+        /**
+         * Method that submitted tasks. It is set only for {@link #QUEUE_WAIT_METHOD}
+         */
+        @Nullable
+        public final String submitter;
+        /**
+         * Last segment of recording to which newMethod event was written. 0 if it was never written
+         */
+        private volatile int registeredSegment = 0;
+
+        MethodInfo(String className,
+                   String methodName,
+                   String desc,
+                   boolean isStatic,
+                   int[] savedParameters,
+                   long durationThreshold,
+                   @Nullable String submitter) {
+            this.className = className;
+            this.methodName = methodName;
+            this.desc = desc;
+            this.isStatic = isStatic;
+            this.savedParameters = savedParameters;
+            this.durationThreshold = durationThreshold;
+            this.submitter = submitter;
+        }
+
+        /**
+         * Only one of the threads that register method in the same segment gets true
+         *
+         * @return true if newMethod event was not written to segment and caller must write it
+         */
+        public boolean claimRegistration(int segment) {
+            int registered = registeredSegment;
+            return registered != segment && registeredSegmentUpdater.compareAndSet(this, registered, segment);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Defines what happens with new event if ring of thread is full.
+ * It is set by javaagent option "overflow"
+ */
+public enum OverflowPolicy {
+    /**
+     * New event is not recorded
+     */
+    DROP_NEWEST("drop-newest"),
+    /**
+     * The oldest event of the ring is removed and new event takes its slot.
+     * If logging thread is reading the oldest event at the moment, new event is not recorded
+     */
+    DROP_OLDEST("drop-oldest"),
+    /**
+     * If more than half of the ring is occupied only every 2nd event is recorded,
+     * more than 3/4 - every 4th, more than 7/8 - every 8th. New event is not recorded if ring is full
+     */
+    SAMPLE("sample"),
+    /**
+     * New event is added to overflow queue that logging thread drains after rings.
+     * Event is not recorded if queue is full (it is limited by a quarter of memory budget)
+     */
+    SPILL("spill");
+
+    private final String optionValue;
+
+    OverflowPolicy(String optionValue) {
+        this.optionValue = optionValue;
+    }
+
+    @NotNull
+    public static OverflowPolicy fromOption(@NotNull String value) {
+        for (OverflowPolicy policy : values()) {
+            if (policy.optionValue.equals(value)) {
+                return policy;
+            }
+        }
+        System.out.println("Unknown overflow policy: " + value + ". " + DROP_NEWEST.optionValue + " is used");
+        return DROP_NEWEST;
+    }
+
+    @Override
+    public String toString() {
+        return optionValue;
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.MethodEventData;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Events that did not fit in rings (overflow policy {@link OverflowPolicy#SPILL}).
+ * Producer moves data of filled slot to a new slot (see {@link MethodEventData#moveTo(MethodEventData)})
+ * and adds it here, logging thread takes slots after it drained rings.
+ * So parameters are converted to strings and events are written only by logging thread.
+ * <p>
+ * Number of queued events is limited by part of memory budget (see {@link LoggerQueue})
+ */
+class OverflowQueue {
+    private final Queue<MethodEventData> slots = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int capacity;
+
+    OverflowQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Called by producer before it fills slot for event that will be added to queue
+     *
+     * @return false if queue is full
+     */
+    boolean hasSpace() {
+        return size.get() < capacity;
+    }
+
+    /**
+     * @param slot filled slot that is not used by producer anymore
+     * @return false if queue is full, event is not recorded
+     */
+    boolean offer(@NotNull MethodEventData slot) {
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            return false;
+        }
+        slots.add(slot);
+        return true;
+    }
+
+    /**
+     * Called only by logging thread
+     *
+     * @param maxCount maximum number of events that are passed to consumer
+     * @return number of drained events
+     */
+    int drain(@NotNull EventRing.SlotConsumer consumer, int maxCount) {
+        int count = 0;
+        MethodEventData slot;
+        while (count < maxCount && (slot = slots.poll()) != null) {
+            size.decrementAndGet();
+            consumer.accept(slot);
+            count++;
+        }
+        return count;
+    }
+
+    boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+}
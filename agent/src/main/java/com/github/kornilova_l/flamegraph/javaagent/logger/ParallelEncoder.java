@@ -0,0 +1,255 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.MethodEventData;
+import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.MethodEventSerializer;
+import com.github.kornilova_l.flamegraph.proto.EventProtos.Event;
+import com.github.kornilova_l.libs.com.google.protobuf.CodedOutputStream;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Encodes method events on a pool of worker threads.
+ * <p>
+ * Logging thread registers names and methods of each slot (so registration events are created in order),
+ * moves data of slot to a {@link Batch} together with its registration events and passes full batch to pool.
+ * Each batch is encoded to its own buffer. Logging thread is the only writer:
+ * it appends encoded batches to {@link EventWriter} in the order in which batches were created,
+ * so registration event of each name is written before its first use.
+ * <p>
+ * All methods are called by logging thread
+ */
+class ParallelEncoder {
+    private static final int BATCH_SIZE = 256;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private final ExecutorService pool;
+    private final EventWriter eventWriter;
+    private final long startTimeOffset;
+    /**
+     * Maximum number of batches that are encoded or wait to be written
+     */
+    private final int maxBatchesInFlight;
+    /**
+     * Batches in order of creation
+     */
+    private final Deque<Future<Batch>> batchesInFlight = new ArrayDeque<>();
+    private final Deque<Batch> freeBatches = new ArrayDeque<>();
+    private Batch currentBatch;
+
+    /**
+     * @param threadsCount    number of worker threads
+     * @param startTimeOffset is added to start time of events
+     */
+    ParallelEncoder(int threadsCount, @NotNull EventWriter eventWriter, long startTimeOffset) {
+        pool = Executors.newFixedThreadPool(threadsCount, runnable -> {
+            Thread thread = new Thread(runnable, "event encoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.eventWriter = eventWriter;
+        this.startTimeOffset = startTimeOffset;
+        maxBatchesInFlight = threadsCount * 2;
+    }
+
+    /**
+     * Data of slot is moved to batch, so slot may be cleared after this call
+     *
+     * @param threadId           id of thread of slot
+     * @param registrationEvents events that must be written before event of slot
+     */
+    void add(@NotNull MethodEventData slot, long threadId, @NotNull List<Event> registrationEvents)
+            throws IOException {
+        if (currentBatch == null) {
+            currentBatch = freeBatches.isEmpty() ? new Batch(startTimeOffset) : freeBatches.poll();
+        }
+        currentBatch.add(slot, threadId, registrationEvents);
+        if (currentBatch.size == BATCH_SIZE) {
+            submitCurrentBatch();
+        }
+    }
+
+    private void submitCurrentBatch() throws IOException {
+        while (batchesInFlight.size() >= maxBatchesInFlight) {
+            writeBatch(batchesInFlight.poll());
+        }
+        batchesInFlight.add(pool.submit(currentBatch));
+        currentBatch = null;
+        while (!batchesInFlight.isEmpty() && batchesInFlight.peek().isDone()) {
+            writeBatch(batchesInFlight.poll());
+        }
+    }
+
+    /**
+     * Encodes current batch and writes all batches.
+     * It must be called before any event is written to {@link EventWriter} by logging thread directly
+     */
+    void writeAll() throws IOException {
+        if (currentBatch != null) {
+            submitCurrentBatch();
+        }
+        while (!batchesInFlight.isEmpty()) {
+            writeBatch(batchesInFlight.poll());
+        }
+    }
+
+    /**
+     * Shuts down worker threads. It is called after {@link #writeAll()} when output is closed
+     */
+    void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * Waits until batch is encoded and writes it.
+     * If batch was not encoded, its method events are counted as lost and its registration events
+     * are written by logging thread, because batches that were created after it use registered names.
+     * If registration events cannot be written either, they are lost too and registrations are reset,
+     * so names and methods are registered again before next use
+     */
+    private void writeBatch(Future<Batch> future) throws IOException {
+        Batch batch;
+        try {
+            batch = future.get();
+        } catch (InterruptedException | ExecutionException e) { // batch keeps its failure, so this should not happen
+            throw new IOException(e);
+        }
+        if (batch.failure != null) {
+            batch.failure.printStackTrace();
+            eventWriter.eventsLost += batch.drop();
+            writeRegistrationEvents(batch);
+        } else {
+            batch.buffer.flip();
+            eventWriter.writeEncoded(batch.buffer, batch.eventsCount);
+        }
+        batch.clear();
+        freeBatches.add(batch);
+    }
+
+    private void writeRegistrationEvents(Batch batch) throws IOException {
+        int written = 0;
+        try {
+            for (Event event : batch.registrationEvents) {
+                eventWriter.write(event);
+                written++;
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            eventWriter.eventsLost += batch.registrationEvents.size() - written;
+            MethodEventData.resetRegistrations();
+        }
+    }
+
+    /**
+     * Slots and registration events that are encoded by one worker
+     */
+    private static class Batch implements Callable<Batch> {
+        private final long startTimeOffset;
+        private final MethodEventData[] slots = new MethodEventData[BATCH_SIZE];
+        private final long[] threadIds = new long[BATCH_SIZE];
+        private final List<Event> registrationEvents = new ArrayList<>();
+        /**
+         * Registration events of slot i are in registrationEvents before index registrationEnds[i]
+         */
+        private final int[] registrationEnds = new int[BATCH_SIZE];
+        private int size = 0;
+        private final MethodEventSerializer serializer = new MethodEventSerializer();
+        private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private CodedOutputStream codedOutputStream = CodedOutputStream.newInstance(buffer);
+        private int eventsCount;
+        private Throwable failure;
+
+        Batch(long startTimeOffset) {
+            this.startTimeOffset = startTimeOffset;
+        }
+
+        void add(MethodEventData slot, long threadId, List<Event> slotRegistrationEvents) {
+            if (slots[size] == null) {
+                slots[size] = new MethodEventData();
+            }
+            slot.moveTo(slots[size]);
+            threadIds[size] = threadId;
+            registrationEvents.addAll(slotRegistrationEvents);
+            registrationEnds[size] = registrationEvents.size();
+            size++;
+        }
+
+        /**
+         * Runs on worker thread. If encoding fails, failure is saved and batch is returned,
+         * so logging thread knows which events are lost
+         */
+        @Override
+        public Batch call() {
+            try {
+                encode();
+            } catch (Throwable throwable) {
+                failure = throwable;
+            }
+            return this;
+        }
+
+        private void encode() throws IOException {
+            int registrationIndex = 0;
+            for (int i = 0; i < size; i++) {
+                for (; registrationIndex < registrationEnds[i]; registrationIndex++) {
+                    Event event = registrationEvents.get(registrationIndex);
+                    int eventSize = event.getSerializedSize();
+                    ensureSpace(EventWriter.computeDelimitedSize(eventSize));
+                    codedOutputStream.writeUInt32NoTag(eventSize);
+                    event.writeTo(codedOutputStream);
+                    eventsCount++;
+                }
+                if (serializer.set(slots[i], threadIds[i], startTimeOffset)) {
+                    int eventSize = serializer.getSerializedSize();
+                    ensureSpace(EventWriter.computeDelimitedSize(eventSize));
+                    codedOutputStream.writeUInt32NoTag(eventSize);
+                    serializer.writeTo(codedOutputStream);
+                    eventsCount++;
+                }
+                slots[i].clear(); // references to user objects are not needed anymore
+            }
+            codedOutputStream.flush(); // sets position of buffer
+        }
+
+        /**
+         * Clears slots of batch that was not encoded
+         *
+         * @return number of method events that were not written
+         */
+        int drop() {
+            for (int i = 0; i < size; i++) {
+                slots[i].clear();
+            }
+            return size;
+        }
+
+        private void ensureSpace(int size) throws IOException {
+            if (size <= codedOutputStream.spaceLeft()) {
+                return;
+            }
+            codedOutputStream.flush();
+            buffer.flip();
+            ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.limit() + size));
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+            codedOutputStream = CodedOutputStream.newInstance(buffer);
+        }
+
+        /**
+         * Buffer is kept for next batch
+         */
+        void clear() {
+            buffer.clear();
+            codedOutputStream = CodedOutputStream.newInstance(buffer);
+            registrationEvents.clear();
+            size = 0;
+            eventsCount = 0;
+            failure = null;
+        }
+    }
+}
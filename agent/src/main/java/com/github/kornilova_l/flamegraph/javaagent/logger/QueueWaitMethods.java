@@ -0,0 +1,240 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Time that task waited in queue of executor is recorded as call of {@link MethodTable#QUEUE_WAIT_METHOD}.
+ * Method is registered for each pair of executor and method that submitted task,
+ * so waiting is broken down by executor and by submitter.
+ * <p>
+ * Submitter is the first frame of stack that is not in java.util.concurrent, jdk.internal or agent.
+ * Stack is walked by StackWalker of JDK 9 (it stops at the first matching frame),
+ * on older JDKs stack trace of Throwable is used.
+ * <p>
+ * Methods are found by executor (weak key) and by class and method name of submitter,
+ * so no strings are built when task is submitted by known submitter.
+ * Number of methods is limited: only first {@link #DEFAULT_MAX_EXECUTORS} executors get their own methods,
+ * next executors share methods with other executors of the same class,
+ * and submitters of executor that exceed {@link #DEFAULT_MAX_SUBMITTERS} are recorded as {@link #OTHER_SUBMITTERS}
+ */
+class QueueWaitMethods {
+    static final int DEFAULT_MAX_EXECUTORS = 256;
+    static final int DEFAULT_MAX_SUBMITTERS = 64;
+    private static final String UNKNOWN_SUBMITTER = "unknown";
+    static final String OTHER_SUBMITTERS = "other";
+    /**
+     * StackWalker.getInstance() or null on JDK 8
+     */
+    @Nullable
+    private static final Object stackWalker;
+    /**
+     * StackWalker.walk(Function) with type (Object, Function)Object
+     */
+    @Nullable
+    private static final MethodHandle walkHandle;
+    /**
+     * StackFrame.getClassName() and StackFrame.getMethodName() with type (Object)String
+     */
+    @Nullable
+    private static final MethodHandle classNameHandle;
+    @Nullable
+    private static final MethodHandle methodNameHandle;
+
+    static {
+        Object walker = null;
+        MethodHandle walk = null;
+        MethodHandle className = null;
+        MethodHandle methodName = null;
+        try {
+            Class<?> walkerClass = Class.forName("java.lang.StackWalker");
+            Class<?> frameClass = Class.forName("java.lang.StackWalker$StackFrame");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            walker = lookup.findStatic(walkerClass, "getInstance", MethodType.methodType(walkerClass)).invoke();
+            walk = lookup.findVirtual(walkerClass, "walk", MethodType.methodType(Object.class, Function.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, Function.class));
+            MethodType nameType = MethodType.methodType(String.class, Object.class);
+            className = lookup.findVirtual(frameClass, "getClassName", MethodType.methodType(String.class))
+                    .asType(nameType);
+            methodName = lookup.findVirtual(frameClass, "getMethodName", MethodType.methodType(String.class))
+                    .asType(nameType);
+        } catch (Throwable throwable) { // JDK 8
+            walker = null;
+            walk = null;
+        }
+        stackWalker = walker;
+        walkHandle = walk;
+        classNameHandle = className;
+        methodNameHandle = methodName;
+    }
+
+    private final MethodTable methodTable;
+    private final int maxExecutors;
+    private final int maxSubmitters;
+    private final WeakIdentityMap<ExecutorMethods> executors = new WeakIdentityMap<>();
+    /**
+     * Number of executors that got their own methods
+     */
+    private final AtomicInteger executorsCount = new AtomicInteger();
+    /**
+     * Class of executor -> methods that are shared by executors of this class after limit is reached
+     */
+    private final Map<String, ExecutorMethods> executorClasses = new ConcurrentHashMap<>();
+
+    QueueWaitMethods(@NotNull MethodTable methodTable) {
+        this(methodTable, DEFAULT_MAX_EXECUTORS, DEFAULT_MAX_SUBMITTERS);
+    }
+
+    QueueWaitMethods(@NotNull MethodTable methodTable, int maxExecutors, int maxSubmitters) {
+        this.methodTable = methodTable;
+        this.maxExecutors = maxExecutors;
+        this.maxSubmitters = maxSubmitters;
+    }
+
+    /**
+     * It is called by thread that submits task
+     *
+     * @return id of method that is recorded when task starts
+     */
+    int getMethodId(@NotNull Object executor) {
+        String className = UNKNOWN_SUBMITTER;
+        String methodName = "";
+        if (walkHandle != null) {
+            try {
+                Object frame = walkHandle.invokeExact(stackWalker,
+                        (Function<Stream<Object>, Object>) QueueWaitMethods::findInFrames);
+                if (frame != null) {
+                    assert classNameHandle != null && methodNameHandle != null;
+                    className = (String) classNameHandle.invokeExact(frame);
+                    methodName = (String) methodNameHandle.invokeExact(frame);
+                }
+            } catch (Throwable throwable) {
+                className = UNKNOWN_SUBMITTER;
+                methodName = "";
+            }
+        } else {
+            for (StackTraceElement element : new Throwable().getStackTrace()) {
+                if (isSubmitter(element.getClassName())) {
+                    className = element.getClassName();
+                    methodName = element.getMethodName();
+                    break;
+                }
+            }
+        }
+        return getMethodId(executor, className, methodName);
+    }
+
+    /**
+     * @param methodName name of method of submitter or empty string if submitter is unknown
+     */
+    int getMethodId(@NotNull Object executor, @NotNull String className, @NotNull String methodName) {
+        ExecutorMethods methods = executors.get(executor);
+        if (methods == null) {
+            methods = addExecutor(executor);
+        }
+        return methods.getMethodId(className, methodName);
+    }
+
+    /**
+     * @return number of executors that are not collected yet
+     */
+    int getExecutorsCount() {
+        return executors.size();
+    }
+
+    @NotNull
+    private ExecutorMethods addExecutor(@NotNull Object executor) {
+        String className = executor.getClass().getName().replace('.', '/');
+        ExecutorMethods methods;
+        if (executorsCount.get() < maxExecutors && executorsCount.incrementAndGet() <= maxExecutors) {
+            methods = new ExecutorMethods(className + "@" + Integer.toHexString(System.identityHashCode(executor)));
+        } else {
+            methods = executorClasses.computeIfAbsent(className, ExecutorMethods::new);
+        }
+        ExecutorMethods previous = executors.putIfAbsent(executor, methods);
+        return previous == null ? methods : previous;
+    }
+
+    /**
+     * @return the first frame of submitter
+     */
+    @Nullable
+    private static Object findInFrames(Stream<Object> frames) {
+        assert classNameHandle != null && methodNameHandle != null;
+        Iterator<Object> iterator = frames.iterator();
+        try {
+            while (iterator.hasNext()) {
+                Object frame = iterator.next();
+                String className = (String) classNameHandle.invokeExact(frame);
+                if (isSubmitter(className)) {
+                    return frame;
+                }
+            }
+        } catch (Throwable throwable) {
+            return null;
+        }
+        return null;
+    }
+
+    private static boolean isSubmitter(String className) {
+        return !className.startsWith("java.util.concurrent.") &&
+                !className.startsWith("jdk.internal.") &&
+                !className.startsWith("com.github.kornilova_l.flamegraph.");
+    }
+
+    /**
+     * Methods of executor (or of executors of the same class)
+     */
+    private final class ExecutorMethods {
+        private final String name;
+        /**
+         * Class of submitter -> method of submitter -> id of method
+         */
+        private final Map<String, Map<String, Integer>> ids = new ConcurrentHashMap<>();
+        private int submittersCount = 0;
+        private int otherSubmittersId = 0;
+
+        ExecutorMethods(@NotNull String name) {
+            this.name = name;
+        }
+
+        int getMethodId(@NotNull String className, @NotNull String methodName) {
+            Map<String, Integer> methods = ids.get(className);
+            if (methods != null) {
+                Integer id = methods.get(methodName);
+                if (id != null) {
+                    return id;
+                }
+            }
+            return register(className, methodName);
+        }
+
+        private synchronized int register(@NotNull String className, @NotNull String methodName) {
+            Map<String, Integer> methods = ids.get(className);
+            Integer id = methods == null ? null : methods.get(methodName);
+            if (id != null) {
+                return id;
+            }
+            if (submittersCount >= maxSubmitters) {
+                if (otherSubmittersId == 0) {
+                    otherSubmittersId = methodTable.registerQueueWait(name, OTHER_SUBMITTERS);
+                }
+                return otherSubmittersId;
+            }
+            submittersCount++;
+            id = methodTable.registerQueueWait(name, methodName.isEmpty() ? className : className + "." + methodName);
+            ids.computeIfAbsent(className, k -> new ConcurrentHashMap<>()).put(methodName, id);
+            return id;
+        }
+    }
+}
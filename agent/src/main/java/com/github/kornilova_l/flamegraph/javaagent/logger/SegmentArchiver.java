@@ -0,0 +1,162 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Background thread that handles finished segments of recording:
+ * compresses them with {@link Deflater} (zlib format, readable with {@link java.util.zip.InflaterInputStream})
+ * and deletes the oldest segments if there are more than {@link #maxSegments}
+ */
+class SegmentArchiver implements Runnable {
+    static final String COMPRESSED_EXTENSION = ".zlib";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final boolean compress;
+    /**
+     * 0 means that all segments are kept
+     */
+    private final int maxSegments;
+    private final BlockingQueue<File> finishedSegments = new LinkedBlockingQueue<>();
+    /**
+     * Segments that are already archived, the oldest is first. Used only by archiver thread
+     */
+    private final Deque<File> archivedSegments = new ArrayDeque<>();
+    /**
+     * Number of segments that were added but are not archived yet
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+    /**
+     * Archiver thread notifies waiters on it when {@link #pending} becomes 0
+     */
+    private final Object archivedLock = new Object();
+
+    /**
+     * @param compress    if true segments are compressed, original files are deleted
+     * @param maxSegments maximum number of finished segments that are kept. 0 means no limit
+     */
+    SegmentArchiver(boolean compress, int maxSegments) {
+        this.compress = compress;
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * It is called by logging thread when segment is closed
+     */
+    void add(@NotNull File segment) {
+        pending.incrementAndGet();
+        finishedSegments.add(segment);
+    }
+
+    @Override
+    public void run() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            File segment;
+            try {
+                segment = finishedSegments.take();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                continue;
+            }
+            try {
+                archive(segment);
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // next segments are still archived
+            } finally {
+                if (pending.decrementAndGet() == 0) {
+                    synchronized (archivedLock) {
+                        archivedLock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    private void archive(File segment) {
+        File archived = segment;
+        if (compress) {
+            try {
+                archived = compress(segment);
+            } catch (IOException e) {
+                System.err.println("Cannot compress segment " + segment + ": " + e.getMessage());
+            }
+        }
+        archivedSegments.addLast(archived);
+        while (maxSegments > 0 && archivedSegments.size() > maxSegments) {
+            File oldest = archivedSegments.removeFirst();
+            if (!oldest.delete()) {
+                System.err.println("Cannot delete segment " + oldest);
+            }
+        }
+    }
+
+    private static File compress(File segment) throws IOException {
+        File compressed = new File(segment.getPath() + COMPRESSED_EXTENSION);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (InputStream inputStream = new FileInputStream(segment);
+             OutputStream outputStream = new DeflaterOutputStream(
+                     new FileOutputStream(compressed), deflater, BUFFER_SIZE)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            if (compressed.exists() && !compressed.delete()) {
+                System.err.println("Cannot delete " + compressed);
+            }
+            throw e;
+        } finally {
+            deflater.end();
+        }
+        if (!segment.delete()) {
+            System.err.println("Cannot delete compressed segment " + segment);
+        }
+        return compressed;
+    }
+
+    /**
+     * @return true if some finished segments are not archived yet
+     */
+    boolean isBusy() {
+        return pending.get() != 0;
+    }
+
+    /**
+     * Waits until all finished segments are archived
+     */
+    void awaitArchived() throws IOException {
+        awaitArchived(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return false if some segments are not archived in timeout
+     * @see #awaitArchived()
+     */
+    boolean awaitArchived(long timeout, TimeUnit unit) throws IOException {
+        long deadline = System.nanoTime() + Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+        synchronized (archivedLock) {
+            while (isBusy()) {
+                long timeLeft = deadline - System.nanoTime();
+                if (timeLeft <= 0) {
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(archivedLock, timeLeft);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,30 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.AsyncContext;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * It is created when task is submitted to executor and it is kept by wrapper of task
+ * or attached to task (see {@link LoggerQueue#attachSubmission(Object, Object)}) until task starts
+ */
+final class TaskSubmission {
+    /**
+     * It is null if contexts of tasks are not recorded
+     */
+    @Nullable
+    final AsyncContext context;
+    /**
+     * In units of time of probes
+     */
+    final long submitTime;
+    /**
+     * Id of {@link MethodTable#QUEUE_WAIT_METHOD} for executor and submitter. 0 if waiting is not recorded
+     */
+    final int queueWaitMethodId;
+
+    TaskSubmission(@Nullable AsyncContext context, long submitTime, int queueWaitMethodId) {
+        this.context = context;
+        this.submitTime = submitTime;
+        this.queueWaitMethodId = queueWaitMethodId;
+    }
+}
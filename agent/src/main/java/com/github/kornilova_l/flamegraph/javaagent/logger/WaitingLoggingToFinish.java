@@ -1,10 +1,16 @@
 package com.github.kornilova_l.flamegraph.javaagent.logger;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * This thread is set as shutdown hook
- * it waits for daemon Logger-thread to finish logging
+ * it waits for daemon Logger-thread to write all events and closes output
  */
 public class WaitingLoggingToFinish extends Thread {
+    /**
+     * Shutdown is not blocked forever if logging thread cannot write events
+     */
+    private static final long FLUSH_TIMEOUT = 60;
     private Logger logger;
 
 
@@ -15,13 +21,14 @@ public class WaitingLoggingToFinish extends Thread {
 
     @Override
     public void run() {
-        while (!logger.loggerQueue.queue.isEmpty() || logger.isWriting()) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        try {
+            if (!logger.flush(FLUSH_TIMEOUT, TimeUnit.SECONDS)) {
+                System.err.println("Events were not written in " + FLUSH_TIMEOUT + " seconds, recording may be incomplete");
             }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
         }
+        logger.closeOutput();
         logger.printStatus();
     }
 }
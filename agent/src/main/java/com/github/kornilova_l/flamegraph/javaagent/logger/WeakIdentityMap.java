@@ -0,0 +1,80 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent map that compares keys by identity and does not keep them from being collected.
+ * Entries of collected keys are removed when new entries are added.
+ * Keys are objects of application (tasks, executors), so their equals() and hashCode() are never called
+ */
+class WeakIdentityMap<V> {
+    private final ConcurrentHashMap<Key, V> map = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Object> collectedKeys = new ReferenceQueue<>();
+
+    @Nullable
+    V get(@NotNull Object key) {
+        return map.isEmpty() ? null : map.get(new Key(key, null));
+    }
+
+    /**
+     * @return previous value or null if value was added
+     */
+    @Nullable
+    V putIfAbsent(@NotNull Object key, @NotNull V value) {
+        removeCollected();
+        return map.putIfAbsent(new Key(key, collectedKeys), value);
+    }
+
+    @Nullable
+    V remove(@NotNull Object key) {
+        return map.isEmpty() ? null : map.remove(new Key(key, null));
+    }
+
+    int size() {
+        removeCollected();
+        return map.size();
+    }
+
+    private void removeCollected() {
+        Reference<?> key;
+        while ((key = collectedKeys.poll()) != null) {
+            //noinspection SuspiciousMethodCalls
+            map.remove(key);
+        }
+    }
+
+    private static final class Key extends WeakReference<Object> {
+        private final int hash;
+
+        Key(Object referent, @Nullable ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        /**
+         * Collected key is equal only to itself, so it can be removed
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Object referent = get();
+            return referent != null && referent == ((Key) o).get();
+        }
+    }
+}
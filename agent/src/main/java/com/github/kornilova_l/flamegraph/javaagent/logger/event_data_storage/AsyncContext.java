@@ -0,0 +1,59 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage;
+
+import com.github.kornilova_l.flamegraph.proto.EventProtos.Event;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Context of task (Runnable or Callable) that was submitted to executor.
+ * It is captured when task is submitted and it is current context of thread while task runs,
+ * so events of task are linked to the task that submitted it and to the request that started the chain.
+ * <p>
+ * Context is immutable, slots keep reference to it, so recording of event with context costs one field write
+ */
+public final class AsyncContext {
+    private static final AtomicLong lastTaskId = new AtomicLong();
+    private final long requestId;
+    private final long taskId;
+    private final long parentTaskId;
+
+    private AsyncContext(long requestId, long taskId, long parentTaskId) {
+        this.requestId = requestId;
+        this.taskId = taskId;
+        this.parentTaskId = parentTaskId;
+    }
+
+    /**
+     * @param current context of thread that submits task
+     * @return context of submitted task. If current context is null, task starts new request
+     */
+    @NotNull
+    public static AsyncContext capture(@Nullable AsyncContext current) {
+        long taskId = lastTaskId.incrementAndGet();
+        if (current == null) {
+            return new AsyncContext(taskId, taskId, 0);
+        }
+        return new AsyncContext(current.requestId, taskId, current.taskId);
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public long getTaskId() {
+        return taskId;
+    }
+
+    public long getParentTaskId() {
+        return parentTaskId;
+    }
+
+    Event.AsyncContext.Builder toProto() {
+        return Event.AsyncContext.newBuilder()
+                .setRequestId(requestId)
+                .setTaskId(taskId)
+                .setParentTaskId(parentTaskId);
+    }
+}
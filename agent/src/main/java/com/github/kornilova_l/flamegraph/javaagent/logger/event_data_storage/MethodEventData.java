@@ -1,49 +1,196 @@
 package com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage;
 
+import com.github.kornilova_l.flamegraph.javaagent.logger.EventRecord;
+import com.github.kornilova_l.flamegraph.javaagent.logger.LoggerQueue;
+import com.github.kornilova_l.flamegraph.javaagent.logger.MethodTable;
 import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.name_maps.ClassNamesMap;
 import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.name_maps.NamesMap;
-import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.name_maps.ThreadNamesMap;
 import com.github.kornilova_l.flamegraph.proto.EventProtos.Event;
 import com.github.kornilova_l.flamegraph.proto.EventProtos.Parameter;
 import com.github.kornilova_l.flamegraph.proto.EventProtos.Var;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Objects;
-
-abstract public class MethodEventData {
-    private final String threadName;
-    private final String className;
-    private final long startTime;
-    private final long duration;
-    private final String methodName;
-    private final String desc;
-    private final String savedParameters;
-    private List<Integer> savedParametersList;
-    private final boolean isStatic;
-    private final Object[] parameters;
+
+/**
+ * Slot of {@link com.github.kornilova_l.flamegraph.javaagent.logger.EventRing}.
+ * Slots are created once and reused: producer thread sets data of method call,
+ * logging thread converts it to events and clears the slot
+ */
+public class MethodEventData {
+    /* fields are read by MethodEventSerializer */
+    /**
+     * Slots of ring always belong to the same thread (or group of threads), so it is set only once.
+     * Slot that is not created by ring gets thread of its first event
+     */
+    private RecordedThread thread;
+    int methodId;
+    long startTime;
+    long duration;
+    Object[] parameters;
+    /**
+     * Saved parameters and return value without boxing.
+     * It is created when slot is used with EventRecord for the first time and reused afterwards
+     */
+    EventRecord record;
+    boolean hasRecord;
+    Object retVal;
+    boolean isThrown;
+    Throwable throwable;
+    boolean saveMessage;
+    /**
+     * Context of task in which method was called. It is null if method was not called by submitted task
+     */
+    @Nullable
+    AsyncContext context;
     private final static ClassNamesMap classNamesMap = new ClassNamesMap();
-    private final static ThreadNamesMap threadNamesMap = new ThreadNamesMap();
-
-    MethodEventData(String threadName,
-                    String className,
-                    long startTime,
-                    long duration,
-                    String methodName,
-                    String desc,
-                    boolean isStatic,
-                    Object[] parameters,
-                    String savedParameters) {
-        this.threadName = threadName;
-        this.className = className;
+    /**
+     * Number of current segment of recording
+     * (see {@link MethodTable.MethodInfo#claimRegistration(int)} and {@link RecordedThread#register(int)})
+     */
+    private static volatile int segment = 1;
+
+    public MethodEventData() {
+    }
+
+    /**
+     * @param thread owner of slot
+     */
+    public MethodEventData(RecordedThread thread) {
+        this.thread = thread;
+    }
+
+    public void setReturned(Thread thread,
+                            int methodId,
+                            long startTime,
+                            long duration,
+                            Object[] parameters,
+                            Object retVal) {
+        setCommon(thread, methodId, startTime, duration);
+        this.parameters = parameters;
+        this.retVal = retVal;
+    }
+
+    /**
+     * @param record values of record are moved to slot
+     */
+    public void setReturned(Thread thread,
+                            int methodId,
+                            long startTime,
+                            long duration,
+                            EventRecord record) {
+        setCommon(thread, methodId, startTime, duration);
+        moveRecord(record);
+    }
+
+    public void setThrown(Thread thread,
+                          int methodId,
+                          long startTime,
+                          long duration,
+                          Object[] parameters,
+                          Throwable throwable,
+                          boolean saveMessage) {
+        setCommon(thread, methodId, startTime, duration);
+        this.parameters = parameters;
+        setThrowable(throwable, saveMessage);
+    }
+
+    /**
+     * @param record values of record are moved to slot
+     */
+    public void setThrown(Thread thread,
+                          int methodId,
+                          long startTime,
+                          long duration,
+                          EventRecord record,
+                          Throwable throwable,
+                          boolean saveMessage) {
+        setCommon(thread, methodId, startTime, duration);
+        moveRecord(record);
+        setThrowable(throwable, saveMessage);
+    }
+
+    private void setCommon(Thread thread, int methodId, long startTime, long duration) {
+        if (this.thread == null) {
+            this.thread = RecordedThread.of(thread);
+        }
+        this.methodId = methodId;
         this.startTime = startTime;
         this.duration = duration;
-        this.methodName = methodName;
-        this.desc = desc;
-        this.isStatic = isStatic;
-        this.parameters = parameters;
-        this.savedParameters = savedParameters;
+    }
+
+    private void moveRecord(EventRecord record) {
+        if (this.record == null) {
+            this.record = new EventRecord();
+        }
+        record.moveTo(this.record);
+        hasRecord = true;
+    }
+
+    private void setThrowable(Throwable throwable, boolean saveMessage) {
+        isThrown = true;
+        this.throwable = throwable;
+        this.saveMessage = saveMessage;
+    }
+
+    /**
+     * Moves data of method call to target, so it can be converted to events after this slot is reused.
+     * This slot must be cleared afterwards
+     */
+    public void moveTo(MethodEventData target) {
+        target.thread = thread;
+        target.methodId = methodId;
+        target.startTime = startTime;
+        target.duration = duration;
+        target.parameters = parameters;
+        if (hasRecord) {
+            target.moveRecord(record);
+        }
+        target.retVal = retVal;
+        target.isThrown = isThrown;
+        target.throwable = throwable;
+        target.saveMessage = saveMessage;
+        target.context = context;
+    }
+
+    /**
+     * Removes references to user objects so they can be collected while slot is not used.
+     * Thread is kept because slot is reused by the same thread
+     */
+    public void clear() {
+        parameters = null;
+        if (hasRecord) {
+            record.reset();
+            hasRecord = false;
+        }
+        retVal = null;
+        isThrown = false;
+        throwable = null;
+        context = null;
+    }
+
+    public RecordedThread getThread() {
+        return thread;
+    }
+
+    /**
+     * Sets identity of event in ring that is shared by several threads
+     * (see {@link com.github.kornilova_l.flamegraph.javaagent.logger.LoggerQueue#setVirtualThreadScope(String)})
+     */
+    public void setThread(RecordedThread thread) {
+        this.thread = thread;
+    }
+
+    /**
+     * It is set by producer before slot is published
+     */
+    public void setContext(@Nullable AsyncContext context) {
+        this.context = context;
+    }
+
+    public int getMethodId() {
+        return methodId;
     }
 
     private static void addObject(Var.Builder varBuilder, Object o) {
@@ -57,35 +204,157 @@ abstract public class MethodEventData {
         varBuilder.setObject(objectBuilder.build());
     }
 
-    public List<Event> getEvents() {
-        initSaveParametersList();
-        List<Event> events = new LinkedList<>();
-        Event.Builder eventBuilder = Event.newBuilder();
-        Event.MethodEvent.Builder methodEventBuilder = Event.MethodEvent.newBuilder();
-        setCommonInfo(methodEventBuilder, events);
+    /**
+     * @param startTimeOffset is added to start time
+     */
+    public List<Event> getEvents(long startTimeOffset) {
+        Event.MethodEvent.Builder methodEventBuilder = buildMethodEvent();
+        if (methodEventBuilder == null) {
+            return new LinkedList<>();
+        }
+        return getEvents(thread, methodEventBuilder, startTimeOffset);
+    }
 
+    /**
+     * Creates method event without thread id and registration events,
+     * so it may be called by any thread. Start time is not shifted
+     *
+     * @return null if method is not registered
+     */
+    @Nullable
+    public Event.MethodEvent.Builder buildMethodEvent() {
+        MethodTable.MethodInfo methodInfo = LoggerQueue.getMethodTable().get(methodId);
+        if (methodInfo == null) { // this should not happen
+            System.err.println("Method with id " + methodId + " is not registered");
+            return null;
+        }
+        Event.MethodEvent.Builder methodEventBuilder = Event.MethodEvent.newBuilder()
+                .setStartTime(startTime)
+                .setDuration(duration)
+                .setMethodId(methodId);
+        setParameters(methodEventBuilder, methodInfo.savedParameters);
         setResult(methodEventBuilder);
+        if (context != null) {
+            methodEventBuilder.setAsyncContext(context.toProto());
+        }
+        return methodEventBuilder;
+    }
 
-        eventBuilder.setMethodEvent(methodEventBuilder);
-        events.add(eventBuilder.build());
+    /**
+     * Registers thread, class and method if it was not done before and sets thread id of method event.
+     * It is called only by logging thread
+     *
+     * @param methodEventBuilder event created by {@link #buildMethodEvent()}
+     * @param startTimeOffset    is added to start time
+     * @return registration events followed by method event
+     */
+    public static List<Event> getEvents(RecordedThread thread,
+                                        Event.MethodEvent.Builder methodEventBuilder,
+                                        long startTimeOffset) {
+        List<Event> events = new LinkedList<>();
+        long threadId = register(thread, (int) methodEventBuilder.getMethodId(), events);
+        if (threadId == -1) {
+            return events;
+        }
+        methodEventBuilder.setStartTime(methodEventBuilder.getStartTime() + startTimeOffset)
+                .setThreadId(threadId);
+        events.add(Event.newBuilder()
+                .setMethodEvent(methodEventBuilder)
+                .build());
+        return events;
+    }
 
+    /**
+     * Registers thread, class and method if it was not done before.
+     * Each registration event is added by exactly one caller in each segment,
+     * even if several threads register the same names at the same time
+     *
+     * @param registrationEvents registration events are added here
+     * @return id of thread or -1 if method is not in method table
+     */
+    public static long register(RecordedThread thread, int methodId, List<Event> registrationEvents) {
+        MethodTable.MethodInfo methodInfo = LoggerQueue.getMethodTable().get(methodId);
+        if (methodInfo == null) { // this should not happen
+            System.err.println("Method with id " + methodId + " is not registered");
+            return -1;
+        }
+        boolean isMethodClaimed = methodInfo.claimRegistration(segment);
+        long classNameId = 0;
+        if (isMethodClaimed) {
+            classNameId = getIdAndRegister(registrationEvents, classNamesMap, methodInfo.className);
+        }
+        registerThread(registrationEvents, thread);
+        if (isMethodClaimed) {
+            registrationEvents.add(getMethodRegistrationEvent(methodId, methodInfo, classNameId));
+        }
+        return thread.getId();
+    }
+
+    /**
+     * Ids of names and methods stay the same, but their registration events
+     * will be written again before they are used. It is called when new segment of recording is started,
+     * so each segment can be read without previous segments.
+     * It is called only by logging thread
+     */
+    public static void resetRegistrations() {
+        segment++;
+        classNamesMap.resetRegistrations();
+    }
+
+    /**
+     * It is called only by logging thread
+     *
+     * @param count number of events of thread that were not recorded
+     * @return registration of thread (if needed) followed by DroppedEvents event
+     */
+    public static List<Event> getDroppedEvents(RecordedThread thread, long count) {
+        List<Event> events = new LinkedList<>();
+        registerThread(events, thread);
+        events.add(Event.newBuilder()
+                .setDroppedEvents(Event.DroppedEvents.newBuilder()
+                        .setThreadId(thread.getId())
+                        .setCount(count))
+                .build());
         return events;
     }
 
-    private void initSaveParametersList() {
-        savedParametersList = new ArrayList<>();
-        if (Objects.equals(savedParameters, "")) {
-            return;
+    private void setResult(Event.MethodEvent.Builder methodEventBuilder) {
+        if (isThrown) {
+            setThrowable(methodEventBuilder);
+        } else {
+            setReturnValue(methodEventBuilder);
         }
-        String[] indexes = savedParameters.split(",");
-        for (String index : indexes) {
-            savedParametersList.add(Integer.parseInt(index));
+    }
+
+    private void setReturnValue(Event.MethodEvent.Builder methodEventBuilder) {
+        if (hasRecord && record.getReturnType() != EventRecord.NONE) {
+            methodEventBuilder.setReturnValue(valueToVar(record.getReturnType(),
+                    record.getReturnPrimitive(), record.getReturnObject()));
+        } else if (retVal != null) {
+            methodEventBuilder.setReturnValue(objectToVar(retVal));
+        } else {
+            methodEventBuilder.setReturnValue(Var.newBuilder());
         }
     }
 
-    abstract void setResult(Event.MethodEvent.Builder methodEventBuilder);
+    private void setThrowable(Event.MethodEvent.Builder methodEventBuilder) {
+        if (throwable == null) { // this should not happen but who knows
+            methodEventBuilder.setThrowable(
+                    Var.Object.newBuilder().build()
+            );
+        } else {
+            String message = null;
+            if (saveMessage) {
+                message = throwable.getMessage();
+            }
+            methodEventBuilder.setThrowable(
+                    Var.Object.newBuilder()
+                            .setType(throwable.getClass().toString())
+                            .setValue(message == null ? "" : message));
+        }
+    }
 
-    Var objectToVar(Object o) {
+    private Var objectToVar(Object o) {
         Var.Builder varBuilder = Var.newBuilder();
         if (o == null) {
             varBuilder.setObject(
@@ -120,53 +389,104 @@ abstract public class MethodEventData {
         return varBuilder.build();
     }
 
-    private void setCommonInfo(Event.MethodEvent.Builder methodEventBuilder, List<Event> events) {
-        long classNameId = getClassNameId(events);
-        long threadNameId = getThreadNameId(events);
-
-        methodEventBuilder.setStartTime(startTime)
-                .setDuration(duration)
-                .setDesc(desc)
-                .setThreadId(threadNameId)
+    private static Event getMethodRegistrationEvent(int methodId,
+                                                    MethodTable.MethodInfo methodInfo,
+                                                    long classNameId) {
+        Event.NewMethod.Builder newMethodBuilder = Event.NewMethod.newBuilder()
+                .setId(methodId)
                 .setClassNameId(classNameId)
-                .setMethodName(methodName)
-                .setIsStatic(isStatic);
-
-        setParameters(methodEventBuilder);
-
+                .setMethodName(methodInfo.methodName)
+                .setDesc(methodInfo.desc)
+                .setIsStatic(methodInfo.isStatic);
+        for (int index : methodInfo.savedParameters) {
+            newMethodBuilder.addSavedParameters(index);
+        }
+        if (methodInfo.submitter != null) {
+            newMethodBuilder.setSubmitter(methodInfo.submitter);
+        }
+        return Event.newBuilder()
+                .setNewMethod(newMethodBuilder)
+                .build();
     }
 
-    private long getThreadNameId(List<Event> events) {
-        return getIdAndRegister(events, threadNamesMap, threadName);
+    /**
+     * Adds newThread event or renamedThread event if it is needed
+     */
+    private static void registerThread(List<Event> events, RecordedThread thread) {
+        Event registrationEvent = thread.register(segment);
+        if (registrationEvent != null) {
+            events.add(registrationEvent);
+        }
     }
 
     private static long getIdAndRegister(List<Event> events,
                                          NamesMap namesMap,
                                          String name) {
-        boolean isRegistered = namesMap.isRegistered(name);
-        long id = namesMap.getId(name);
-        if (!isRegistered) {
+        long id = namesMap.getIdAndClaimRegistration(name);
+        if (id < 0) { // registration was claimed by this call
+            id = -id;
             events.add(namesMap.getRegistrationEvent(id, name));
         }
         return id;
     }
 
-    private long getClassNameId(List<Event> events) {
-        return getIdAndRegister(events, classNamesMap, className);
+    /**
+     * @param type one of {@link EventRecord} types
+     * @param bits value of primitive type
+     * @param o    value of object type
+     */
+    private Var valueToVar(char type, long bits, Object o) {
+        Var.Builder varBuilder = Var.newBuilder();
+        switch (type) {
+            case 'I':
+                varBuilder.setI((int) bits);
+                break;
+            case 'J':
+                varBuilder.setJ(bits);
+                break;
+            case 'Z':
+                varBuilder.setZ(bits != 0);
+                break;
+            case 'C':
+                varBuilder.setC((char) bits);
+                break;
+            case 'S':
+                varBuilder.setS((short) bits);
+                break;
+            case 'B':
+                varBuilder.setB((byte) bits);
+                break;
+            case 'F':
+                varBuilder.setF(Float.intBitsToFloat((int) bits));
+                break;
+            case 'D':
+                varBuilder.setD(Double.longBitsToDouble(bits));
+                break;
+            default: // object
+                return objectToVar(o);
+        }
+        return varBuilder.build();
     }
 
-    private void setParameters(Event.MethodEvent.Builder methodEventBuilder) {
-        if (parameters != null) {
+    private void setParameters(Event.MethodEvent.Builder methodEventBuilder, int[] savedParameters) {
+        if (hasRecord) {
+            for (int i = 0; i < record.getSize(); i++) {
+                methodEventBuilder.addParameters(createParameter(
+                        valueToVar(record.getType(i), record.getPrimitive(i), record.getObject(i)),
+                        savedParameters[i]
+                ));
+            }
+        } else if (parameters != null) {
             for (int i = 0; i < parameters.length; i++) {
-                methodEventBuilder.addParameters(createParameter(objectToVar(parameters[i]), i));
+                methodEventBuilder.addParameters(createParameter(objectToVar(parameters[i]), savedParameters[i]));
             }
         }
     }
 
-    private Parameter createParameter(Var var, int i) {
+    private Parameter createParameter(Var var, int index) {
         return Parameter.newBuilder()
                 .setVar(var)
-                .setIndex(savedParametersList.get(i))
+                .setIndex(index)
                 .build();
     }
 }
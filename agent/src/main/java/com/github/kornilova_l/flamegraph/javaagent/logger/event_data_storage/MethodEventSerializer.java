@@ -0,0 +1,393 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage;
+
+import com.github.kornilova_l.flamegraph.javaagent.logger.EventRecord;
+import com.github.kornilova_l.flamegraph.javaagent.logger.LoggerQueue;
+import com.github.kornilova_l.flamegraph.javaagent.logger.MethodTable;
+import com.github.kornilova_l.libs.com.google.protobuf.CodedOutputStream;
+import com.github.kornilova_l.libs.com.google.protobuf.WireFormat;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Encodes method event of slot directly to {@link CodedOutputStream}
+ * without creating protobuf builders and messages.
+ * Bytes are the same as bytes of Event that is created by {@link MethodEventData#getEvents(long)}
+ * <p>
+ * Sizes of nested messages are computed by {@link #set(MethodEventData, long, long)},
+ * arrays for them are reused so only strings of saved objects are allocated.
+ * Serializer is used only by logging thread
+ */
+public class MethodEventSerializer {
+    /* field numbers from event.proto */
+    private static final int EVENT_METHOD_EVENT = 1;
+    private static final int METHOD_EVENT_THREAD_ID = 1;
+    private static final int METHOD_EVENT_START_TIME = 3;
+    private static final int METHOD_EVENT_DURATION = 4;
+    private static final int METHOD_EVENT_PARAMETERS = 8;
+    private static final int METHOD_EVENT_RETURN_VALUE = 9;
+    private static final int METHOD_EVENT_THROWABLE = 10;
+    private static final int METHOD_EVENT_METHOD_ID = 11;
+    private static final int METHOD_EVENT_ASYNC_CONTEXT = 12;
+    private static final int ASYNC_CONTEXT_REQUEST_ID = 1;
+    private static final int ASYNC_CONTEXT_TASK_ID = 2;
+    private static final int ASYNC_CONTEXT_PARENT_TASK_ID = 3;
+    private static final int PARAMETER_VAR = 1;
+    private static final int PARAMETER_INDEX = 2;
+    private static final int VAR_OBJECT = 9;
+    private static final int OBJECT_TYPE = 1;
+    private static final int OBJECT_VALUE = 2;
+    private static final String NULL_TYPE = "null";
+
+    private long threadId;
+    private long startTime;
+    private long duration;
+    private int methodId;
+    private int[] savedParameters;
+    private int parametersCount;
+    private boolean isThrown;
+    private AsyncContext context;
+    /**
+     * Values of parameters followed by return value.
+     * Value is either primitive (type and bits) or object (type is {@link EventRecord#OBJECT},
+     * class and string representation are in {@link #objectTypes} and {@link #objectValues}).
+     * Type {@link EventRecord#NONE} means empty Var
+     */
+    private char[] types = new char[8];
+    private long[] primitives = new long[8];
+    private String[] objectTypes = new String[8];
+    private String[] objectValues = new String[8];
+    /**
+     * Serialized size of Var (or Var.Object for throwable) of each value
+     */
+    private int[] varSizes = new int[8];
+    private int methodEventSize;
+
+    /**
+     * Prepares serializer for encoding of slot's event
+     *
+     * @param threadId        id of thread (see {@link MethodEventData#register})
+     * @param startTimeOffset is added to start time
+     * @return false if method is not registered
+     */
+    public boolean set(@NotNull MethodEventData slot, long threadId, long startTimeOffset) {
+        MethodTable.MethodInfo methodInfo = LoggerQueue.getMethodTable().get(slot.methodId);
+        if (methodInfo == null) { // this should not happen
+            System.err.println("Method with id " + slot.methodId + " is not registered");
+            return false;
+        }
+        this.threadId = threadId;
+        startTime = slot.startTime + startTimeOffset;
+        duration = slot.duration;
+        methodId = slot.methodId;
+        savedParameters = methodInfo.savedParameters;
+        isThrown = slot.isThrown;
+        context = slot.context;
+        setValues(slot);
+        methodEventSize = computeMethodEventSize();
+        return true;
+    }
+
+    private void setValues(MethodEventData slot) {
+        if (slot.hasRecord) {
+            EventRecord record = slot.record;
+            parametersCount = record.getSize();
+            ensureCapacity(parametersCount + 1);
+            for (int i = 0; i < parametersCount; i++) {
+                setValue(i, record.getType(i), record.getPrimitive(i), record.getObject(i));
+            }
+        } else if (slot.parameters != null) {
+            parametersCount = slot.parameters.length;
+            ensureCapacity(parametersCount + 1);
+            for (int i = 0; i < parametersCount; i++) {
+                setObject(i, slot.parameters[i]);
+            }
+        } else {
+            parametersCount = 0;
+        }
+        int i = parametersCount;
+        if (isThrown) {
+            setThrowable(i, slot.throwable, slot.saveMessage);
+        } else if (slot.hasRecord && slot.record.getReturnType() != EventRecord.NONE) {
+            setValue(i, slot.record.getReturnType(), slot.record.getReturnPrimitive(), slot.record.getReturnObject());
+        } else if (slot.retVal != null) {
+            setObject(i, slot.retVal);
+        } else {
+            types[i] = EventRecord.NONE;
+            varSizes[i] = 0;
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (types.length < size) {
+            int capacity = Math.max(size, types.length * 2);
+            types = new char[capacity];
+            primitives = new long[capacity];
+            objectTypes = new String[capacity];
+            objectValues = new String[capacity];
+            varSizes = new int[capacity];
+        }
+    }
+
+    /**
+     * @param type one of {@link EventRecord} types
+     */
+    private void setValue(int i, char type, long bits, Object o) {
+        if (type == EventRecord.OBJECT) {
+            setObject(i, o);
+            return;
+        }
+        types[i] = type;
+        primitives[i] = bits;
+        varSizes[i] = computePrimitiveSize(type, bits);
+    }
+
+    /**
+     * Boxed primitives are saved as primitives (the same as in {@link MethodEventData#getEvents(long)})
+     */
+    private void setObject(int i, Object o) {
+        if (o instanceof Integer) {
+            setValue(i, 'I', (Integer) o, null);
+        } else if (o instanceof Long) {
+            setValue(i, 'J', (Long) o, null);
+        } else if (o instanceof Boolean) {
+            setValue(i, 'Z', (Boolean) o ? 1 : 0, null);
+        } else if (o instanceof Character) {
+            setValue(i, 'C', (Character) o, null);
+        } else if (o instanceof Short) {
+            setValue(i, 'S', (Short) o, null);
+        } else if (o instanceof Byte) {
+            setValue(i, 'B', (Byte) o, null);
+        } else if (o instanceof Float) {
+            setValue(i, 'F', Float.floatToRawIntBits((Float) o), null);
+        } else if (o instanceof Double) {
+            setValue(i, 'D', Double.doubleToRawLongBits((Double) o), null);
+        } else {
+            types[i] = EventRecord.OBJECT;
+            if (o == null) {
+                objectTypes[i] = NULL_TYPE;
+                objectValues[i] = "";
+            } else {
+                objectTypes[i] = o.getClass().toString();
+                objectValues[i] = toString(o);
+            }
+            varSizes[i] = computeMessageSize(VAR_OBJECT, computeObjectSize(i));
+        }
+    }
+
+    private static String toString(Object o) {
+        try {
+            String value = o.toString();
+            return value == null ? "" : value;
+        } catch (Throwable throwable) {
+            return "";
+        }
+    }
+
+    /**
+     * Throwable is written as Var.Object, so size of Var.Object is saved to {@link #varSizes}
+     */
+    private void setThrowable(int i, Throwable throwable, boolean saveMessage) {
+        types[i] = EventRecord.OBJECT;
+        if (throwable == null) { // this should not happen but who knows
+            objectTypes[i] = "";
+            objectValues[i] = "";
+        } else {
+            String message = saveMessage ? throwable.getMessage() : null;
+            objectTypes[i] = throwable.getClass().toString();
+            objectValues[i] = message == null ? "" : message;
+        }
+        varSizes[i] = computeObjectSize(i);
+    }
+
+    private static int computePrimitiveSize(char type, long bits) {
+        switch (type) {
+            case 'I':
+                return CodedOutputStream.computeSInt32Size(1, (int) bits);
+            case 'J':
+                return CodedOutputStream.computeSInt64Size(2, bits);
+            case 'Z':
+                return CodedOutputStream.computeBoolSize(3, bits != 0);
+            case 'C':
+                return CodedOutputStream.computeUInt32Size(4, (char) bits);
+            case 'S':
+                return CodedOutputStream.computeSInt32Size(5, (short) bits);
+            case 'B':
+                return CodedOutputStream.computeSInt32Size(6, (byte) bits);
+            case 'F':
+                return CodedOutputStream.computeFloatSize(7, Float.intBitsToFloat((int) bits));
+            case 'D':
+                return CodedOutputStream.computeDoubleSize(8, Double.longBitsToDouble(bits));
+            default:
+                throw new IllegalArgumentException("Unknown type: " + type);
+        }
+    }
+
+    private int computeObjectSize(int i) {
+        int size = 0;
+        if (!objectTypes[i].isEmpty()) {
+            size += CodedOutputStream.computeStringSize(OBJECT_TYPE, objectTypes[i]);
+        }
+        if (!objectValues[i].isEmpty()) {
+            size += CodedOutputStream.computeStringSize(OBJECT_VALUE, objectValues[i]);
+        }
+        return size;
+    }
+
+    private int computeMethodEventSize() {
+        int size = 0;
+        if (threadId != 0) {
+            size += CodedOutputStream.computeInt64Size(METHOD_EVENT_THREAD_ID, threadId);
+        }
+        if (startTime != 0) {
+            size += CodedOutputStream.computeInt64Size(METHOD_EVENT_START_TIME, startTime);
+        }
+        if (duration != 0) {
+            size += CodedOutputStream.computeInt64Size(METHOD_EVENT_DURATION, duration);
+        }
+        for (int i = 0; i < parametersCount; i++) {
+            size += computeMessageSize(METHOD_EVENT_PARAMETERS, computeParameterSize(i));
+        }
+        size += computeMessageSize(isThrown ? METHOD_EVENT_THROWABLE : METHOD_EVENT_RETURN_VALUE,
+                varSizes[parametersCount]);
+        if (methodId != 0) {
+            size += CodedOutputStream.computeInt64Size(METHOD_EVENT_METHOD_ID, methodId);
+        }
+        if (context != null) {
+            size += computeMessageSize(METHOD_EVENT_ASYNC_CONTEXT, computeContextSize());
+        }
+        return size;
+    }
+
+    private int computeContextSize() {
+        int size = CodedOutputStream.computeInt64Size(ASYNC_CONTEXT_REQUEST_ID, context.getRequestId()) +
+                CodedOutputStream.computeInt64Size(ASYNC_CONTEXT_TASK_ID, context.getTaskId());
+        if (context.getParentTaskId() != 0) {
+            size += CodedOutputStream.computeInt64Size(ASYNC_CONTEXT_PARENT_TASK_ID, context.getParentTaskId());
+        }
+        return size;
+    }
+
+    private int computeParameterSize(int i) {
+        int size = computeMessageSize(PARAMETER_VAR, varSizes[i]);
+        if (savedParameters[i] != 0) {
+            size += CodedOutputStream.computeUInt32Size(PARAMETER_INDEX, savedParameters[i]);
+        }
+        return size;
+    }
+
+    private static int computeMessageSize(int fieldNumber, int messageSize) {
+        return CodedOutputStream.computeTagSize(fieldNumber) +
+                CodedOutputStream.computeUInt32SizeNoTag(messageSize) +
+                messageSize;
+    }
+
+    /**
+     * @return size of Event (without delimiter)
+     */
+    public int getSerializedSize() {
+        return computeMessageSize(EVENT_METHOD_EVENT, methodEventSize);
+    }
+
+    /**
+     * Writes Event with method event. Serializer must be prepared by {@link #set(MethodEventData, long, long)}
+     */
+    public void writeTo(@NotNull CodedOutputStream out) throws IOException {
+        writeMessageHeader(out, EVENT_METHOD_EVENT, methodEventSize);
+        if (threadId != 0) {
+            out.writeInt64(METHOD_EVENT_THREAD_ID, threadId);
+        }
+        if (startTime != 0) {
+            out.writeInt64(METHOD_EVENT_START_TIME, startTime);
+        }
+        if (duration != 0) {
+            out.writeInt64(METHOD_EVENT_DURATION, duration);
+        }
+        for (int i = 0; i < parametersCount; i++) {
+            writeMessageHeader(out, METHOD_EVENT_PARAMETERS, computeParameterSize(i));
+            writeMessageHeader(out, PARAMETER_VAR, varSizes[i]);
+            writeVar(out, i);
+            if (savedParameters[i] != 0) {
+                out.writeUInt32(PARAMETER_INDEX, savedParameters[i]);
+            }
+        }
+        int end = parametersCount;
+        if (isThrown) {
+            writeMessageHeader(out, METHOD_EVENT_THROWABLE, varSizes[end]);
+            writeObject(out, end);
+        } else {
+            writeMessageHeader(out, METHOD_EVENT_RETURN_VALUE, varSizes[end]);
+            writeVar(out, end);
+        }
+        if (methodId != 0) {
+            out.writeInt64(METHOD_EVENT_METHOD_ID, methodId);
+        }
+        if (context != null) { // request id and task id are never 0
+            writeMessageHeader(out, METHOD_EVENT_ASYNC_CONTEXT, computeContextSize());
+            out.writeInt64(ASYNC_CONTEXT_REQUEST_ID, context.getRequestId());
+            out.writeInt64(ASYNC_CONTEXT_TASK_ID, context.getTaskId());
+            if (context.getParentTaskId() != 0) {
+                out.writeInt64(ASYNC_CONTEXT_PARENT_TASK_ID, context.getParentTaskId());
+            }
+        }
+        clearStrings();
+    }
+
+    private void writeVar(CodedOutputStream out, int i) throws IOException {
+        long bits = primitives[i];
+        switch (types[i]) {
+            case EventRecord.NONE:
+                break;
+            case 'I':
+                out.writeSInt32(1, (int) bits);
+                break;
+            case 'J':
+                out.writeSInt64(2, bits);
+                break;
+            case 'Z':
+                out.writeBool(3, bits != 0);
+                break;
+            case 'C':
+                out.writeUInt32(4, (char) bits);
+                break;
+            case 'S':
+                out.writeSInt32(5, (short) bits);
+                break;
+            case 'B':
+                out.writeSInt32(6, (byte) bits);
+                break;
+            case 'F':
+                out.writeFloat(7, Float.intBitsToFloat((int) bits));
+                break;
+            case 'D':
+                out.writeDouble(8, Double.longBitsToDouble(bits));
+                break;
+            default: // object
+                writeMessageHeader(out, VAR_OBJECT, computeObjectSize(i));
+                writeObject(out, i);
+        }
+    }
+
+    private void writeObject(CodedOutputStream out, int i) throws IOException {
+        if (!objectTypes[i].isEmpty()) {
+            out.writeString(OBJECT_TYPE, objectTypes[i]);
+        }
+        if (!objectValues[i].isEmpty()) {
+            out.writeString(OBJECT_VALUE, objectValues[i]);
+        }
+    }
+
+    private static void writeMessageHeader(CodedOutputStream out, int fieldNumber, int messageSize) throws IOException {
+        out.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        out.writeUInt32NoTag(messageSize);
+    }
+
+    /**
+     * Strings may be big, they are not kept until next event
+     */
+    private void clearStrings() {
+        Arrays.fill(objectTypes, 0, parametersCount + 1, null);
+        Arrays.fill(objectValues, 0, parametersCount + 1, null);
+    }
+}
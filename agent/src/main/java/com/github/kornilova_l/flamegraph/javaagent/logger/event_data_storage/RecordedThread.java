@@ -0,0 +1,152 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage;
+
+import com.github.kornilova_l.flamegraph.proto.EventProtos.Event;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Identity of thread in recording.
+ * Thread gets its id when it records first event and keeps it when it is renamed,
+ * so events of pool thread are not merged with events of other thread that had the same name.
+ * <p>
+ * Object is created once for each thread and cached in its ring slots,
+ * so probes do not look up thread and do not read its name.
+ * Name is read by logging thread when event is registered: newThread event is written
+ * before first event of thread in each segment and renamedThread event is written when name changes.
+ * <p>
+ * Group of threads (for example virtual threads that share a ring) is recorded as one thread with fixed name
+ * (see {@link #group(String, String)})
+ */
+public class RecordedThread {
+    private static final AtomicLong lastId = new AtomicLong();
+    private static final ThreadLocal<RecordedThread> currentThread =
+            ThreadLocal.withInitial(() -> new RecordedThread(Thread.currentThread()));
+    private static final AtomicReferenceFieldUpdater<RecordedThread, Registration> registrationUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(RecordedThread.class, Registration.class, "registration");
+    /**
+     * It is null for group of threads
+     */
+    @Nullable
+    private final Thread thread;
+    @Nullable
+    private final String groupName;
+    private final long id;
+    private final long javaThreadId;
+    private final boolean isDaemon;
+    private final String group;
+    /**
+     * Segment and name that were written to recording last time. It is null if thread was never registered
+     */
+    @Nullable
+    private volatile Registration registration;
+
+    private RecordedThread(@NotNull Thread thread) {
+        this.thread = thread;
+        groupName = null;
+        id = lastId.incrementAndGet();
+        javaThreadId = thread.getId();
+        isDaemon = thread.isDaemon();
+        ThreadGroup threadGroup = thread.getThreadGroup(); // it is null if thread is finished
+        group = threadGroup == null ? "" : threadGroup.getName();
+    }
+
+    private RecordedThread(@NotNull String groupName, @NotNull String threadGroup) {
+        thread = null;
+        this.groupName = groupName;
+        id = lastId.incrementAndGet();
+        javaThreadId = 0;
+        isDaemon = true;
+        group = threadGroup;
+    }
+
+    /**
+     * @param name        name of group in recording
+     * @param threadGroup name of thread group of threads
+     * @return identity that is shared by all threads of group
+     */
+    @NotNull
+    public static RecordedThread group(@NotNull String name, @NotNull String threadGroup) {
+        return new RecordedThread(name, threadGroup);
+    }
+
+    /**
+     * @return cached object if thread is current thread
+     */
+    @NotNull
+    public static RecordedThread of(@NotNull Thread thread) {
+        return thread == Thread.currentThread() ? currentThread.get() : new RecordedThread(thread);
+    }
+
+    /**
+     * @return null for group of threads
+     */
+    @Nullable
+    public Thread getThread() {
+        return thread;
+    }
+
+    /**
+     * @return id of thread in recording. Ids start from 1
+     */
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return thread == null ? groupName : thread.getName();
+    }
+
+    /**
+     * Only one of the threads that register the same thread in the same segment gets the event
+     *
+     * @param segment number of current segment of recording
+     * @return newThread event if thread is not registered in segment,
+     * renamedThread event if thread was renamed since registration or null if nothing must be written
+     */
+    @Nullable
+    Event register(int segment) {
+        String name = getName();
+        while (true) {
+            Registration registration = this.registration;
+            boolean isRegistered = registration != null && registration.segment == segment;
+            if (isRegistered && registration.name.equals(name)) {
+                return null;
+            }
+            if (registrationUpdater.compareAndSet(this, registration, new Registration(segment, name))) {
+                return isRegistered ? createRenamedThreadEvent(name) : createNewThreadEvent(name);
+            }
+        }
+    }
+
+    private Event createNewThreadEvent(String name) {
+        return Event.newBuilder()
+                .setNewThread(Event.Map.newBuilder()
+                        .setId(id)
+                        .setName(name)
+                        .setJavaThreadId(javaThreadId)
+                        .setIsDaemon(isDaemon)
+                        .setGroup(group))
+                .build();
+    }
+
+    private Event createRenamedThreadEvent(String name) {
+        return Event.newBuilder()
+                .setRenamedThread(Event.Map.newBuilder()
+                        .setId(id)
+                        .setName(name))
+                .build();
+    }
+
+    private static final class Registration {
+        final int segment;
+        final String name;
+
+        Registration(int segment, String name) {
+            this.segment = segment;
+            this.name = name;
+        }
+    }
+}
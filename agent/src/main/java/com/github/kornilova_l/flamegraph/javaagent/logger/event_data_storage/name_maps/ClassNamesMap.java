@@ -4,7 +4,7 @@ import com.github.kornilova_l.flamegraph.proto.EventProtos;
 
 public class ClassNamesMap extends NamesMap {
     @Override
-    public EventProtos.Event getRegistrationEvent(Long id, String name) {
+    public EventProtos.Event getRegistrationEvent(long id, String name) {
         return EventProtos.Event.newBuilder()
                 .setNewClass(EventProtos.Event.Map.newBuilder()
                         .setId(id)
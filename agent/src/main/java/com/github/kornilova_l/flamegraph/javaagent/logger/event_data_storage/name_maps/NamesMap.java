@@ -1,24 +1,135 @@
 package com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.name_maps;
 
 import com.github.kornilova_l.flamegraph.proto.EventProtos.Event;
+import org.jetbrains.annotations.NotNull;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
- * Holds maps for thread names and class names
+ * Interns class names.
+ * Id of name never changes, but registration event is written again to each new segment of recording.
+ * <p>
+ * Names are kept in open-addressing table with linear probing. Entries are never removed,
+ * so lookup does not take locks: it probes until it finds the name or an empty cell.
+ * New names are rare, they are added under lock and the table is copied to bigger array when it is half full.
+ * Lookup that runs on old array does not find the name and repeats the search under lock.
+ * <p>
+ * Each entry remembers the last segment to which its registration event was written.
+ * The segment is set with CAS, so only one of the threads that look up the same name writes its registration event
  */
 public abstract class NamesMap {
-    private Map<String, Long> map = new HashMap<>();
+    private static final int INITIAL_CAPACITY = 64;
+    private volatile AtomicReferenceArray<Entry> table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    /**
+     * Number of names. Ids start from 1. It is changed under lock
+     */
     private long size = 0;
+    /**
+     * Number of current segment. Entries with other segment are not registered in current segment
+     */
+    private volatile int segment = 1;
 
-    public boolean isRegistered(String name) {
-        return map.containsKey(name);
+    /**
+     * Finds id of name and adds the name if it is not in table.
+     * Only one call for each name in each segment gets negative id
+     *
+     * @return id of name. It is negated if caller must write registration event of name (see {@link #getRegistrationEvent(long, String)})
+     */
+    public long getIdAndClaimRegistration(@NotNull String name) {
+        int hash = hash(name);
+        Entry entry = find(table, name, hash);
+        if (entry == null) {
+            entry = add(name, hash);
+        }
+        return entry.claimRegistration(segment) ? -entry.id : entry.id;
     }
 
-    public long getId(String name) {
-        return map.computeIfAbsent(name, k -> ++size);
+    /**
+     * Registration events will be written again before names are used
+     */
+    public void resetRegistrations() {
+        segment++; // it is called only by logging thread
     }
 
-    public abstract Event getRegistrationEvent(Long id, String name);
+    public abstract Event getRegistrationEvent(long id, String name);
+
+    private static int hash(String name) {
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static Entry find(AtomicReferenceArray<Entry> table, String name, int hash) {
+        int mask = table.length() - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            Entry entry = table.get(i);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.hash == hash && entry.name.equals(name)) {
+                return entry;
+            }
+        }
+    }
+
+    private synchronized Entry add(String name, int hash) {
+        AtomicReferenceArray<Entry> table = this.table;
+        Entry entry = find(table, name, hash); // name could be added by other thread
+        if (entry != null) {
+            return entry;
+        }
+        if ((size + 1) * 2 > table.length()) {
+            table = resize(table);
+        }
+        entry = new Entry(name, hash, ++size);
+        insert(table, entry);
+        this.table = table; // volatile write publishes new array
+        return entry;
+    }
+
+    private static AtomicReferenceArray<Entry> resize(AtomicReferenceArray<Entry> table) {
+        AtomicReferenceArray<Entry> newTable = new AtomicReferenceArray<>(table.length() * 2);
+        for (int i = 0; i < table.length(); i++) {
+            Entry entry = table.get(i);
+            if (entry != null) {
+                insert(newTable, entry);
+            }
+        }
+        return newTable;
+    }
+
+    private static void insert(AtomicReferenceArray<Entry> table, Entry entry) {
+        int mask = table.length() - 1;
+        int i = entry.hash & mask;
+        while (table.get(i) != null) {
+            i = (i + 1) & mask;
+        }
+        table.set(i, entry);
+    }
+
+    private static final class Entry {
+        private static final AtomicIntegerFieldUpdater<Entry> registeredSegmentUpdater =
+                AtomicIntegerFieldUpdater.newUpdater(Entry.class, "registeredSegment");
+        final String name;
+        final int hash;
+        final long id;
+        /**
+         * Last segment to which registration event of name was written. 0 if it was never written
+         */
+        volatile int registeredSegment = 0;
+
+        Entry(String name, int hash, long id) {
+            this.name = name;
+            this.hash = hash;
+            this.id = id;
+        }
+
+        /**
+         * @return true if registration event was not written to segment and caller must write it
+         */
+        boolean claimRegistration(int segment) {
+            int registered = registeredSegment;
+            return registered != segment && registeredSegmentUpdater.compareAndSet(this, registered, segment);
+        }
+    }
 }
@@ -2,8 +2,10 @@ package com.github.kornilova_l.flamegraph.proxy;
 
 import com.github.kornilova_l.flamegraph.javaagent.logger.LoggerQueue;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
 
 /**
  * This class is added to separate jar file
@@ -13,23 +15,61 @@ import java.lang.reflect.Method;
 @SuppressWarnings("unused")
 public class Proxy {
     private static final String loggerQueueClassName = "com.github.kornilova_l.flamegraph.javaagent.logger.LoggerQueue";
-    private static Class<?> loggerQueue = null;
-    private static Method addRetVal = null;
-    private static Method addException = null;
+    /*
+    Method handles are resolved once, when Proxy is initialized.
+    They are static final so JIT treats them as constants and inlines
+    the call of LoggerQueue like a direct call (no boxing and no array of arguments)
+     */
+    private static final MethodHandle addRetVal;
+    private static final MethodHandle addException;
+    /**
+     * It is set when call of LoggerQueue cannot be linked. Error is printed once and next events
+     * are not passed to LoggerQueue (the same error would be thrown for each event).
+     * Field is not volatile: a few more events may be passed by other threads until they see it
+     */
+    private static boolean isDisabled = false;
+    /**
+     * Other failures lose only the event that caused them. The first of them is printed
+     */
+    private static boolean isFailureReported = false;
+
+    static {
+        MethodHandle retValHandle = null;
+        MethodHandle exceptionHandle = null;
+        try {
+            Class<?> loggerQueue = Class.forName(loggerQueueClassName, true, ClassLoader.getSystemClassLoader());
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            retValHandle = lookup.findStatic(loggerQueue, "addToQueue", MethodType.methodType(void.class,
+                    Object.class,
+                    long.class,
+                    long.class,
+                    Object[].class,
+                    Thread.class,
+                    int.class));
+            exceptionHandle = lookup.findStatic(loggerQueue, "addToQueue", MethodType.methodType(void.class,
+                    Throwable.class,
+                    boolean.class,
+                    long.class,
+                    long.class,
+                    Object[].class,
+                    Thread.class,
+                    int.class));
+        } catch (NoSuchMethodException | IllegalAccessException | ClassNotFoundException | ExceptionInInitializerError e) {
+            e.printStackTrace();
+        }
+        addRetVal = retValHandle;
+        addException = exceptionHandle;
+    }
 
     /**
-     * {@link LoggerQueue#addToQueue(java.lang.Object, long, long, java.lang.Object[], java.lang.Thread, java.lang.String, java.lang.String, java.lang.String, boolean, java.lang.String)}
+     * {@link LoggerQueue#addToQueue(java.lang.Object, long, long, java.lang.Object[], java.lang.Thread, int)}
      */
     public static void addToQueue(Object retVal,
                                   long startTime,
                                   long duration,
                                   Object[] parameters,
                                   Thread thread,
-                                  String className,
-                                  String methodName,
-                                  String desc,
-                                  boolean isStatic,
-                                  String savedParameters) {
+                                  int methodId) {
         /*
         following if block is added as a reminder to update proxy if addToQueue methods was changed
         (it cannot be compiled if not updated),
@@ -37,41 +77,22 @@ public class Proxy {
          */
         //noinspection ConstantConditions,ConstantIfStatement
         if (false) {
-            LoggerQueue.addToQueue(retVal, startTime, duration, parameters, thread, className, methodName, desc, isStatic, savedParameters);
+            LoggerQueue.addToQueue(retVal, startTime, duration, parameters, thread, methodId);
         }
-        if (addRetVal == null) {
-            try {
-                getLoggerQueueIfNotCached();
-                addRetVal = loggerQueue.getMethod("addToQueue",
-                        Object.class,
-                        long.class,
-                        long.class,
-                        Object[].class,
-                        Thread.class,
-                        String.class,
-                        String.class,
-                        String.class,
-                        boolean.class,
-                        String.class);
-            } catch (NoSuchMethodException | ExceptionInInitializerError | ClassNotFoundException e) {
-                e.printStackTrace();
-            }
+        if (addRetVal == null || isDisabled) {
+            return;
         }
         try {
-            addRetVal.invoke(null, retVal, startTime, duration, parameters, thread, className, methodName, desc, isStatic, savedParameters);
-        } catch (IllegalAccessException | InvocationTargetException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private static void getLoggerQueueIfNotCached() throws ClassNotFoundException {
-        if (loggerQueue == null) {
-            loggerQueue = Class.forName(loggerQueueClassName, true, ClassLoader.getSystemClassLoader());
+            addRetVal.invokeExact(retVal, startTime, duration, parameters, thread, methodId);
+        } catch (WrongMethodTypeException | LinkageError e) {
+            disable(e);
+        } catch (Throwable throwable) {
+            reportFailure(throwable);
         }
     }
 
     /**
-     * {@link LoggerQueue#addToQueue(java.lang.Throwable, boolean, long, long, java.lang.Object[], java.lang.Thread, java.lang.String, java.lang.String, java.lang.String, boolean, java.lang.String)}
+     * {@link LoggerQueue#addToQueue(java.lang.Throwable, boolean, long, long, java.lang.Object[], java.lang.Thread, int)}
      */
     public static void addToQueue(Throwable throwable,
                                   boolean saveMessage,
@@ -79,11 +100,7 @@ public class Proxy {
                                   long duration,
                                   Object[] parameters,
                                   Thread thread,
-                                  String className,
-                                  String methodName,
-                                  String desc,
-                                  boolean isStatic,
-                                  String savedParameters) {
+                                  int methodId) {
         /*
         following if block is added as a reminder to update proxy if addToQueue methods was changed
         (it cannot be compiled if not updated),
@@ -91,32 +108,35 @@ public class Proxy {
          */
         //noinspection ConstantConditions,ConstantIfStatement
         if (false) {
-            LoggerQueue.addToQueue(throwable, saveMessage, startTime, duration, parameters, thread, className, methodName, desc, isStatic, savedParameters);
+            LoggerQueue.addToQueue(throwable, saveMessage, startTime, duration, parameters, thread, methodId);
         }
-        if (addException == null) {
-            try {
-                getLoggerQueueIfNotCached();
-                addException = loggerQueue.getMethod("addToQueue",
-                        Throwable.class,
-                        boolean.class,
-                        long.class,
-                        long.class,
-                        Object[].class,
-                        Thread.class,
-                        String.class,
-                        String.class,
-                        String.class,
-                        boolean.class,
-                        String.class);
-            } catch (NoSuchMethodException | ExceptionInInitializerError | ClassNotFoundException e) {
-                e.printStackTrace();
-            }
+        if (addException == null || isDisabled) {
+            return;
         }
         try {
-            addException.invoke(null, throwable, saveMessage, startTime, duration, parameters, thread, className, methodName, desc, isStatic, savedParameters);
-        } catch (IllegalAccessException | InvocationTargetException e) {
-            e.printStackTrace();
+            addException.invokeExact(throwable, saveMessage, startTime, duration, parameters, thread, methodId);
+        } catch (WrongMethodTypeException | LinkageError e) {
+            disable(e);
+        } catch (Throwable t) {
+            reportFailure(t);
         }
     }
 
+    private static synchronized void disable(Throwable throwable) {
+        if (isDisabled) {
+            return;
+        }
+        isDisabled = true;
+        System.err.println("Proxy cannot pass events to javaagent, events of classes that use Proxy are not recorded");
+        throwable.printStackTrace();
+    }
+
+    private static synchronized void reportFailure(Throwable throwable) {
+        if (isFailureReported) {
+            return;
+        }
+        isFailureReported = true;
+        System.err.println("Proxy cannot pass event to javaagent, event is not recorded (next failures are not printed)");
+        throwable.printStackTrace();
+    }
 }
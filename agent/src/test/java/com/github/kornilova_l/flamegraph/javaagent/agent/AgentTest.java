@@ -0,0 +1,118 @@
+package com.github.kornilova_l.flamegraph.javaagent.agent;
+
+import com.github.kornilova_l.flamegraph.bridge.RecordingSwitch;
+import com.github.kornilova_l.flamegraph.javaagent.logger.Logger;
+import com.github.kornilova_l.flamegraph.javaagent.logger.LoggerQueue;
+import com.github.kornilova_l.flamegraph.javaagent.logger.OverflowPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Commands that are sent to loaded agent by attach launcher
+ */
+public class AgentTest {
+    private File outputFile;
+
+    @Before
+    public void startLogger() throws IOException {
+        LoggerQueue.initLoggerQueue(LoggerQueue.DEFAULT_RING_CAPACITY, LoggerQueue.DEFAULT_BUFFER_SIZE,
+                OverflowPolicy.DROP_NEWEST, LoggerQueue.DEFAULT_DRAIN_BATCH_SIZE,
+                LoggerQueue.DEFAULT_DRAIN_FILL_PERCENT, true);
+        outputFile = File.createTempFile("agent", ".ser");
+        Logger logger = new Logger(outputFile, TimeUnit.MILLISECONDS);
+        Thread loggerThread = new Thread(logger, "logging thread");
+        loggerThread.setDaemon(true);
+        loggerThread.start();
+        Agent.setLogger(logger, outputFile);
+        RecordingSwitch.init(TimeUnit.MILLISECONDS, true);
+    }
+
+    @After
+    public void reset() {
+        Agent.setLogger(null, null);
+        RecordingSwitch.init(TimeUnit.MILLISECONDS, true);
+    }
+
+    /**
+     * @return response that agent wrote to response file
+     */
+    private static String request(String config) throws IOException {
+        File responseFile = File.createTempFile("agent-response", ".txt");
+        assertTrue(responseFile.delete());
+        Agent.agentmain(config + "&response=" + responseFile.getPath(), null);
+        return new String(Files.readAllBytes(responseFile.toPath()), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void startTurnsRecordingOnIfAgentIsLoaded() throws IOException {
+        RecordingSwitch.setRecording(false);
+        assertEquals("Agent is already recording to " + outputFile + ". Recording is on",
+                request("other.ser&config.txt"));
+        assertTrue(RecordingSwitch.isRecording());
+    }
+
+    @Test
+    public void stopTurnsRecordingOff() throws IOException {
+        assertEquals("Recording is off. Events are written to " + outputFile, request("command=stop"));
+        assertFalse(RecordingSwitch.isRecording());
+        assertTrue(request("command=status").contains("Recording is off"));
+        assertEquals("Recording is on", request("recording=on"));
+        assertTrue(RecordingSwitch.isRecording());
+    }
+
+    @Test
+    public void dumpWritesEvents() throws IOException {
+        assertEquals("Events are written to " + outputFile, request("command=dump"));
+        assertTrue(RecordingSwitch.isRecording());
+    }
+
+    @Test
+    public void statusDescribesRecording() throws IOException {
+        String[] lines = request("command=status").split("\n");
+        assertEquals(4, lines.length);
+        assertEquals("Recording to " + outputFile, lines[0]);
+        assertEquals("Recording is on", lines[1]);
+        assertTrue(lines[2].startsWith("Events written: "));
+        assertTrue(lines[3].startsWith("Bytes written: "));
+    }
+
+    @Test
+    public void unknownCommandIsReported() throws IOException {
+        assertEquals("Unknown command: restart", request("command=restart"));
+        assertTrue(RecordingSwitch.isRecording());
+    }
+
+    @Test
+    public void commandsRequireStartedAgent() throws IOException {
+        Agent.setLogger(null, null);
+        assertEquals("Agent is not started", request("command=status"));
+        File configFile = File.createTempFile("agent-config", ".txt");
+        assertTrue(configFile.delete());
+        assertEquals("Agent was not started, see output of JVM",
+                request(outputFile.getPath() + "&" + configFile.getPath()));
+    }
+
+    @Test
+    public void startRequestRequiresConfigurationFile() throws IOException {
+        Agent.setLogger(null, null);
+        assertEquals("Configuration file is not set", request(outputFile.getPath()));
+    }
+
+    @Test
+    public void responseFileIsOverwritten() throws IOException {
+        File responseFile = File.createTempFile("agent-response", ".txt");
+        Files.write(responseFile.toPath(), "previous response that is longer".getBytes(StandardCharsets.UTF_8));
+        Agent.agentmain("command=dump&response=" + responseFile.getPath(), null);
+        assertEquals("Events are written to " + outputFile,
+                new String(Files.readAllBytes(responseFile.toPath()), StandardCharsets.UTF_8));
+    }
+}
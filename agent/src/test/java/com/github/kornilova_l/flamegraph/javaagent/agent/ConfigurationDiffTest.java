@@ -0,0 +1,56 @@
+package com.github.kornilova_l.flamegraph.javaagent.agent;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ConfigurationDiffTest {
+    private static ConfigurationDiff diff(String[] oldLines, String[] newLines) {
+        return new ConfigurationDiff(new AgentConfigurationManager(Arrays.asList(oldLines)),
+                new AgentConfigurationManager(Arrays.asList(newLines)));
+    }
+
+    @Test
+    public void sameConfiguration() {
+        ConfigurationDiff diff = diff(new String[]{"samples.*.main(*)", "!samples.Other.main(*)"},
+                new String[]{"!samples.Other.main(*)", "samples.*.main(*)"});
+        assertTrue(diff.isEmpty());
+        assertFalse(diff.changesClass("samples.Main", false));
+    }
+
+    @Test
+    public void addedIncludingConfig() {
+        ConfigurationDiff diff = diff(new String[]{"samples.*.main(*)"},
+                new String[]{"samples.*.main(*)", "other.Foo.*(*)"});
+        assertFalse(diff.isEmpty());
+        assertTrue(diff.changesClass("other.Foo", false));
+        assertFalse(diff.changesClass("other.Bar", false));
+        assertFalse(diff.changesClass("samples.Main", false));
+    }
+
+    @Test
+    public void changedSavedValuesAndThreshold() {
+        assertTrue(diff(new String[]{"samples.Main.main(*)"}, new String[]{"samples.Main.main(*+)"})
+                .changesClass("samples.Main", false));
+        assertTrue(diff(new String[]{"samples.Main.main(*)"}, new String[]{"samples.Main.main(*)>5ms"})
+                .changesClass("samples.Main", false));
+    }
+
+    @Test
+    public void excludingConfigMattersOnlyForIncludedClasses() {
+        ConfigurationDiff diff = diff(new String[]{"samples.*.*(*)"},
+                new String[]{"samples.*.*(*)", "!*.fun(*)"});
+        assertTrue(diff.changesClass("samples.Main", false));
+        assertFalse(diff.changesClass("other.Foo", false));
+    }
+
+    @Test
+    public void systemClassesMatchExactly() {
+        ConfigurationDiff diff = diff(new String[]{}, new String[]{"java.io.*.*(*)", "java.io.File.*(*)"});
+        assertTrue(diff.changesClass("java.io.File", true));
+        assertFalse(diff.changesClass("java.io.FileInputStream", true));
+        assertTrue(diff.changesClass("java.io.FileInputStream", false));
+    }
+}
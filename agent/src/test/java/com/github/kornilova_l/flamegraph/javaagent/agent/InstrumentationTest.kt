@@ -6,6 +6,7 @@ import com.github.kornilova_l.flamegraph.javaagent.createDir
 import com.github.kornilova_l.flamegraph.javaagent.generate.Generator
 import com.github.kornilova_l.flamegraph.javaagent.generate.test_classes.*
 import com.github.kornilova_l.flamegraph.javaagent.getBytes
+import com.github.kornilova_l.flamegraph.javaagent.logger.MethodTable
 import com.github.kornilova_l.flamegraph.javaagent.removePackage
 import org.junit.Test
 import org.objectweb.asm.ClassReader
@@ -15,6 +16,7 @@ import java.io.File
 import java.io.FileOutputStream
 import java.io.PrintWriter
 import java.util.*
+import java.util.concurrent.TimeUnit
 
 
 class InstrumentationTest {
@@ -24,6 +26,14 @@ class InstrumentationTest {
     private var configurationManagerSaveParams: AgentConfigurationManager = createConfig("*.*(*+)", methodConfigsSaveParams)
     private val methodConfigsSaveReturn = ArrayList<MethodConfig>()
     private var configurationManagerSaveReturn: AgentConfigurationManager = createConfig("*.*(*)+", methodConfigsSaveReturn)
+    private val methodConfigsSaveAll = ArrayList<MethodConfig>()
+    private var configurationManagerSaveAll: AgentConfigurationManager = createConfig("*.*(*+)+", methodConfigsSaveAll)
+    private val methodConfigsThreshold = ArrayList<MethodConfig>()
+    private var configurationManagerThreshold: AgentConfigurationManager = createConfig("*.*(*)>200us", methodConfigsThreshold)
+    private val localVariables = ProbeSettings(ProbeMode.LOCAL_VARIABLES, TimeUnit.MILLISECONDS)
+    private val nanos = ProbeSettings(ProbeMode.START_DATA, TimeUnit.NANOSECONDS)
+    private val compact = ProbeSettings(ProbeMode.COMPACT, TimeUnit.MILLISECONDS)
+    private val switchable = ProbeSettings(ProbeMode.SWITCHABLE, TimeUnit.MILLISECONDS)
 
     @Test
     fun methodThrowsException() {
@@ -97,16 +107,51 @@ class InstrumentationTest {
 //        classTest(HasIf::class.java, HasIfExpected::class.java, configurationManager!!, methodConfigs)
     }
 
+    @Test
+    fun localVariables() {
+        classTest(LocalVariables::class.java, configurationManagerSaveAll, methodConfigsSaveAll,
+                settings = localVariables)
+        /* If instrumentation changed uncomment following and check it manually */
+//        classTest(LocalVariables::class.java, LocalVariablesExpected::class.java, configurationManagerSaveAll, methodConfigsSaveAll,
+//                settings = localVariables)
+    }
+
+    @Test
+    fun durationThreshold() {
+        classTest(DurationThreshold::class.java, configurationManagerThreshold, methodConfigsThreshold,
+                settings = nanos)
+        /* If instrumentation changed uncomment following and check it manually */
+//        classTest(DurationThreshold::class.java, DurationThresholdExpected::class.java, configurationManagerThreshold, methodConfigsThreshold,
+//                settings = nanos)
+    }
+
+    @Test
+    fun compactProbes() {
+        classTest(Compact::class.java, configurationManager, methodConfigs, settings = compact)
+        /* If instrumentation changed uncomment following and check it manually */
+//        classTest(Compact::class.java, CompactExpected::class.java, configurationManager, methodConfigs,
+//                settings = compact)
+    }
+
+    @Test
+    fun switchableProbes() {
+        classTest(Switchable::class.java, configurationManager, methodConfigs, settings = switchable)
+        /* If instrumentation changed uncomment following and check it manually */
+//        classTest(Switchable::class.java, SwitchableExpected::class.java, configurationManager, methodConfigs,
+//                settings = switchable)
+    }
+
     @Suppress("unused")
     private fun classTest(testedClass: Class<*>,
                           expectedClass: Class<*>,
                           configurationManager: AgentConfigurationManager,
                           methodConfigs: List<MethodConfig>,
                           hasSystemCL: Boolean = true,
-                          isSystemClass: Boolean = false) {
+                          isSystemClass: Boolean = false,
+                          settings: ProbeSettings = ProbeSettings.DEFAULT) {
         val expectedBytecodeFile = Generator.generate(expectedClass)
         instrumentAndCompare(testedClass, configurationManager, methodConfigs, expectedBytecodeFile, hasSystemCL,
-                isSystemClass, true)
+                isSystemClass, settings, true)
     }
 
     private fun instrumentAndCompare(testedClass: Class<*>,
@@ -115,8 +160,9 @@ class InstrumentationTest {
                                      expectedBytecodeFile: File,
                                      hasSystemCL: Boolean,
                                      isSystemClass: Boolean,
+                                     settings: ProbeSettings,
                                      deleteExpectedFile: Boolean = false) {
-        val bytes = instrumentClass(testedClass, configurationManager, methodConfigs, hasSystemCL, isSystemClass)
+        val bytes = instrumentClass(testedClass, configurationManager, methodConfigs, hasSystemCL, isSystemClass, settings)
         val fileName = removePackage(testedClass.name)
 
         val outFile = File("src/test/resources/actual/$fileName.txt")
@@ -129,10 +175,11 @@ class InstrumentationTest {
                           configurationManager: AgentConfigurationManager,
                           methodConfigs: List<MethodConfig>,
                           hasSystemCL: Boolean = true,
-                          isSystemClass: Boolean = false) {
+                          isSystemClass: Boolean = false,
+                          settings: ProbeSettings = ProbeSettings.DEFAULT) {
         val expectedBytecodeFile = File("src/test/resources/expected/" + removePackage(testedClass.name) + ".txt")
         instrumentAndCompare(testedClass, configurationManager, methodConfigs, expectedBytecodeFile, hasSystemCL,
-                isSystemClass)
+                isSystemClass, settings)
     }
 
     private fun printInstructionsToFile(bytes: ByteArray, outFile: File) {
@@ -149,7 +196,8 @@ class InstrumentationTest {
                                 configurationManager: AgentConfigurationManager?,
                                 methodConfigs: List<MethodConfig>,
                                 hasSystemCL: Boolean,
-                                isSystemClass: Boolean = false): ByteArray {
+                                isSystemClass: Boolean = false,
+                                settings: ProbeSettings = ProbeSettings.DEFAULT): ByteArray {
         val fullName = testedClass.name
 
         val bytes = getBytes(testedClass)
@@ -163,10 +211,13 @@ class InstrumentationTest {
                 ProfilingClassVisitor(
                         traceClassVisitor,
                         fullName.replace('.', '/'),
+                        testedClass.classLoader,
                         hasSystemCL,
                         methodConfigs,
                         configurationManager,
-                        isSystemClass
+                        isSystemClass,
+                        settings,
+                        MethodTable()
                 ),
                 ClassReader.SKIP_FRAMES or ClassReader.SKIP_DEBUG
         )
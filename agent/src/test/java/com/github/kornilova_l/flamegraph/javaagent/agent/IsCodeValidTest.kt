@@ -3,18 +3,24 @@ package com.github.kornilova_l.flamegraph.javaagent.agent
 import com.github.kornilova_l.flamegraph.configuration.MethodConfig
 import com.github.kornilova_l.flamegraph.javaagent.generate.test_classes.*
 import com.github.kornilova_l.flamegraph.javaagent.getBytes
+import com.github.kornilova_l.flamegraph.javaagent.logger.MethodTable
 import org.junit.Test
 import org.objectweb.asm.ClassReader
 import org.objectweb.asm.ClassWriter
 import org.objectweb.asm.ClassWriter.COMPUTE_FRAMES
 import org.objectweb.asm.util.CheckClassAdapter
 import java.io.FileOutputStream
+import java.util.concurrent.TimeUnit
 
 /**
  * Use [org.objectweb.asm.util.CheckClassAdapter] to check if
  * generated instructions are valid
  */
 class IsCodeValidTest {
+    private val localVariables = ProbeSettings(ProbeMode.LOCAL_VARIABLES, TimeUnit.MILLISECONDS)
+    private val nanos = ProbeSettings(ProbeMode.START_DATA, TimeUnit.NANOSECONDS)
+    private val switchable = ProbeSettings(ProbeMode.SWITCHABLE, TimeUnit.NANOSECONDS)
+
     @Test
     fun isCodeValidTest() {
         doTest(HasCatch::class.java)
@@ -27,9 +33,21 @@ class IsCodeValidTest {
         doTest(SystemClassWithThrow::class.java, true)
         doTest(SystemClassHasIf::class.java, true)
         doTest(FileOutputStream::class.java, true)
+        doTest(LocalVariables::class.java, hasSystemCL = true, settings = localVariables)
+        doTest(HasCatch::class.java, hasSystemCL = true, settings = localVariables)
+        doTest(ThrowsException::class.java, hasSystemCL = true, settings = localVariables)
+        doTest(DurationThreshold::class.java, hasSystemCL = true, settings = nanos)
+        doTest(SystemClassWithThrow::class.java, true, settings = nanos)
+        doTest(Switchable::class.java, hasSystemCL = true, settings = switchable)
+        doTest(HasCatch::class.java, hasSystemCL = true, settings = switchable)
+        doTest(UseProxy::class.java, settings = switchable)
+        doTest(SystemClassWithThrow::class.java, true, settings = switchable)
     }
 
-    private fun doTest(clazz: Class<*>, isSystemClass: Boolean = false) {
+    private fun doTest(clazz: Class<*>,
+                       isSystemClass: Boolean = false,
+                       hasSystemCL: Boolean = false,
+                       settings: ProbeSettings = ProbeSettings.DEFAULT) {
         var bytes = getBytes(clazz)
 
         var cr = ClassReader(bytes)
@@ -37,8 +55,8 @@ class IsCodeValidTest {
         val methodConfigs = listOf(MethodConfig("*", "*", "(*)"))
         val configManager = AgentConfigurationManager(listOf("*.*(*)"))
         cr.accept(
-                ProfilingClassVisitor(cw, clazz.name.replace('.', '/'), false,
-                        methodConfigs, configManager, isSystemClass), ClassReader.SKIP_FRAMES
+                ProfilingClassVisitor(cw, clazz.name.replace('.', '/'), clazz.classLoader, hasSystemCL,
+                        methodConfigs, configManager, isSystemClass, settings, MethodTable()), ClassReader.SKIP_FRAMES
         )
 
         bytes = cw.toByteArray()
@@ -0,0 +1,66 @@
+package com.github.kornilova_l.flamegraph.javaagent.agent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ProfilingClassFileTransformerTest {
+    /**
+     * Classes of agent (including test classes of agent) are never instrumented, so class of library is used
+     */
+    private static final Class<?> TESTED_CLASS = Assert.class;
+    private static final String CLASS_NAME = TESTED_CLASS.getName().replace('.', '/');
+
+    private static ProfilingClassFileTransformer createTransformer(String methodConfigLine) {
+        return new ProfilingClassFileTransformer(
+                new AgentConfigurationManager(Collections.singletonList(methodConfigLine)),
+                ProbeSettings.DEFAULT, false, false);
+    }
+
+    private static byte[] getBytes() throws IOException {
+        try (InputStream inputStream = TESTED_CLASS.getResourceAsStream(TESTED_CLASS.getSimpleName() + ".class")) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
+            }
+            return outputStream.toByteArray();
+        }
+    }
+
+    @Test
+    public void tracksModifiedClasses() throws IOException {
+        ProfilingClassFileTransformer transformer = createTransformer(TESTED_CLASS.getName() + ".*(*)");
+        Class<?>[] loadedClasses = {TESTED_CLASS, ProfilingClassFileTransformerTest.class};
+        assertTrue(transformer.findModifiedClasses(loadedClasses).isEmpty());
+
+        byte[] bytes = getBytes();
+        byte[] transformed = transformer.transform(TESTED_CLASS.getClassLoader(), CLASS_NAME, null, null, bytes);
+        assertNotSame(bytes, transformed);
+        assertEquals(Collections.singletonList(TESTED_CLASS), transformer.findModifiedClasses(loadedClasses));
+
+        transformer.clearModifiedClasses();
+        assertTrue(transformer.findModifiedClasses(loadedClasses).isEmpty());
+    }
+
+    @Test
+    public void forgetsClassThatIsNotInstrumentedAnymore() throws IOException {
+        ProfilingClassFileTransformer transformer = createTransformer(TESTED_CLASS.getName() + ".*(*)");
+        byte[] bytes = getBytes();
+        transformer.transform(TESTED_CLASS.getClassLoader(), CLASS_NAME, null, null, bytes);
+        assertFalse(transformer.findModifiedClasses(new Class<?>[]{TESTED_CLASS}).isEmpty());
+
+        transformer.setConfigurationManager(new AgentConfigurationManager(Collections.singletonList("other.Foo.*(*)")));
+        byte[] retransformed = transformer.transform(TESTED_CLASS.getClassLoader(), CLASS_NAME, TESTED_CLASS, null,
+                bytes);
+        assertSame(bytes, retransformed);
+        assertTrue(transformer.findModifiedClasses(new Class<?>[]{TESTED_CLASS}).isEmpty());
+    }
+}
@@ -0,0 +1,183 @@
+package com.github.kornilova_l.flamegraph.javaagent.agent;
+
+import com.github.kornilova_l.flamegraph.bridge.Bridge;
+import com.github.kornilova_l.flamegraph.bridge.BridgeHandler;
+import com.github.kornilova_l.flamegraph.bridge.RecordingSwitch;
+import com.github.kornilova_l.flamegraph.javaagent.generate.test_classes.RunsAction;
+import com.github.kornilova_l.flamegraph.javaagent.logger.MethodTable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs class with switchable probes while recording is switched off and on
+ */
+public class RecordingSwitchTest {
+    private final List<String> exits = new ArrayList<>();
+    private Method run;
+
+    @Before
+    public void instrument() throws Exception {
+        AgentConfigurationManager configurationManager =
+                new AgentConfigurationManager(Collections.singletonList(RunsAction.class.getName() + ".*(*)"));
+        String className = RunsAction.class.getName().replace('.', '/');
+        ClassReader cr = new ClassReader(getBytes());
+        ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_FRAMES);
+        cr.accept(new ProfilingClassVisitor(cw, className, getClass().getClassLoader(), true,
+                configurationManager.findIncludingConfigs(className, false), configurationManager, false,
+                new ProbeSettings(ProbeMode.SWITCHABLE, TimeUnit.MILLISECONDS), new MethodTable()),
+                ClassReader.SKIP_FRAMES);
+        byte[] bytes = cw.toByteArray();
+        Class<?> instrumented = new ClassLoader(getClass().getClassLoader()) {
+            Class<?> define() {
+                return defineClass(RunsAction.class.getName(), bytes, 0, bytes.length);
+            }
+        }.define();
+        run = instrumented.getMethod("run", Runnable.class);
+        RecordingSwitch.init(TimeUnit.MILLISECONDS, true);
+        Bridge.setHandler(new ExitsHandler());
+    }
+
+    @After
+    public void reset() {
+        Bridge.setHandler(null);
+        RecordingSwitch.init(TimeUnit.MILLISECONDS, true);
+    }
+
+    @Test
+    public void probesStopAndResumeRecording() throws Exception {
+        run(() -> {
+        });
+        assertEquals(Collections.singletonList("exit"), exits);
+
+        RecordingSwitch.setRecording(false);
+        run(() -> {
+        });
+        run(() -> {
+            throw new IllegalStateException();
+        });
+        assertEquals(1, exits.size());
+
+        RecordingSwitch.setRecording(true);
+        run(() -> {
+        });
+        run(() -> {
+            throw new IllegalStateException();
+        });
+        assertEquals(3, exits.size());
+        assertEquals("exitThrown", exits.get(2));
+    }
+
+    @Test
+    public void exitOfMethodEnteredWhileRecordingWasOffIsIgnored() throws Exception {
+        RecordingSwitch.setRecording(false);
+        run(() -> RecordingSwitch.setRecording(true));
+        assertTrue(exits.isEmpty());
+
+        RecordingSwitch.setRecording(false);
+        run(() -> {
+            RecordingSwitch.setRecording(true);
+            throw new IllegalStateException();
+        });
+        assertTrue(exits.isEmpty());
+
+        run(() -> {
+        }); // recording is on
+        assertEquals(Collections.singletonList("exit"), exits);
+    }
+
+    @Test
+    public void exitOfMethodEnteredWhileRecordingWasOnIsIgnoredIfRecordingIsOff() throws Exception {
+        run(() -> RecordingSwitch.setRecording(false));
+        assertTrue(exits.isEmpty());
+    }
+
+    /**
+     * Calls instrumented RunsAction.run(). IllegalStateException of action is caught
+     */
+    private void run(Runnable action) throws Exception {
+        try {
+            run.invoke(null, action);
+        } catch (InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    private static byte[] getBytes() throws IOException {
+        try (InputStream inputStream = RunsAction.class.getResourceAsStream("RunsAction.class")) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
+            }
+            return outputStream.toByteArray();
+        }
+    }
+
+    /**
+     * Records names of exit methods that were called by probes
+     */
+    private class ExitsHandler implements BridgeHandler {
+        @Override
+        public void exit(long startTime, int methodId) {
+            assertNotEquals(0, startTime);
+            exits.add("exit");
+        }
+
+        @Override
+        public void exitThrown(Throwable throwable, long startTime, int methodId) {
+            assertNotEquals(0, startTime);
+            exits.add("exitThrown");
+        }
+
+        @Override
+        public void addToQueue(Object retVal, long startTime, long duration, Object[] parameters,
+                               Thread thread, int methodId) {
+            fail("Switchable probes pass events to exit methods");
+        }
+
+        @Override
+        public void addToQueue(Throwable throwable, boolean saveMessage, long startTime, long duration,
+                               Object[] parameters, Thread thread, int methodId) {
+            fail("Switchable probes pass events to exit methods");
+        }
+
+        @Override
+        public Object submitTask(Object executor) {
+            return null;
+        }
+
+        @Override
+        public void attachSubmission(Object task, Object executor) {
+        }
+
+        @Override
+        public Object takeSubmission(Object task) {
+            return null;
+        }
+
+        @Override
+        public Object startTask(Object submission) {
+            return null;
+        }
+
+        @Override
+        public void finishTask(Object previousContext) {
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.github.kornilova_l.flamegraph.javaagent.agent;
+
+import com.github.kornilova_l.flamegraph.bridge.Bridge;
+import com.github.kornilova_l.flamegraph.bridge.BridgeHandler;
+import com.github.kornilova_l.flamegraph.javaagent.agent.TaskSubmissionClassVisitor.Hook;
+import com.github.kornilova_l.flamegraph.javaagent.generate.test_classes.ExecutedTask;
+import com.github.kornilova_l.flamegraph.javaagent.generate.test_classes.TaskQueueExecutor;
+import org.junit.After;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class TaskSubmissionClassVisitorTest {
+    private final RecordingHandler handler = new RecordingHandler();
+
+    @After
+    public void removeHandler() {
+        Bridge.setHandler(null);
+    }
+
+    @Test
+    public void taskIsRunWithSubmissionAndIsNotReplaced() throws Exception {
+        Map<String, Hook> hooks = new HashMap<>();
+        hooks.put("execute(Ljava/lang/Runnable;)V", Hook.ATTACH_SUBMISSION);
+        hooks.put("runTasks()V", Hook.RUN_TASKS);
+        Class<?> executorClass = instrument(TaskQueueExecutor.class, hooks);
+        List<Runnable> startedTasks = new ArrayList<>();
+        Executor executor = (Executor) executorClass.getConstructor(List.class).newInstance(startedTasks);
+        Bridge.setHandler(handler);
+
+        List<Object> contexts = new ArrayList<>();
+        Runnable task = () -> contexts.add(handler.context);
+        executor.execute(task);
+        assertSame(task, ((Queue<?>) executorClass.getMethod("getQueue").invoke(executor)).peek());
+        assertEquals(Collections.singletonList("submission of " + executor), new ArrayList<>(handler.submissions.values()));
+
+        executorClass.getMethod("runTasks").invoke(executor);
+        assertEquals(Collections.singletonList(task), startedTasks); // hooks of executor see submitted task
+        assertEquals(Collections.singletonList("submission of " + executor), contexts);
+        assertTrue(handler.submissions.isEmpty());
+        assertNull(handler.context); // context is restored
+
+        executor.execute(task);
+        Bridge.setHandler(null); // task that was submitted before is run without context
+        executorClass.getMethod("runTasks").invoke(executor);
+        assertEquals(Arrays.asList("submission of " + executor, null), contexts);
+    }
+
+    @Test
+    public void executedTaskTakesItsSubmission() throws Exception {
+        Class<?> taskClass = instrument(ExecutedTask.class, Collections.singletonMap("doExec()I", Hook.EXEC_TASK));
+        Bridge.setHandler(handler);
+        List<Object> contexts = new ArrayList<>();
+        Runnable task = (Runnable) taskClass.getConstructor(Runnable.class)
+                .newInstance((Runnable) () -> contexts.add(handler.context));
+        Bridge.attachSubmission(task, "executor");
+        task.run();
+        task.run(); // submission was taken
+        assertEquals(Arrays.asList("submission of executor", null), contexts);
+
+        Runnable failingTask = (Runnable) taskClass.getConstructor(Runnable.class).newInstance((Runnable) () -> {
+            throw new IllegalStateException();
+        });
+        Bridge.attachSubmission(failingTask, "executor");
+        try {
+            failingTask.run();
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+        assertNull(handler.context); // context is restored if task throws
+        assertTrue(handler.submissions.isEmpty());
+    }
+
+    /**
+     * @return class that is loaded by new classloader after it was instrumented with given hooks
+     */
+    private static Class<?> instrument(Class<?> clazz, Map<String, Hook> hooks) throws IOException {
+        byte[] bytes;
+        try (InputStream inputStream = clazz.getResourceAsStream(clazz.getSimpleName() + ".class")) {
+            ClassReader cr = new ClassReader(inputStream);
+            ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_FRAMES);
+            cr.accept(new TaskSubmissionClassVisitor(cw, hooks), ClassReader.SKIP_FRAMES);
+            bytes = cw.toByteArray();
+        }
+        return new ClassLoader(TaskSubmissionClassVisitorTest.class.getClassLoader()) {
+            Class<?> define() {
+                return defineClass(clazz.getName(), bytes, 0, bytes.length);
+            }
+        }.define();
+    }
+
+    /**
+     * Keeps submissions of tasks and context of the only thread
+     */
+    private static class RecordingHandler implements BridgeHandler {
+        private final Map<Object, Object> submissions = new IdentityHashMap<>();
+        private Object context = null;
+
+        @Override
+        public Object submitTask(Object executor) {
+            return "submission of " + executor;
+        }
+
+        @Override
+        public void attachSubmission(Object task, Object executor) {
+            submissions.putIfAbsent(task, submitTask(executor));
+        }
+
+        @Override
+        public Object takeSubmission(Object task) {
+            return submissions.remove(task);
+        }
+
+        @Override
+        public Object startTask(Object submission) {
+            Object previous = context;
+            context = submission;
+            return previous;
+        }
+
+        @Override
+        public void finishTask(Object previousContext) {
+            context = previousContext;
+        }
+
+        @Override
+        public void addToQueue(Object retVal, long startTime, long duration, Object[] parameters,
+                               Thread thread, int methodId) {
+        }
+
+        @Override
+        public void addToQueue(Throwable throwable, boolean saveMessage, long startTime, long duration,
+                               Object[] parameters, Thread thread, int methodId) {
+        }
+
+        @Override
+        public void exit(long startTime, int methodId) {
+        }
+
+        @Override
+        public void exitThrown(Throwable throwable, long startTime, int methodId) {
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.github.kornilova_l.flamegraph.javaagent.generate.test_classes;
+
+public class Compact {
+    @SuppressWarnings("unused")
+    static int square(int i) {
+        return i * i;
+    }
+
+    @SuppressWarnings("unused")
+    static void check(int i) {
+        if (i < 0) {
+            throw new IllegalArgumentException("negative");
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.github.kornilova_l.flamegraph.javaagent.generate.test_classes;
+
+import com.github.kornilova_l.flamegraph.javaagent.logger.LoggerQueue;
+
+/**
+ * Probes are compact
+ */
+public class CompactExpected {
+    @SuppressWarnings("unused")
+    static int square(int i) {
+        long startTime = System.currentTimeMillis();
+        try {
+            int res = i * i;
+            LoggerQueue.exit(startTime, 1 /* square(I)I */);
+            return res;
+        } catch (Throwable t) {
+            LoggerQueue.exitThrown(t, startTime, 1 /* square(I)I */);
+            throw t;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    static void check(int i) {
+        long startTime = System.currentTimeMillis();
+        try {
+            if (i < 0) {
+                throw new IllegalArgumentException("negative");
+            }
+            LoggerQueue.exit(startTime, 2 /* check(I)V */);
+        } catch (Throwable t) {
+            LoggerQueue.exitThrown(t, startTime, 2 /* check(I)V */);
+            throw t;
+        }
+    }
+}
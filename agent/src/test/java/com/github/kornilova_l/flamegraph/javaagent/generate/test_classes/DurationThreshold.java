@@ -0,0 +1,8 @@
+package com.github.kornilova_l.flamegraph.javaagent.generate.test_classes;
+
+public class DurationThreshold {
+    @SuppressWarnings("unused")
+    static int square(int i) {
+        return i * i;
+    }
+}
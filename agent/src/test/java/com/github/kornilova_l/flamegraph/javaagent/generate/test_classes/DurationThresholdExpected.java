@@ -0,0 +1,41 @@
+package com.github.kornilova_l.flamegraph.javaagent.generate.test_classes;
+
+import com.github.kornilova_l.flamegraph.javaagent.logger.LoggerQueue;
+import com.github.kornilova_l.flamegraph.proxy.StartData;
+
+/**
+ * Timing is nanos and configuration is *.*(*)>200us
+ */
+public class DurationThresholdExpected {
+    @SuppressWarnings("unused")
+    static int square(int i) {
+        StartData startData = new StartData(System.nanoTime(), null);
+        try {
+            int res = i * i;
+            startData.setDuration(System.nanoTime());
+            if (startData.getDuration() > 200000) {
+                LoggerQueue.addToQueue(null,
+                        startData.getStartTime(),
+                        startData.getDuration(),
+                        startData.getParameters(),
+                        Thread.currentThread(),
+                        1 /* square(I)I */);
+            }
+            return res;
+        } catch (Throwable t) {
+            if (!startData.isThrownByMethod()) {
+                startData.setDuration(System.nanoTime());
+                if (startData.getDuration() > 200000) {
+                    LoggerQueue.addToQueue(t,
+                            false,
+                            startData.getStartTime(),
+                            startData.getDuration(),
+                            startData.getParameters(),
+                            Thread.currentThread(),
+                            1 /* square(I)I */);
+                }
+            }
+            throw t;
+        }
+    }
+}
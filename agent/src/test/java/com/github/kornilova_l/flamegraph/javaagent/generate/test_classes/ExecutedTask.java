@@ -0,0 +1,22 @@
+package com.github.kornilova_l.flamegraph.javaagent.generate.test_classes;
+
+/**
+ * Task that is executed like ForkJoinTask.doExec()
+ */
+public class ExecutedTask implements Runnable {
+    private final Runnable action;
+
+    public ExecutedTask(Runnable action) {
+        this.action = action;
+    }
+
+    @Override
+    public void run() {
+        doExec();
+    }
+
+    int doExec() {
+        action.run();
+        return 1;
+    }
+}
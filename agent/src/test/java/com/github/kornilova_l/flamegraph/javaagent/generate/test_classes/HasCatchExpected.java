@@ -24,11 +24,7 @@ public class HasCatchExpected {
                         startData.getDuration(),
                         startData.getParameters(),
                         Thread.currentThread(),
-                        "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/HasCatch",
-                        "main",
-                        "([Ljava/lang/String;)V",
-                        true,
-                        ""
+                        1 /* main([Ljava/lang/String;)V */
                 );
             }
         } catch (Throwable throwable) {
@@ -41,11 +37,7 @@ public class HasCatchExpected {
                             startData.getDuration(),
                             startData.getParameters(),
                             Thread.currentThread(),
-                            "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/HasCatch",
-                            "main",
-                            "([Ljava/lang/String;)V",
-                            true,
-                            ""
+                            1 /* main([Ljava/lang/String;)V */
                     );
                 }
             }
@@ -18,11 +18,7 @@ public class HasIfExpected {
                         startData.getDuration(),
                         startData.getParameters(),
                         Thread.currentThread(),
-                        "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/HasIf",
-                        "main",
-                        "(I)I",
-                        true,
-                        "");
+                        1 /* main(I)I */);
             }
             return res;
         } catch (Throwable t) {
@@ -35,11 +31,7 @@ public class HasIfExpected {
                             startData.getDuration(),
                             startData.getParameters(),
                             Thread.currentThread(),
-                            "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/HasIf",
-                            "main",
-                            "(I)I",
-                            true,
-                            "");
+                            1 /* main(I)I */);
                 }
             }
             throw t;
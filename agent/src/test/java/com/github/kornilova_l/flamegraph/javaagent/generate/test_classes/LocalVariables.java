@@ -0,0 +1,16 @@
+package com.github.kornilova_l.flamegraph.javaagent.generate.test_classes;
+
+public class LocalVariables {
+    @SuppressWarnings("unused")
+    long sum(int i, long l) {
+        System.out.println("Hello, world!");
+        return i + l;
+    }
+
+    @SuppressWarnings("unused")
+    static void throwIfTrue(boolean b) {
+        if (b) {
+            throw new IllegalStateException("b is true");
+        }
+    }
+}
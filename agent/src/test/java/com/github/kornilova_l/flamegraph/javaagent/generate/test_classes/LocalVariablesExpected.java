@@ -0,0 +1,108 @@
+package com.github.kornilova_l.flamegraph.javaagent.generate.test_classes;
+
+import com.github.kornilova_l.flamegraph.javaagent.logger.EventRecord;
+import com.github.kornilova_l.flamegraph.javaagent.logger.LoggerQueue;
+
+/**
+ * Instrumentation with option probes=locals.
+ * StartData is not created, everything is kept in local variables.
+ * Saved parameters and return value are passed to EventRecord without boxing
+ */
+public class LocalVariablesExpected {
+    @SuppressWarnings("unused")
+    long sum(int i, long l) {
+        long startTime = System.currentTimeMillis();
+        int savedI = i;
+        long savedL = l;
+        boolean thrownByMethod = false;
+        long duration;
+        try {
+            System.out.println("Hello, world!");
+            long res = i + l;
+            duration = System.currentTimeMillis() - startTime;
+            if (duration > 1) {
+                long retVal = res;
+                EventRecord record = LoggerQueue.getEventRecord();
+                record.addParameter(savedI);
+                record.addParameter(savedL);
+                record.setReturnValue(retVal);
+                LoggerQueue.addToQueue(record,
+                        startTime,
+                        duration,
+                        Thread.currentThread(),
+                        1 /* sum(IJ)J */);
+            }
+            return res;
+        } catch (Throwable throwable) {
+            if (!thrownByMethod) {
+                duration = System.currentTimeMillis() - startTime;
+                if (duration > 1) {
+                    EventRecord record = LoggerQueue.getEventRecord();
+                    record.addParameter(savedI);
+                    record.addParameter(savedL);
+                    LoggerQueue.addToQueue(throwable,
+                            true,
+                            record,
+                            startTime,
+                            duration,
+                            Thread.currentThread(),
+                            1 /* sum(IJ)J */);
+                }
+            }
+            throw throwable;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    static void throwIfTrue(boolean b) {
+        long startTime = System.currentTimeMillis();
+        boolean savedB = b;
+        boolean thrownByMethod = false;
+        long duration;
+        try {
+            if (b) {
+                IllegalStateException exception = new IllegalStateException("b is true");
+                duration = System.currentTimeMillis() - startTime;
+                thrownByMethod = true;
+                if (duration > 1) {
+                    EventRecord record = LoggerQueue.getEventRecord();
+                    record.addParameter(savedB);
+                    LoggerQueue.addToQueue(exception,
+                            true,
+                            record,
+                            startTime,
+                            duration,
+                            Thread.currentThread(),
+                            2 /* throwIfTrue(Z)V */);
+                }
+                throw exception;
+            }
+            duration = System.currentTimeMillis() - startTime;
+            if (duration > 1) {
+                EventRecord record = LoggerQueue.getEventRecord();
+                record.addParameter(savedB);
+                LoggerQueue.addToQueue(record,
+                        startTime,
+                        duration,
+                        Thread.currentThread(),
+                        2 /* throwIfTrue(Z)V */);
+            }
+        } catch (Throwable throwable) {
+            if (!thrownByMethod) {
+                duration = System.currentTimeMillis() - startTime;
+                if (duration > 1) {
+                    EventRecord record = LoggerQueue.getEventRecord();
+                    record.addParameter(savedB);
+                    LoggerQueue.addToQueue(throwable,
+                            true,
+                            record,
+                            startTime,
+                            duration,
+                            Thread.currentThread(),
+                            2 /* throwIfTrue(Z)V */);
+                }
+            }
+            throw throwable;
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.github.kornilova_l.flamegraph.javaagent.generate.test_classes;
+
+public class RunsAction {
+    public static void run(Runnable action) {
+        action.run();
+    }
+}
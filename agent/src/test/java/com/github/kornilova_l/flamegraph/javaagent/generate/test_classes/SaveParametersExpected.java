@@ -18,11 +18,7 @@ public class SaveParametersExpected {
                         startData.getDuration(),
                         startData.getParameters(),
                         Thread.currentThread(),
-                        "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SaveParameters",
-                        "noParams",
-                        "()V",
-                        false,
-                        "");
+                        1 /* noParams()V */);
             }
         } catch (Throwable throwable) {
             if (!startData.isThrownByMethod()) {
@@ -34,11 +30,7 @@ public class SaveParametersExpected {
                             startData.getDuration(),
                             startData.getParameters(),
                             Thread.currentThread(),
-                            "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SaveParameters",
-                            "noParams",
-                            "()V",
-                            false,
-                            "");
+                            1 /* noParams()V */);
                 }
             }
             throw throwable;
@@ -57,11 +49,7 @@ public class SaveParametersExpected {
                         startData.getDuration(),
                         startData.getParameters(),
                         Thread.currentThread(),
-                        "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SaveParameters",
-                        "oneParam",
-                        "(I)V",
-                        false,
-                        "1");
+                        2 /* oneParam(I)V */);
             }
         } catch (Throwable throwable) {
             if (!startData.isThrownByMethod()) {
@@ -73,11 +61,7 @@ public class SaveParametersExpected {
                             startData.getDuration(),
                             startData.getParameters(),
                             Thread.currentThread(),
-                            "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SaveParameters",
-                            "oneParam",
-                            "(I)V",
-                            false,
-                            "1");
+                            2 /* oneParam(I)V */);
                 }
             }
             throw throwable;
@@ -96,11 +80,7 @@ public class SaveParametersExpected {
                         startData.getDuration(),
                         startData.getParameters(),
                         Thread.currentThread(),
-                        "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SaveParameters",
-                        "twoParams",
-                        "(ILjava/util/ArrayList;)V",
-                        false,
-                        "1,2");
+                        3 /* twoParams(ILjava/util/ArrayList;)V */);
             }
         } catch (Throwable throwable) {
             if (!startData.isThrownByMethod()) {
@@ -112,11 +92,7 @@ public class SaveParametersExpected {
                             startData.getDuration(),
                             startData.getParameters(),
                             Thread.currentThread(),
-                            "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SaveParameters",
-                            "twoParams",
-                            "(ILjava/util/ArrayList;)V",
-                            false,
-                            "1,2");
+                            3 /* twoParams(ILjava/util/ArrayList;)V */);
                 }
             }
             throw throwable;
@@ -135,11 +111,7 @@ public class SaveParametersExpected {
                         startData.getDuration(),
                         startData.getParameters(),
                         Thread.currentThread(),
-                        "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SaveParameters",
-                        "threeParams",
-                        "(ZJLjava/lang/String;)V",
-                        true,
-                        "1,2,3");
+                        4 /* threeParams(ZJLjava/lang/String;)V */);
             }
         } catch (Throwable throwable) {
             if (!startData.isThrownByMethod()) {
@@ -151,11 +123,7 @@ public class SaveParametersExpected {
                             startData.getDuration(),
                             startData.getParameters(),
                             Thread.currentThread(),
-                            "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SaveParameters",
-                            "threeParams",
-                            "(ZJLjava/lang/String;)V",
-                            true,
-                            "1,2,3");
+                            4 /* threeParams(ZJLjava/lang/String;)V */);
                 }
             }
             throw throwable;
@@ -19,11 +19,7 @@ public class SaveReturnValueExpected {
                         startData.getDuration(),
                         startData.getParameters(),
                         Thread.currentThread(),
-                        "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SaveReturnValue",
-                        "returnGeneric",
-                        "()Ljava/util/ArrayList;",
-                        true,
-                        ""
+                        1 /* returnGeneric()Ljava/util/ArrayList; */
                 );
             }
             return list;
@@ -37,11 +33,7 @@ public class SaveReturnValueExpected {
                             startData.getDuration(),
                             startData.getParameters(),
                             Thread.currentThread(),
-                            "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SaveReturnValue",
-                            "returnGeneric",
-                            "()Ljava/util/ArrayList;",
-                            true,
-                            ""
+                            1 /* returnGeneric()Ljava/util/ArrayList; */
                     );
                 }
             }
@@ -62,11 +54,7 @@ public class SaveReturnValueExpected {
                         startData.getDuration(),
                         startData.getParameters(),
                         Thread.currentThread(),
-                        "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SaveReturnValue",
-                        "returnInt",
-                        "()I",
-                        false,
-                        ""
+                        2 /* returnInt()I */
                 );
             }
             return 23;
@@ -80,11 +68,7 @@ public class SaveReturnValueExpected {
                             startData.getDuration(),
                             startData.getParameters(),
                             Thread.currentThread(),
-                            "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SaveReturnValue",
-                            "returnInt",
-                            "()I",
-                            false,
-                            ""
+                            2 /* returnInt()I */
                     );
                 }
             }
@@ -104,11 +88,7 @@ public class SaveReturnValueExpected {
                         startData.getDuration(),
                         startData.getParameters(),
                         Thread.currentThread(),
-                        "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SaveReturnValue",
-                        "returnVoid",
-                        "(I)V",
-                        false,
-                        ""
+                        3 /* returnVoid(I)V */
                 );
             }
         } catch (Throwable t) {
@@ -121,11 +101,7 @@ public class SaveReturnValueExpected {
                             startData.getDuration(),
                             startData.getParameters(),
                             Thread.currentThread(),
-                            "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SaveReturnValue",
-                            "returnVoid",
-                            "(I)V",
-                            false,
-                            ""
+                            3 /* returnVoid(I)V */
                     );
                 }
             }
@@ -146,11 +122,7 @@ public class SaveReturnValueExpected {
                         startData.getDuration(),
                         startData.getParameters(),
                         Thread.currentThread(),
-                        "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SaveReturnValue",
-                        "returnString",
-                        "()Ljava/lang/String;",
-                        false,
-                        ""
+                        4 /* returnString()Ljava/lang/String; */
                 );
             }
             return hello;
@@ -164,11 +136,7 @@ public class SaveReturnValueExpected {
                             startData.getDuration(),
                             startData.getParameters(),
                             Thread.currentThread(),
-                            "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SaveReturnValue",
-                            "returnString",
-                            "()Ljava/lang/String;",
-                            false,
-                            ""
+                            4 /* returnString()Ljava/lang/String; */
                     );
                 }
             }
@@ -188,11 +156,7 @@ public class SaveReturnValueExpected {
                         startData.getDuration(),
                         startData.getParameters(),
                         Thread.currentThread(),
-                        "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SaveReturnValue",
-                        "returnLong",
-                        "()J",
-                        false,
-                        ""
+                        5 /* returnLong()J */
                 );
             }
             return 32;
@@ -206,11 +170,7 @@ public class SaveReturnValueExpected {
                             startData.getDuration(),
                             startData.getParameters(),
                             Thread.currentThread(),
-                            "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SaveReturnValue",
-                            "returnLong",
-                            "()J",
-                            false,
-                            ""
+                            5 /* returnLong()J */
                     );
                 }
             }
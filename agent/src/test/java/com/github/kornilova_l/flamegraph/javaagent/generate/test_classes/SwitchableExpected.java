@@ -0,0 +1,49 @@
+package com.github.kornilova_l.flamegraph.javaagent.generate.test_classes;
+
+import com.github.kornilova_l.flamegraph.bridge.RecordingSwitch;
+
+/**
+ * Probes are switchable. In bytecode calls of RecordingSwitch are invokedynamic instructions
+ * that are linked by {@link RecordingSwitch#bootstrap}: enter returns 0 and exits do nothing while recording is off
+ */
+public class SwitchableExpected {
+    @SuppressWarnings("unused")
+    static int square(int i) {
+        long startTime = enter();
+        try {
+            int res = i * i;
+            exit(startTime, 1 /* square(I)I */);
+            return res;
+        } catch (Throwable t) {
+            exitThrown(t, startTime, 1 /* square(I)I */);
+            throw t;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    static void check(int i) {
+        long startTime = enter();
+        try {
+            if (i < 0) {
+                throw new IllegalArgumentException("negative");
+            }
+            exit(startTime, 2 /* check(I)V */);
+        } catch (Throwable t) {
+            exitThrown(t, startTime, 2 /* check(I)V */);
+            throw t;
+        }
+    }
+
+    /* invokedynamic enter()J */
+    private static long enter() {
+        return RecordingSwitch.isRecording() ? System.currentTimeMillis() : 0;
+    }
+
+    /* invokedynamic exit(JI)V */
+    private static void exit(long startTime, int methodId) {
+    }
+
+    /* invokedynamic exitThrown(Ljava/lang/Throwable;JI)V */
+    private static void exitThrown(Throwable t, long startTime, int methodId) {
+    }
+}
@@ -1,66 +1,48 @@
 package com.github.kornilova_l.flamegraph.javaagent.generate.test_classes;
 
-import java.lang.reflect.InvocationTargetException;
+import com.github.kornilova_l.flamegraph.bridge.Bridge;
 
 /**
  * Sometimes it is needed to instrument system classes.
  * System classes are loaded by bootstrap and it is not possible to use
  * not system classes in their methods.
+ * Bridge is appended to bootstrap class path by javaagent
  */
 public class SystemClassWithThrowExpected {
-    @SuppressWarnings({"RedundantCast", "unused"})
+    @SuppressWarnings("unused")
     public void method() {
+        long startTime = System.currentTimeMillis();
+        Object[] parameters = null;
+        boolean thrownByMethod = false;
+        long duration;
         try {
-            Class<?> proxyClass = ClassLoader.getSystemClassLoader().loadClass("com.github.kornilova_l.flamegraph.proxy.Proxy");
-            Class<?> startDataClass = ClassLoader.getSystemClassLoader().loadClass("com.github.kornilova_l.flamegraph.proxy.StartData");
-            Object startData = startDataClass.getConstructor(long.class, Object[].class).newInstance(System.currentTimeMillis(), new Object[0]);
-            try {
-                startDataClass.getMethod("setDuration", long.class).invoke(startData, System.currentTimeMillis());
-                startDataClass.getMethod("setThrownByMethod").invoke(null);
-                if ((long) startDataClass.getMethod("getDuration").invoke(startData) > 1) {
-                    proxyClass.getMethod("addToQueue", Throwable.class, boolean.class, long.class, long.class, Object[].class, Thread.class,
-                            String.class, String.class, String.class, boolean.class, String.class)
-                            .invoke(null, // static method
-                                    null, // actually here will be ALOAD instruction
-                                    false,
-                                    (long) startDataClass.getMethod("getStartTime").invoke(startData),
-                                    (long) startDataClass.getMethod("getDuration").invoke(startData),
-                                    (Object[]) startDataClass.getMethod("getParameters").invoke(startData),
-                                    Thread.currentThread(),
-                                    "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SystemClassWithThrow",
-                                    "method",
-                                    "()V",
-                                    false,
-                                    ""
-                            );
-                }
-                throw new AssertionError("Something went wrong");
-            } catch (Throwable t) {
-                if (!((boolean) startDataClass.getMethod("isThrownByMethod").invoke(startData))) {
-                    startDataClass.getMethod("setDuration", long.class).invoke(startData, System.currentTimeMillis());
-                    if ((long) startDataClass.getMethod("getDuration").invoke(startData) > 1) {
-                        proxyClass.getMethod("addToQueue", Throwable.class, boolean.class, long.class, long.class,
-                                Object[].class, Thread.class, String.class, String.class, String.class, boolean.class, String.class)
-                                .invoke(null, // static method
-                                        t,
-                                        false,
-                                        (long) startDataClass.getMethod("getStartTime").invoke(startData),
-                                        (long) startDataClass.getMethod("getDuration").invoke(startData),
-                                        (Object[]) startDataClass.getMethod("getParameters").invoke(startData),
-                                        Thread.currentThread(),
-                                        "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/SystemClassWithThrow",
-                                        "method",
-                                        "()V",
-                                        false,
-                                        ""
-                                );
-                    }
+            AssertionError error = new AssertionError("Something went wrong");
+            duration = System.currentTimeMillis() - startTime;
+            thrownByMethod = true;
+            if (duration > 1) {
+                Bridge.addToQueue(error,
+                        false,
+                        startTime,
+                        duration,
+                        parameters,
+                        Thread.currentThread(),
+                        1 /* method()V */);
+            }
+            throw error;
+        } catch (Throwable throwable) {
+            if (!thrownByMethod) {
+                duration = System.currentTimeMillis() - startTime;
+                if (duration > 1) {
+                    Bridge.addToQueue(throwable,
+                            false,
+                            startTime,
+                            duration,
+                            parameters,
+                            Thread.currentThread(),
+                            1 /* method()V */);
                 }
-                throw t;
             }
-        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException | InvocationTargetException | InstantiationException e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
+            throw throwable;
         }
     }
 }
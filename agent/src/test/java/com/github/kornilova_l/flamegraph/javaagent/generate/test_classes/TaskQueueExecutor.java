@@ -0,0 +1,39 @@
+package com.github.kornilova_l.flamegraph.javaagent.generate.test_classes;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Executor that queues tasks and runs them like ThreadPoolExecutor.runWorker()
+ */
+public class TaskQueueExecutor implements Executor {
+    private final Queue<Runnable> queue = new ArrayDeque<>();
+    private final List<Runnable> startedTasks;
+
+    public TaskQueueExecutor(List<Runnable> startedTasks) {
+        this.startedTasks = startedTasks;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        queue.add(task);
+    }
+
+    public Queue<Runnable> getQueue() {
+        return queue;
+    }
+
+    public void runTasks() {
+        Runnable task;
+        while ((task = queue.poll()) != null) {
+            beforeExecute(task);
+            task.run();
+        }
+    }
+
+    private void beforeExecute(Runnable task) {
+        startedTasks.add(task);
+    }
+}
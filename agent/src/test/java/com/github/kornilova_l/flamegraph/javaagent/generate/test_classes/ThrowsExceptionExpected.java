@@ -16,11 +16,7 @@ public class ThrowsExceptionExpected {
                         startData.getDuration(),
                         startData.getParameters(),
                         Thread.currentThread(),
-                        "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/ThrowsException",
-                        "main",
-                        "([Ljava/lang/String;)V",
-                        true,
-                        ""
+                        1 /* main([Ljava/lang/String;)V */
                 );
             }
         throw new AssertionError("error");
@@ -34,11 +30,7 @@ public class ThrowsExceptionExpected {
                             startData.getDuration(),
                             startData.getParameters(),
                             Thread.currentThread(),
-                            "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/ThrowsException",
-                            "main",
-                            "([Ljava/lang/String;)V",
-                            true,
-                            ""
+                            1 /* main([Ljava/lang/String;)V */
                     );
                 }
             }
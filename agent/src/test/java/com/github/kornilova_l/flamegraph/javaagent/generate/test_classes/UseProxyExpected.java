@@ -19,11 +19,7 @@ public class UseProxyExpected {
                         startData.getDuration(),
                         startData.getParameters(),
                         Thread.currentThread(),
-                        "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/UseProxy",
-                        "main",
-                        "([Ljava/lang/String;)V",
-                        true,
-                        "");
+                        1 /* main([Ljava/lang/String;)V */);
             }
         } catch (Throwable throwable) {
             if (!startData.isThrownByMethod()) {
@@ -35,11 +31,7 @@ public class UseProxyExpected {
                             startData.getDuration(),
                             startData.getParameters(),
                             Thread.currentThread(),
-                            "com/github/kornilova_l/flamegraph/javaagent/generate/test_classes/UseProxy",
-                            "main",
-                            "([Ljava/lang/String;)V",
-                            true,
-                            "");
+                            1 /* main([Ljava/lang/String;)V */);
                 }
             }
             throw throwable;
@@ -0,0 +1,126 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import com.github.kornilova_l.flamegraph.proto.EventProtos.Event;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class ChannelEventWriterTest {
+    private static Event newThreadEvent(long id, String name) {
+        return Event.newBuilder()
+                .setNewThread(Event.Map.newBuilder()
+                        .setId(id)
+                        .setName(name))
+                .build();
+    }
+
+    @Test
+    public void eventsAreWrittenInOrder() throws Exception {
+        File file = File.createTempFile("event-writer", ".ser");
+        assertTrue(file.delete()); // writer creates file
+        file.deleteOnExit();
+        ChannelEventWriter writer = new ChannelEventWriter(file, 64); // several buffers for small events
+        Thread flushingThread = new Thread(writer::runFlushing);
+        flushingThread.setDaemon(true);
+        flushingThread.start();
+
+        StringBuilder longName = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            longName.append("long name ");
+        }
+        for (int i = 0; i < 20; i++) {
+            writer.write(newThreadEvent(i, i == 10 ? longName.toString() : "thread " + i)); // 10th is bigger than buffer
+        }
+        writer.flush();
+        while (writer.isFlushing()) {
+            Thread.sleep(1);
+        }
+        assertEquals(20, writer.getEventsWritten());
+        assertEquals(file.length(), writer.getBytesWritten());
+
+        try (InputStream inputStream = new FileInputStream(file)) {
+            for (int i = 0; i < 20; i++) {
+                Event event = Event.parseDelimitedFrom(inputStream);
+                assertEquals(i, event.getNewThread().getId());
+                assertEquals(i == 10 ? longName.toString() : "thread " + i, event.getNewThread().getName());
+            }
+            assertNull(Event.parseDelimitedFrom(inputStream));
+        }
+    }
+
+    @Test
+    public void syncWaitsUntilEventsAreWritten() throws Exception {
+        File file = File.createTempFile("event-writer", ".ser");
+        assertTrue(file.delete());
+        file.deleteOnExit();
+        ChannelEventWriter writer = new ChannelEventWriter(file, 64);
+        writer.start();
+
+        for (int i = 0; i < 20; i++) {
+            writer.write(newThreadEvent(i, "thread " + i));
+        }
+        writer.sync(); // no polling of isFlushing()
+        assertFalse(writer.isFlushing());
+        assertEquals(file.length(), writer.getBytesWritten());
+        writer.close();
+
+        try (InputStream inputStream = new FileInputStream(file)) {
+            for (int i = 0; i < 20; i++) {
+                assertEquals(i, Event.parseDelimitedFrom(inputStream).getNewThread().getId());
+            }
+            assertNull(Event.parseDelimitedFrom(inputStream));
+        }
+    }
+
+    @Test
+    public void eventsAreDroppedAfterClose() throws Exception {
+        File file = File.createTempFile("event-writer", ".ser");
+        assertTrue(file.delete());
+        file.deleteOnExit();
+        ChannelEventWriter writer = new ChannelEventWriter(file, 64);
+        writer.start();
+        writer.write(newThreadEvent(0, "thread 0"));
+        writer.close();
+        long length = file.length();
+
+        writer.write(newThreadEvent(1, "thread 1")); // for example by shutdown hook of application
+        writer.sync();
+        writer.close();
+        assertEquals(length, file.length()); // file is not opened again
+        assertEquals(1, writer.getEventsWritten());
+        assertEquals(1, writer.getEventsLost());
+    }
+
+    @Test
+    public void failureOfFlushingThreadIsThrown() throws Exception {
+        File dir = Files.createTempDirectory("event-writer").toFile(); // directory cannot be opened for writing
+        dir.deleteOnExit();
+        ChannelEventWriter writer = new ChannelEventWriter(dir, 64);
+        writer.start();
+        for (int i = 0; i < 20; i++) {
+            writer.write(newThreadEvent(i, "thread " + i));
+        }
+        IOException failure = null;
+        try {
+            writer.sync();
+            fail();
+        } catch (IOException e) {
+            failure = e;
+        }
+        writer.write(newThreadEvent(20, "thread 20"));
+        try {
+            writer.close();
+            fail();
+        } catch (IOException e) {
+            assertSame(failure, e); // failure is kept
+        }
+        assertEquals(0, writer.getEventsWritten());
+        assertEquals(21, writer.getEventsLost());
+    }
+}
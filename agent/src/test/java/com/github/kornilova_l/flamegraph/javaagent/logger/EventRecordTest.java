@@ -0,0 +1,40 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.MethodEventData;
+import com.github.kornilova_l.flamegraph.proto.EventProtos.Event;
+import com.github.kornilova_l.flamegraph.proto.EventProtos.Parameter;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class EventRecordTest {
+    @Test
+    public void primitivesAreWrittenToVar() {
+        int methodId = LoggerQueue.getMethodTable().register("my_package/MyClass", "method", "(IDZLjava/lang/String;J)F",
+                true, new int[]{1, 2, 3, 4, 5});
+        EventRecord record = new EventRecord();
+        record.addParameter(-42);
+        record.addParameter(2.5);
+        record.addParameter(true);
+        record.addParameter("hello");
+        record.addParameter(7L); // more parameters than initial capacity
+        record.setReturnValue(1.5f);
+
+        MethodEventData slot = new MethodEventData();
+        slot.setReturned(Thread.currentThread(), methodId, 0, 1, record);
+        assertEquals(0, record.getSize());
+        assertEquals(EventRecord.NONE, record.getReturnType());
+
+        List<Event> events = slot.getEvents(0);
+        Event.MethodEvent methodEvent = events.get(events.size() - 1).getMethodEvent();
+        List<Parameter> parameters = methodEvent.getParametersList();
+        assertEquals(-42, parameters.get(0).getVar().getI());
+        assertEquals(1, parameters.get(0).getIndex());
+        assertEquals(2.5, parameters.get(1).getVar().getD(), 0);
+        assertEquals(true, parameters.get(2).getVar().getZ());
+        assertEquals("hello", parameters.get(3).getVar().getObject().getValue());
+        assertEquals(1.5f, methodEvent.getReturnValue().getF(), 0);
+    }
+}
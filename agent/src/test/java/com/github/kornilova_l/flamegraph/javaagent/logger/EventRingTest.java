@@ -0,0 +1,237 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.MethodEventData;
+import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.RecordedThread;
+import com.github.kornilova_l.flamegraph.proto.EventProtos.Event;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class EventRingTest {
+    private static final int methodId = LoggerQueue.getMethodTable().register("my_package/MyClass", "method", "()V",
+            true, new int[0]);
+
+    private static void add(EventRing ring, int methodId, long startTime) {
+        MethodEventData slot = ring.claim();
+        if (slot != null) {
+            slot.setReturned(Thread.currentThread(), methodId, startTime, 1, null, null);
+            ring.publish();
+        }
+    }
+
+    @Test
+    public void eventsAreDroppedWhenRingIsFull() {
+        EventRing ring = new EventRing(Thread.currentThread(), 3); // rounded up to 4
+        assertEquals(4, ring.getCapacity());
+        for (int i = 0; i < 6; i++) {
+            add(ring, methodId, i);
+        }
+        assertEquals(2, ring.getDropped());
+        assertEquals(4, ring.getHighWaterMark());
+
+        List<Long> startTimes = new ArrayList<>();
+        EventRing.SlotConsumer consumer = getConsumer(startTimes);
+        assertEquals(3, ring.drain(consumer, 3));
+        add(ring, methodId, 6); // released slot is reused
+        assertEquals(2, ring.drain(consumer, 10));
+        assertTrue(ring.isEmpty());
+        assertEquals(2, ring.getDropped());
+        assertEquals(2, ring.takeUnreportedDropped());
+        assertEquals(0, ring.takeUnreportedDropped());
+
+        assertStartTimes(startTimes, 0, 1, 2, 3, 6);
+    }
+
+    @Test
+    public void nestedEventIsDropped() {
+        EventRing ring = new EventRing(Thread.currentThread(), 4);
+        MethodEventData slot = ring.claim();
+        assertNotNull(slot);
+        /* instrumented method is called by producer before slot is published */
+        assertNull(ring.claim());
+        assertEquals(1, ring.getDropped());
+        slot.setReturned(Thread.currentThread(), methodId, 0, 1, null, null);
+        ring.publish();
+        add(ring, methodId, 1);
+        assertEquals(1, ring.getDropped());
+
+        List<Long> startTimes = new ArrayList<>();
+        assertEquals(2, ring.drain(getConsumer(startTimes), 10));
+        assertStartTimes(startTimes, 0, 1);
+    }
+
+    @Test
+    public void oldestEventsAreDropped() {
+        EventRing ring = new EventRing(Thread.currentThread(), 4, OverflowPolicy.DROP_OLDEST, null);
+        for (int i = 0; i < 6; i++) {
+            add(ring, methodId, i);
+        }
+        assertEquals(2, ring.getDropped());
+
+        List<Long> startTimes = new ArrayList<>();
+        assertEquals(4, ring.drain(getConsumer(startTimes), 10));
+        assertStartTimes(startTimes, 2, 3, 4, 5);
+    }
+
+    @Test
+    public void oldestEventsAreDroppedWhileConsumerDrainsRing() throws Exception {
+        int count = 1_000_000;
+        EventRing ring = new EventRing(Thread.currentThread(), 8, OverflowPolicy.DROP_OLDEST, null);
+        AtomicBoolean isProducerFinished = new AtomicBoolean(false);
+        List<Integer> sequence = new ArrayList<>();
+        Thread consumer = new Thread(() -> {
+            /* method id is used as sequence number, so consumer does not build events and drains ring often */
+            while (!isProducerFinished.get() || !ring.isEmpty()) {
+                ring.drain(slot -> sequence.add(slot.getMethodId()), 2);
+            }
+        });
+        consumer.start();
+        for (int i = 1; i <= count; i++) {
+            add(ring, i, 0);
+        }
+        isProducerFinished.set(true);
+        consumer.join();
+
+        assertEquals(count, sequence.size() + ring.getDropped());
+        for (int i = 1; i < sequence.size(); i++) {
+            assertTrue(sequence.get(i - 1) < sequence.get(i));
+        }
+    }
+
+    @Test
+    public void eventsAreSampledWhenRingIsHalfFull() {
+        EventRing ring = new EventRing(Thread.currentThread(), 16, OverflowPolicy.SAMPLE, null);
+        for (int i = 0; i < 100; i++) {
+            add(ring, methodId, i);
+        }
+        List<Long> startTimes = new ArrayList<>();
+        ring.drain(getConsumer(startTimes), 100);
+        /* first 8 events are recorded, then every 2nd until 12 slots are occupied,
+         * then every 4th until 14 slots are occupied, then every 8th until ring is full */
+        assertStartTimes(startTimes, 0, 1, 2, 3, 4, 5, 6, 7, 8, 10, 12, 14, 16, 20, 24, 32);
+        assertEquals(100 - 16, ring.getDropped());
+    }
+
+    @Test
+    public void eventsAreSpilledWhenRingIsFull() {
+        OverflowQueue overflowQueue = new OverflowQueue(2);
+        EventRing ring = new EventRing(Thread.currentThread(), 2, OverflowPolicy.SPILL, overflowQueue);
+        for (int i = 0; i < 5; i++) {
+            add(ring, methodId, i);
+        }
+        assertEquals(1, ring.getDropped()); // queue is full
+        assertEquals(2, ring.getSpilled());
+        assertFalse(overflowQueue.isEmpty());
+
+        List<Long> startTimes = new ArrayList<>();
+        EventRing.SlotConsumer consumer = getConsumer(startTimes);
+        ring.drain(consumer, 10);
+        assertEquals(2, overflowQueue.drain(slot -> {
+            assertSame(Thread.currentThread(), slot.getThread().getThread());
+            consumer.accept(slot);
+        }, 10));
+        assertTrue(overflowQueue.isEmpty());
+        assertStartTimes(startTimes, 0, 1, 2, 3);
+    }
+
+    @Test
+    public void spilledEventIsConvertedByConsumer() {
+        OverflowQueue overflowQueue = new OverflowQueue(16);
+        EventRing ring = new EventRing(Thread.currentThread(), 2, OverflowPolicy.SPILL, overflowQueue);
+        add(ring, methodId, 0);
+        add(ring, methodId, 1);
+        AtomicInteger toStringCalls = new AtomicInteger();
+        Object retVal = new Object() {
+            @Override
+            public String toString() {
+                /* instrumented method that is called while event is converted */
+                toStringCalls.incrementAndGet();
+                add(ring, methodId, 3);
+                return "retVal";
+            }
+        };
+        MethodEventData slot = ring.claim();
+        assertNotNull(slot);
+        slot.setReturned(Thread.currentThread(), methodId, 2, 1, null, retVal);
+        ring.publish();
+        assertEquals(0, toStringCalls.get());
+        assertEquals(1, ring.getSpilled());
+
+        List<Long> startTimes = new ArrayList<>();
+        EventRing.SlotConsumer consumer = getConsumer(startTimes);
+        ring.drain(consumer, 10);
+        assertEquals(1, overflowQueue.drain(consumer, 10));
+        assertEquals(1, toStringCalls.get());
+        ring.drain(consumer, 10);
+        assertStartTimes(startTimes, 0, 1, 2, 3);
+    }
+
+    @Test
+    public void loggerIsSignalledWhenRingIsFilled() throws Exception {
+        DrainScheduler scheduler = new DrainScheduler();
+        EventRing ring = new EventRing(Thread.currentThread(), 16, OverflowPolicy.DROP_NEWEST, null, scheduler, 4);
+        Thread waiter = new Thread(() -> scheduler.await(TimeUnit.MINUTES.toNanos(1), false));
+        waiter.start();
+        for (int i = 0; i < 4; i++) {
+            add(ring, methodId, i);
+        }
+        waiter.join(TimeUnit.SECONDS.toMillis(10)); // it is signalled even if it started to wait after 4th event
+        assertFalse(waiter.isAlive());
+    }
+
+    @Test
+    public void sharedRingHasOneProducerAtATime() throws Exception {
+        RecordedThread group = RecordedThread.group("Virtual threads 1", "VirtualThreads");
+        EventRing ring = new EventRing(group, true, 16, OverflowPolicy.DROP_NEWEST, null, null, 16);
+        assertTrue(ring.isShared());
+        assertFalse(ring.isOwnerDead()); // shared ring is never removed
+        assertTrue(ring.tryLease());
+        AtomicBoolean isLeasedByOther = new AtomicBoolean(true);
+        Thread other = new Thread(() -> isLeasedByOther.set(ring.tryLease()));
+        other.start();
+        other.join();
+        assertFalse(isLeasedByOther.get());
+        add(ring, methodId, 0);
+        ring.release();
+
+        AtomicBoolean isLeasedByProducer = new AtomicBoolean(false);
+        Thread producer = new Thread(() -> {
+            if (ring.tryLease()) {
+                isLeasedByProducer.set(true);
+                add(ring, methodId, 1);
+                ring.release();
+            }
+        });
+        producer.start();
+        producer.join();
+        assertTrue(isLeasedByProducer.get());
+
+        List<Long> startTimes = new ArrayList<>();
+        EventRing.SlotConsumer consumer = getConsumer(startTimes);
+        ring.drain(slot -> {
+            assertSame(group, slot.getThread()); // events of all producers belong to group
+            consumer.accept(slot);
+        }, 10);
+        assertStartTimes(startTimes, 0, 1);
+    }
+
+    private static EventRing.SlotConsumer getConsumer(List<Long> startTimes) {
+        return (slot) -> {
+            List<Event> events = slot.getEvents(0);
+            startTimes.add(events.get(events.size() - 1).getMethodEvent().getStartTime());
+        };
+    }
+
+    private static void assertStartTimes(List<Long> startTimes, long... expected) {
+        assertEquals(expected.length, startTimes.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], (long) startTimes.get(i));
+        }
+    }
+}
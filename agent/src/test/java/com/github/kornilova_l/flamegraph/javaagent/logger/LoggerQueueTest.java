@@ -0,0 +1,120 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.AsyncContext;
+import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.RecordedThread;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class LoggerQueueTest {
+    private static final int methodId = LoggerQueue.getMethodTable().register("my_package/MyClass", "method", "()V",
+            true, new int[0]);
+
+    private static void addInThread(Thread[] thread) throws InterruptedException {
+        thread[0] = new Thread(() -> LoggerQueue.addToQueue(null, 0, 1, null, Thread.currentThread(), methodId));
+        thread[0].start();
+        thread[0].join();
+    }
+
+    @Test
+    public void ringCapacityIsRoundedUp() throws Exception {
+        LoggerQueue.initLoggerQueue(100, LoggerQueue.DEFAULT_BUFFER_SIZE, OverflowPolicy.DROP_NEWEST, 1024, 50, true);
+        addInThread(new Thread[1]);
+        List<EventRing> rings = LoggerQueue.getInstance().getRings();
+        assertEquals(1, rings.size());
+        assertEquals(128, rings.get(0).getCapacity());
+    }
+
+    @Test
+    public void threadWithoutRingAddsEventsToLane() throws Exception {
+        LoggerQueue.initLoggerQueue(16, 0, OverflowPolicy.DROP_NEWEST, 1024, 50, true);
+        Thread[] thread = new Thread[1];
+        addInThread(thread);
+
+        List<RecordedThread> owners = new ArrayList<>();
+        for (EventRing ring : LoggerQueue.getInstance().getRings()) {
+            assertTrue(ring.isShared()); // budget is exhausted, only lanes are created
+            ring.drain(slot -> owners.add(slot.getThread()), 10);
+        }
+        assertEquals(1, owners.size());
+        assertSame(thread[0], owners.get(0).getThread());
+    }
+
+    @Test
+    public void eventIsDroppedIfAllLanesAreLeased() throws Exception {
+        LoggerQueue.initLoggerQueue(16, 0, OverflowPolicy.DROP_NEWEST, 1024, 50, true);
+        addInThread(new Thread[1]); // lanes are created
+        List<EventRing> lanes = LoggerQueue.getInstance().getRings();
+        for (EventRing lane : lanes) {
+            assertTrue(lane.tryLease()); // producers of lanes are preempted
+        }
+        addInThread(new Thread[1]); // it returns without waiting for a lane
+        long dropped = 0;
+        for (EventRing lane : lanes) {
+            dropped += lane.getDropped();
+            lane.release();
+        }
+        assertEquals(1, dropped);
+    }
+
+    @Test
+    public void contextDoesNotCreateRing() throws Exception {
+        LoggerQueue.initLoggerQueue(16, LoggerQueue.DEFAULT_BUFFER_SIZE, OverflowPolicy.DROP_NEWEST, 1024, 50, true);
+        AsyncContext context = AsyncContext.capture(null);
+        List<Integer> ringsCount = new ArrayList<>();
+        List<AsyncContext> swapped = new ArrayList<>();
+        List<AsyncContext> submitted = new ArrayList<>();
+        Thread thread = new Thread(() -> {
+            swapped.add(LoggerQueue.swapContext(context)); // task starts
+            submitted.add(LoggerQueue.captureContext());
+            ringsCount.add(LoggerQueue.getInstance().getRings().size());
+            LoggerQueue.addToQueue(null, 0, 1, null, Thread.currentThread(), methodId);
+            submitted.add(LoggerQueue.captureContext()); // context was moved to ring
+            ringsCount.add(LoggerQueue.getInstance().getRings().size());
+            swapped.add(LoggerQueue.swapContext(null)); // task finishes
+        });
+        thread.start();
+        thread.join();
+        assertEquals(Arrays.asList(0, 1), ringsCount);
+        assertEquals(Arrays.asList(null, context), swapped);
+        assertEquals(2, submitted.size());
+        for (AsyncContext child : submitted) {
+            assertEquals(context.getRequestId(), child.getRequestId());
+            assertEquals(context.getTaskId(), child.getParentTaskId());
+        }
+    }
+
+    @Test
+    public void virtualThreadsShareLanes() throws Exception {
+        Method startVirtualThread;
+        try {
+            startVirtualThread = Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) { // JDK before 21
+            assumeTrue(false);
+            return;
+        }
+        LoggerQueue.initLoggerQueue(16, LoggerQueue.DEFAULT_BUFFER_SIZE, OverflowPolicy.DROP_NEWEST, 1024, 50, true);
+        Thread thread = (Thread) startVirtualThread.invoke(null, (Runnable) () -> {
+            LoggerQueue.addToQueue(null, 0, 1, null, Thread.currentThread(), methodId);
+            LoggerQueue.setVirtualThreadScope("request 1");
+            LoggerQueue.addToQueue(null, 1, 1, null, Thread.currentThread(), methodId);
+            LoggerQueue.setVirtualThreadScope(null);
+        });
+        thread.join();
+
+        List<String> owners = new ArrayList<>();
+        for (EventRing ring : LoggerQueue.getInstance().getRings()) {
+            assertTrue(ring.isShared()); // virtual thread does not get its own ring
+            ring.drain(slot -> owners.add(slot.getThread().getName()), 10);
+        }
+        assertEquals(2, owners.size());
+        assertTrue(owners.get(0).startsWith("Virtual threads "));
+        assertEquals("request 1", owners.get(1));
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import com.github.kornilova_l.flamegraph.javaagent.AgentFileManager;
+import com.github.kornilova_l.flamegraph.proto.EventProtos.Event;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MappedEventWriterTest {
+    private static Event newThreadEvent(long id, String name) {
+        return Event.newBuilder()
+                .setNewThread(Event.Map.newBuilder()
+                        .setId(id)
+                        .setName(name))
+                .build();
+    }
+
+    @Test
+    public void eventsAreWrittenToSegments() throws Exception {
+        File dir = Files.createTempDirectory("mapped-event-writer").toFile();
+        dir.deleteOnExit();
+        MappedEventWriter writer = new MappedEventWriter(new AgentFileManager(dir.getPath()), 64);
+
+        StringBuilder longName = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            longName.append("long name ");
+        }
+        for (int i = 0; i < 20; i++) {
+            writer.write(newThreadEvent(i, i == 10 ? longName.toString() : "thread " + i)); // 10th is bigger than segment
+        }
+        writer.close();
+        assertEquals(20, writer.getEventsWritten());
+
+        File[] segments = dir.listFiles();
+        assertNotNull(segments);
+        assertTrue(segments.length > 2);
+        Arrays.sort(segments);
+        assertEquals("0001.ser", segments[0].getName());
+        long bytes = 0;
+        int i = 0;
+        for (File segment : segments) {
+            segment.deleteOnExit();
+            bytes += segment.length();
+            try (InputStream inputStream = new FileInputStream(segment)) {
+                Event event = Event.parseDelimitedFrom(inputStream);
+                while (event != null) { // segments are truncated so there is no empty event at the end
+                    assertEquals(i, event.getNewThread().getId());
+                    assertEquals(i == 10 ? longName.toString() : "thread " + i, event.getNewThread().getName());
+                    i++;
+                    event = Event.parseDelimitedFrom(inputStream);
+                }
+            }
+        }
+        assertEquals(20, i);
+        assertEquals(bytes, writer.getBytesWritten());
+    }
+
+    @Test
+    public void segmentIsNotOpenedAfterClose() throws Exception {
+        File dir = Files.createTempDirectory("mapped-event-writer").toFile();
+        dir.deleteOnExit();
+        MappedEventWriter writer = new MappedEventWriter(new AgentFileManager(dir.getPath()), 64);
+        writer.write(newThreadEvent(0, "thread 0"));
+        writer.close();
+
+        writer.write(newThreadEvent(1, "thread 1"));
+        writer.startSegment(0);
+        writer.close();
+        File[] segments = dir.listFiles();
+        assertNotNull(segments);
+        assertEquals(1, segments.length);
+        segments[0].deleteOnExit();
+        assertEquals(writer.getBytesWritten(), segments[0].length());
+        assertEquals(1, writer.getEventsLost());
+    }
+}
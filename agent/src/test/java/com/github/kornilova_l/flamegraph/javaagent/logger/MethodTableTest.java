@@ -0,0 +1,32 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MethodTableTest {
+    private final MethodTable methodTable = new MethodTable();
+    private final ClassLoader loader = getClass().getClassLoader();
+
+    @Test
+    public void methodThatIsRegisteredAgainKeepsId() {
+        int id = methodTable.register(loader, "my_package/MyClass", "method", "(I)V", false, new int[]{1}, 0);
+        assertEquals(id, methodTable.register(loader, "my_package/MyClass", "method", "(I)V", false, new int[]{1}, 0));
+        assertEquals(id + 1, methodTable.register(loader, "my_package/MyClass", "other", "(I)V", false, new int[0], 0));
+    }
+
+    @Test
+    public void methodWithOtherProbeGetsNewId() {
+        int id = methodTable.register(loader, "my_package/MyClass", "method", "(I)V", false, new int[]{1}, 0);
+        assertNotEquals(id, methodTable.register(loader, "my_package/MyClass", "method", "(I)V", false, new int[0], 0));
+        assertNotEquals(id, methodTable.register(loader, "my_package/MyClass", "method", "(I)V", false, new int[]{1}, 5));
+        assertNotEquals(id, methodTable.register(null, "my_package/MyClass", "method", "(I)V", false, new int[]{1}, 0));
+        ClassLoader otherLoader = new ClassLoader(loader) {
+        };
+        int otherId = methodTable.register(otherLoader, "my_package/MyClass", "method", "(I)V", false, new int[]{1}, 0);
+        assertNotEquals(id, otherId);
+        MethodTable.MethodInfo methodInfo = methodTable.get(otherId);
+        assertNotNull(methodInfo);
+        assertArrayEquals(new int[]{1}, methodInfo.savedParameters);
+    }
+}
@@ -0,0 +1,108 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.MethodEventData;
+import com.github.kornilova_l.flamegraph.proto.EventProtos.Event;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ParallelEncoderTest {
+    @Test
+    public void batchesAreWrittenInOrder() throws Exception {
+        int methodId = LoggerQueue.getMethodTable().register("my_package/MyClass", "method", "(I)V",
+                true, new int[]{1});
+        File file = File.createTempFile("parallel-encoder", ".ser");
+        assertTrue(file.delete()); // writer creates file
+        file.deleteOnExit();
+        ChannelEventWriter writer = new ChannelEventWriter(file, 1024);
+        writer.start();
+        ParallelEncoder encoder = new ParallelEncoder(3, writer, 0);
+
+        MethodEventData slot = new MethodEventData();
+        List<Event> registrationEvents = new ArrayList<>();
+        int count = 1000; // several batches
+        for (int i = 0; i < count; i++) {
+            slot.setReturned(Thread.currentThread(), methodId, i, 1, new Object[]{i}, null);
+            registrationEvents.clear();
+            long threadId = MethodEventData.register(slot.getThread(), methodId, registrationEvents);
+            encoder.add(slot, threadId, registrationEvents);
+            slot.clear();
+        }
+        encoder.writeAll();
+        writer.close();
+
+        try (InputStream inputStream = new FileInputStream(file)) {
+            int methodEvents = 0;
+            boolean isMethodRegistered = false;
+            Event event = Event.parseDelimitedFrom(inputStream);
+            while (event != null) {
+                if (event.getTypeCase() == Event.TypeCase.NEWMETHOD && event.getNewMethod().getId() == methodId) {
+                    isMethodRegistered = true;
+                } else if (event.getTypeCase() == Event.TypeCase.METHODEVENT) {
+                    assertTrue(isMethodRegistered);
+                    assertEquals(methodEvents, event.getMethodEvent().getStartTime());
+                    assertEquals(methodEvents, event.getMethodEvent().getParametersList().get(0).getVar().getI());
+                    methodEvents++;
+                }
+                event = Event.parseDelimitedFrom(inputStream);
+            }
+            assertEquals(count, methodEvents);
+        }
+    }
+
+    @Test
+    public void eventsOfFailedBatchAreCountedAsLost() throws Exception {
+        int methodId = LoggerQueue.getMethodTable().register("my_package/FailingClass", "method", "()V",
+                true, new int[0]);
+        File file = File.createTempFile("parallel-encoder", ".ser");
+        assertTrue(file.delete()); // writer creates file
+        file.deleteOnExit();
+        ChannelEventWriter writer = new ChannelEventWriter(file, 1024);
+        writer.start();
+        ParallelEncoder encoder = new ParallelEncoder(2, writer, 0);
+
+        MethodEventData slot = new MethodEventData();
+        List<Event> registrationEvents = new ArrayList<>();
+        int count = 300; // first batch fails, second batch was created before failure is noticed
+        for (int i = 0; i < count; i++) {
+            slot.setThrown(Thread.currentThread(), methodId, i, 1, new Object[0], new FailingMessageException(), i == 0);
+            registrationEvents.clear();
+            long threadId = MethodEventData.register(slot.getThread(), methodId, registrationEvents);
+            encoder.add(slot, threadId, registrationEvents);
+            slot.clear();
+        }
+        encoder.writeAll();
+        encoder.close();
+        writer.close();
+        assertEquals(256, writer.getEventsLost());
+
+        try (InputStream inputStream = new FileInputStream(file)) {
+            int methodEvents = 0;
+            boolean isMethodRegistered = false;
+            Event event = Event.parseDelimitedFrom(inputStream);
+            while (event != null) {
+                if (event.getTypeCase() == Event.TypeCase.NEWMETHOD && event.getNewMethod().getId() == methodId) {
+                    isMethodRegistered = true;
+                } else if (event.getTypeCase() == Event.TypeCase.METHODEVENT) {
+                    assertTrue(isMethodRegistered); // registration of lost batch is written
+                    methodEvents++;
+                }
+                event = Event.parseDelimitedFrom(inputStream);
+            }
+            assertEquals(count - 256, methodEvents);
+        }
+    }
+
+    private static class FailingMessageException extends RuntimeException {
+        @Override
+        public String getMessage() {
+            throw new IllegalStateException("message cannot be created");
+        }
+    }
+}
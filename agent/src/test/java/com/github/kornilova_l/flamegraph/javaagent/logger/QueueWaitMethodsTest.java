@@ -0,0 +1,76 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class QueueWaitMethodsTest {
+    private final MethodTable methodTable = new MethodTable();
+    private final QueueWaitMethods queueWaitMethods = new QueueWaitMethods(methodTable);
+
+    private int submit(Object executor) {
+        return queueWaitMethods.getMethodId(executor);
+    }
+
+    @Test
+    public void methodIsRegisteredForEachExecutor() {
+        Object executor = new Object();
+        int id = submit(executor);
+        assertEquals(id, submit(executor));
+        assertNotEquals(id, submit(new Object()));
+
+        MethodTable.MethodInfo methodInfo = methodTable.get(id);
+        assertNotNull(methodInfo);
+        assertEquals(MethodTable.QUEUE_WAIT_METHOD, methodInfo.methodName);
+        assertEquals("java/lang/Object@" + Integer.toHexString(System.identityHashCode(executor)),
+                methodInfo.className);
+        assertNotNull(methodInfo.submitter);
+        assertTrue(methodInfo.submitter.contains("."));
+    }
+
+    @Test
+    public void submittersOfExecutorAreLimited() {
+        QueueWaitMethods queueWaitMethods = new QueueWaitMethods(methodTable, 1, 2);
+        Object executor = new Object();
+        int first = queueWaitMethods.getMethodId(executor, "my_package.MyClass", "first");
+        int second = queueWaitMethods.getMethodId(executor, "my_package.MyClass", "second");
+        int other = queueWaitMethods.getMethodId(executor, "my_package.OtherClass", "first");
+        assertEquals(first, queueWaitMethods.getMethodId(executor, "my_package.MyClass", "first"));
+        assertNotEquals(first, second);
+        assertNotEquals(second, other);
+        assertEquals(other, queueWaitMethods.getMethodId(executor, "my_package.MyClass", "third"));
+        assertEquals("my_package.MyClass.second", getMethod(second).submitter);
+        assertEquals(QueueWaitMethods.OTHER_SUBMITTERS, getMethod(other).submitter);
+    }
+
+    @Test
+    public void executorsShareMethodsWhenLimitIsReached() {
+        QueueWaitMethods queueWaitMethods = new QueueWaitMethods(methodTable, 1, 2);
+        Object executor = new Object();
+        int id = queueWaitMethods.getMethodId(executor, "my_package.MyClass", "method");
+        int shared = queueWaitMethods.getMethodId(new Object(), "my_package.MyClass", "method");
+        assertNotEquals(id, shared);
+        assertEquals(shared, queueWaitMethods.getMethodId(new Object(), "my_package.MyClass", "method"));
+        assertEquals(id, queueWaitMethods.getMethodId(executor, "my_package.MyClass", "method"));
+        assertEquals("java/lang/Object", getMethod(shared).className);
+    }
+
+    @Test
+    public void collectedExecutorIsForgotten() throws InterruptedException {
+        queueWaitMethods.getMethodId(new Object(), "my_package.MyClass", "method");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (queueWaitMethods.getExecutorsCount() != 0 && System.nanoTime() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(0, queueWaitMethods.getExecutorsCount());
+    }
+
+    private MethodTable.MethodInfo getMethod(int id) {
+        MethodTable.MethodInfo methodInfo = methodTable.get(id);
+        assertNotNull(methodInfo);
+        return methodInfo;
+    }
+}
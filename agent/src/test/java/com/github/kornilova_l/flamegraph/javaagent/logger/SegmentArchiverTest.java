@@ -0,0 +1,61 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+public class SegmentArchiverTest {
+    @Test
+    public void segmentsAreCompressedAndOldestAreDeleted() throws Exception {
+        File dir = Files.createTempDirectory("segment-archiver").toFile();
+        dir.deleteOnExit();
+        SegmentArchiver archiver = new SegmentArchiver(true, 2);
+        Thread archiverThread = new Thread(archiver);
+        archiverThread.setDaemon(true);
+        archiverThread.start();
+
+        for (int i = 1; i <= 3; i++) {
+            File segment = new File(dir, "000" + i + ".ser");
+            try (OutputStream outputStream = new FileOutputStream(segment)) {
+                for (int j = 0; j < 1000; j++) {
+                    outputStream.write(i);
+                }
+            }
+            archiver.add(segment);
+        }
+        archiver.awaitArchived();
+
+        File[] files = dir.listFiles();
+        assertNotNull(files);
+        Arrays.sort(files);
+        assertEquals(2, files.length);
+        assertEquals("0002.ser" + SegmentArchiver.COMPRESSED_EXTENSION, files[0].getName());
+        assertEquals("0003.ser" + SegmentArchiver.COMPRESSED_EXTENSION, files[1].getName());
+        for (File file : files) {
+            file.deleteOnExit();
+            assertTrue(file.length() < 1000);
+        }
+        try (InputStream inputStream = new InflaterInputStream(new FileInputStream(files[1]))) {
+            for (int j = 0; j < 1000; j++) {
+                assertEquals(3, inputStream.read());
+            }
+            assertEquals(-1, inputStream.read());
+        }
+    }
+
+    @Test
+    public void waitingForArchiverIsLimited() throws Exception {
+        SegmentArchiver archiver = new SegmentArchiver(true, 0); // archiver thread is not started
+        File segment = File.createTempFile("segment-archiver", ".ser");
+        segment.deleteOnExit();
+        archiver.add(segment);
+        assertTrue(archiver.isBusy());
+        assertFalse(archiver.awaitArchived(10, TimeUnit.MILLISECONDS));
+    }
+}
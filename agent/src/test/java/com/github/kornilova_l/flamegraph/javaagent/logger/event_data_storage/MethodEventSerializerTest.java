@@ -0,0 +1,82 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage;
+
+import com.github.kornilova_l.flamegraph.javaagent.logger.EventRecord;
+import com.github.kornilova_l.flamegraph.javaagent.logger.LoggerQueue;
+import com.github.kornilova_l.flamegraph.proto.EventProtos.Event;
+import com.github.kornilova_l.libs.com.google.protobuf.CodedOutputStream;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MethodEventSerializerTest {
+    private static final int methodId = LoggerQueue.getMethodTable().register("my_package/MyClass", "method",
+            "(IDZLjava/lang/String;Ljava/lang/Object;)Ljava/lang/Object;", false, new int[]{1, 2, 3, 4, 5});
+    private final MethodEventSerializer serializer = new MethodEventSerializer();
+
+    /**
+     * Serializer must produce the same bytes as protobuf message
+     */
+    private void assertSameBytes(MethodEventData slot) throws Exception {
+        List<Event> events = slot.getEvents(1000);
+        Event event = events.get(events.size() - 1);
+        assertTrue(serializer.set(slot, event.getMethodEvent().getThreadId(), 1000));
+        byte[] bytes = new byte[serializer.getSerializedSize()];
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        serializer.writeTo(out);
+        out.checkNoSpaceLeft();
+        assertArrayEquals(event.toByteArray(), bytes);
+    }
+
+    @Test
+    public void boxedValues() throws Exception {
+        MethodEventData slot = new MethodEventData();
+        slot.setReturned(Thread.currentThread(), methodId, 123456789, 42,
+                new Object[]{-1, 2.5, true, "\u043f\u0440\u0438\u0432\u0435\u0442", null}, 'c');
+        assertSameBytes(slot);
+    }
+
+    @Test
+    public void recordValues() throws Exception {
+        EventRecord record = new EventRecord();
+        record.addParameter(Integer.MIN_VALUE);
+        record.addParameter(-0.0);
+        record.addParameter(false);
+        record.addParameter("");
+        record.addParameter((Object) null);
+        record.setReturnValue(Long.MAX_VALUE);
+        MethodEventData slot = new MethodEventData();
+        slot.setReturned(Thread.currentThread(), methodId, 0, 0, record);
+        assertSameBytes(slot);
+    }
+
+    @Test
+    public void noReturnValue() throws Exception {
+        MethodEventData slot = new MethodEventData();
+        slot.setReturned(Thread.currentThread(), methodId, 1, 1, null, null);
+        assertSameBytes(slot);
+    }
+
+    @Test
+    public void thrownException() throws Exception {
+        MethodEventData slot = new MethodEventData();
+        slot.setThrown(Thread.currentThread(), methodId, 1, 1,
+                new Object[]{1, 2.0, false, "a", new Object()}, new IllegalStateException("message"), true);
+        assertSameBytes(slot);
+        slot.setThrown(Thread.currentThread(), methodId, 1, 1, (Object[]) null, null, false);
+        assertSameBytes(slot);
+    }
+
+    @Test
+    public void asyncContext() throws Exception {
+        AsyncContext request = AsyncContext.capture(null);
+        MethodEventData slot = new MethodEventData();
+        slot.setReturned(Thread.currentThread(), methodId, 1, 1, null, null);
+        slot.setContext(request);
+        assertSameBytes(slot);
+        slot.setContext(AsyncContext.capture(request));
+        assertSameBytes(slot);
+    }
+}
@@ -0,0 +1,57 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage;
+
+import com.github.kornilova_l.flamegraph.proto.EventProtos.Event;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RecordedThreadTest {
+    @Test
+    public void threadKeepsIdWhenItIsRenamed() throws Exception {
+        Thread[] result = new Thread[1];
+        Thread thread = new Thread(() -> {
+            RecordedThread recordedThread = RecordedThread.of(Thread.currentThread());
+            assertSame(recordedThread, RecordedThread.of(Thread.currentThread())); // it is cached
+
+            Event newThread = recordedThread.register(1);
+            assertNotNull(newThread);
+            assertEquals(Event.TypeCase.NEWTHREAD, newThread.getTypeCase());
+            assertEquals(recordedThread.getId(), newThread.getNewThread().getId());
+            assertEquals("pool-1-thread-1", newThread.getNewThread().getName());
+            assertEquals(Thread.currentThread().getId(), newThread.getNewThread().getJavaThreadId());
+            assertTrue(newThread.getNewThread().getIsDaemon());
+            assertNull(recordedThread.register(1));
+
+            Thread.currentThread().setName("renamed");
+            Event renamedThread = recordedThread.register(1);
+            assertNotNull(renamedThread);
+            assertEquals(Event.TypeCase.RENAMEDTHREAD, renamedThread.getTypeCase());
+            assertEquals(recordedThread.getId(), renamedThread.getRenamedThread().getId());
+            assertEquals("renamed", renamedThread.getRenamedThread().getName());
+            assertNull(recordedThread.register(1));
+
+            /* each segment has its own registration */
+            Event nextSegment = recordedThread.register(2);
+            assertNotNull(nextSegment);
+            assertEquals(Event.TypeCase.NEWTHREAD, nextSegment.getTypeCase());
+            assertEquals("renamed", nextSegment.getNewThread().getName());
+            result[0] = Thread.currentThread();
+        }, "pool-1-thread-1");
+        thread.setDaemon(true);
+        thread.start();
+        thread.join();
+        assertSame(thread, result[0]); // assertions in thread passed
+    }
+
+    @Test
+    public void threadsWithTheSameNameHaveDifferentIds() throws Exception {
+        long[] ids = new long[2];
+        for (int i = 0; i < ids.length; i++) {
+            int index = i;
+            Thread thread = new Thread(() -> ids[index] = RecordedThread.of(Thread.currentThread()).getId(), "worker");
+            thread.start();
+            thread.join();
+        }
+        assertNotEquals(ids[0], ids[1]);
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.kornilova_l.flamegraph.javaagent.logger.event_data_storage.name_maps;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NamesMapTest {
+    private static final int NAMES_COUNT = 1000; // table is resized several times
+    private static final int THREADS_COUNT = 4;
+
+    @Test
+    public void idsDoNotChangeAndRegistrationIsClaimedOncePerSegment() {
+        NamesMap namesMap = new ClassNamesMap();
+        long id = namesMap.getIdAndClaimRegistration("main");
+        assertTrue(id < 0);
+        assertEquals(-id, namesMap.getIdAndClaimRegistration("main"));
+        assertEquals(-id, namesMap.getIdAndClaimRegistration("main"));
+
+        namesMap.resetRegistrations();
+        assertEquals(id, namesMap.getIdAndClaimRegistration("main"));
+        assertEquals(-id, namesMap.getIdAndClaimRegistration("main"));
+    }
+
+    @Test
+    public void registrationIsClaimedOnceByRacingThreads() throws Exception {
+        NamesMap namesMap = new ClassNamesMap();
+        AtomicIntegerArray claims = new AtomicIntegerArray(NAMES_COUNT);
+        AtomicLongArray ids = new AtomicLongArray(NAMES_COUNT);
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS_COUNT];
+        for (int t = 0; t < THREADS_COUNT; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                for (int i = 0; i < NAMES_COUNT; i++) {
+                    long id = namesMap.getIdAndClaimRegistration("class " + i);
+                    if (id < 0) {
+                        claims.incrementAndGet(i);
+                        id = -id;
+                    }
+                    long previousId = ids.getAndSet(i, id);
+                    if (previousId != 0 && previousId != id) {
+                        claims.set(i, -1); // id of name changed
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        boolean[] usedIds = new boolean[NAMES_COUNT + 1];
+        for (int i = 0; i < NAMES_COUNT; i++) {
+            assertEquals("class " + i, 1, claims.get(i));
+            assertTrue(ids.get(i) >= 1 && ids.get(i) <= NAMES_COUNT);
+            assertTrue(!usedIds[(int) ids.get(i)]);
+            usedIds[(int) ids.get(i)] = true;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.github.kornilova_l.flamegraph.attach;
+
+import com.sun.tools.attach.AgentInitializationException;
+import com.sun.tools.attach.AgentLoadException;
+import com.sun.tools.attach.AttachNotSupportedException;
+import com.sun.tools.attach.VirtualMachine;
+import com.sun.tools.attach.VirtualMachineDescriptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Loads javaagent into running JVM and controls recording:
+ * <pre>
+ * java -jar attach.jar list
+ * java -jar attach.jar [--agent javaagent.jar] PID start OUTPUT CONFIG [key=value...]
+ * java -jar attach.jar [--agent javaagent.jar] PID stop|dump|status
+ * </pre>
+ * Each command loads javaagent with Attach API. If agent is already loaded JVM calls its agentmain again,
+ * so commands go through local attach channel of JVM which is available only to the user who runs the JVM.
+ * Agent writes response to temporary file that is printed and deleted by launcher.
+ * <p>
+ * On JDK 8 tools.jar must be added to class path:
+ * java -cp attach.jar:$JAVA_HOME/lib/tools.jar com.github.kornilova_l.flamegraph.attach.Attach ...
+ */
+public class Attach {
+    /**
+     * Names of options of javaagent (see Agent.agentmain)
+     */
+    private static final String COMMAND_OPTION = "command";
+    private static final String RESPONSE_OPTION = "response";
+    private static final String AGENT_JAR = "javaagent.jar";
+
+    public static void main(String[] args) {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        File agentJar = null;
+        if (arguments.size() >= 2 && arguments.get(0).equals("--agent")) {
+            agentJar = new File(arguments.get(1));
+            arguments = arguments.subList(2, arguments.size());
+        }
+        if (arguments.size() == 1 && arguments.get(0).equals("list")) {
+            for (VirtualMachineDescriptor descriptor : VirtualMachine.list()) {
+                System.out.println(descriptor.id() + " " + descriptor.displayName());
+            }
+            return;
+        }
+        String agentArgs = arguments.size() < 2 ? null : getAgentArgs(arguments.get(1), arguments.subList(2, arguments.size()));
+        if (agentArgs == null) {
+            printUsage();
+            System.exit(2);
+        }
+        if (agentJar == null) {
+            agentJar = findAgentJar();
+        }
+        if (!agentJar.isFile()) {
+            System.err.println("Cannot find javaagent: " + agentJar + ". Specify it with --agent");
+            System.exit(1);
+        }
+        System.exit(execute(arguments.get(0), agentJar, agentArgs) ? 0 : 1);
+    }
+
+    /**
+     * @return null if command or its arguments are incorrect
+     */
+    private static String getAgentArgs(String command, List<String> commandArgs) {
+        switch (command) {
+            case "start":
+                if (commandArgs.size() < 2) {
+                    return null;
+                }
+                /* working directory of JVM may be different */
+                List<String> parameters = new ArrayList<>();
+                parameters.add(new File(commandArgs.get(0)).getAbsolutePath());
+                parameters.add(new File(commandArgs.get(1)).getAbsolutePath());
+                parameters.addAll(commandArgs.subList(2, commandArgs.size()));
+                return String.join("&", parameters);
+            case "stop":
+            case "dump":
+            case "status":
+                return commandArgs.isEmpty() ? COMMAND_OPTION + "=" + command : null;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean execute(String pid, File agentJar, String agentArgs) {
+        File responseFile = null;
+        try {
+            responseFile = File.createTempFile("flamegraph-attach", ".txt");
+            VirtualMachine vm = VirtualMachine.attach(pid);
+            try {
+                vm.loadAgent(agentJar.getAbsolutePath(),
+                        agentArgs + "&" + RESPONSE_OPTION + "=" + responseFile.getAbsolutePath());
+            } finally {
+                vm.detach();
+            }
+            /* agentmain has returned, so response is written */
+            String response = new String(Files.readAllBytes(responseFile.toPath()), StandardCharsets.UTF_8);
+            System.out.println(response.isEmpty() ? "Agent did not respond, see output of JVM " + pid : response);
+            return !response.isEmpty();
+        } catch (AttachNotSupportedException | AgentLoadException | AgentInitializationException | IOException e) {
+            System.err.println("Cannot attach to JVM " + pid + ": " + e);
+            return false;
+        } finally {
+            if (responseFile != null && !responseFile.delete()) {
+                responseFile.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * @return javaagent.jar in the same directory as jar of launcher
+     */
+    private static File findAgentJar() {
+        try {
+            File launcherJar = new File(Attach.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            return new File(launcherJar.getParentFile(), AGENT_JAR);
+        } catch (URISyntaxException | SecurityException e) {
+            return new File(AGENT_JAR);
+        }
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage:\n" +
+                "  list                                      print running JVMs\n" +
+                "  PID start OUTPUT CONFIG [key=value...]    load agent and start recording\n" +
+                "  PID stop                                  stop recording, restore classes and write events\n" +
+                "  PID dump                                  write recorded events to output file\n" +
+                "  PID status                                print state of recording\n" +
+                "Option --agent PATH before PID sets javaagent jar (default: " + AGENT_JAR + " next to this jar)");
+    }
+}
@@ -14,7 +14,7 @@ import java.util.regex.Pattern;
 public class Configuration implements Cloneable {
     private List<MethodConfig> includingMethodConfigs;
     private List<MethodConfig> excludingMethodConfigs;
-    private static final Pattern linePattern = Pattern.compile("!?[\\w.$<>]+\\((\\w|\\[]|\\$|\\.|\\+?, |\\+(?=\\)))*\\)\\+?");
+    private static final Pattern linePattern = Pattern.compile("!?[\\w.$<>]+\\((\\w|\\[]|\\$|\\.|\\+?, |\\+(?=\\)))*\\)\\+?(>\\d+(ns|us|ms|s))?");
 
     public Configuration() {
         this(new ArrayList<>(), new ArrayList<>());
@@ -7,11 +7,17 @@ import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class MethodConfig implements Comparable<MethodConfig>, Cloneable {
     private final static Pattern paramsPattern = Pattern.compile("\\[*(C|Z|S|I|J|F|D|B|(:?L[^;]+;))");
+    private final static Pattern durationPattern = Pattern.compile("(\\d+)(ns|us|ms|s)");
+    /**
+     * Value of {@link #durationThreshold} if threshold is not specified
+     */
+    public final static long DEFAULT_DURATION_THRESHOLD = -1;
     @NotNull
     private String methodPatternString = "";
     @NotNull
@@ -20,6 +26,11 @@ public class MethodConfig implements Comparable<MethodConfig>, Cloneable {
     private List<Parameter> parameters;
     private boolean isEnabled = true;
     private boolean saveReturnValue = false;
+    /**
+     * Method call is recorded only if it took more than this number of nanoseconds.
+     * It is specified in configuration after parameters. For example: *.*(*)>200us
+     */
+    private long durationThreshold = DEFAULT_DURATION_THRESHOLD;
 
     private Pattern classPattern;
     private Pattern methodPattern;
@@ -50,6 +61,11 @@ public class MethodConfig implements Comparable<MethodConfig>, Cloneable {
                         @NotNull String parametersPattern) {
         this.classPatternString = classPatternString;
         this.methodPatternString = methodPatternString;
+        int thresholdStart = parametersPattern.indexOf('>', parametersPattern.lastIndexOf(')'));
+        if (thresholdStart != -1) {
+            durationThreshold = parseDuration(parametersPattern.substring(thresholdStart + 1));
+            parametersPattern = parametersPattern.substring(0, thresholdStart);
+        }
         this.saveReturnValue = parametersPattern.charAt(parametersPattern.length() - 1) == '+';
         parameters = parametersPatternToList(parametersPattern.substring(parametersPattern.indexOf("(") + 1,
                 parametersPattern.indexOf(")")));
@@ -69,9 +85,49 @@ public class MethodConfig implements Comparable<MethodConfig>, Cloneable {
         }
         isEnabled = methodConfig.isEnabled;
         saveReturnValue = methodConfig.saveReturnValue;
+        durationThreshold = methodConfig.durationThreshold;
         compilePatterns();
     }
 
+    /**
+     * @param duration number with unit: ns, us, ms or s. For example: 200us
+     * @return number of nanoseconds
+     */
+    public static long parseDuration(@NotNull String duration) {
+        Matcher m = durationPattern.matcher(duration.trim());
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Wrong duration: " + duration + ". Expected number with unit ns, us, ms or s");
+        }
+        long value = Long.parseLong(m.group(1));
+        switch (m.group(2)) {
+            case "ns":
+                return value;
+            case "us":
+                return TimeUnit.MICROSECONDS.toNanos(value);
+            case "ms":
+                return TimeUnit.MILLISECONDS.toNanos(value);
+            default:
+                return TimeUnit.SECONDS.toNanos(value);
+        }
+    }
+
+    /**
+     * 200000 -> 200us
+     */
+    @NotNull
+    public static String durationToString(long nanos) {
+        if (nanos != 0 && nanos % TimeUnit.SECONDS.toNanos(1) == 0) {
+            return TimeUnit.NANOSECONDS.toSeconds(nanos) + "s";
+        }
+        if (nanos != 0 && nanos % TimeUnit.MILLISECONDS.toNanos(1) == 0) {
+            return TimeUnit.NANOSECONDS.toMillis(nanos) + "ms";
+        }
+        if (nanos != 0 && nanos % TimeUnit.MICROSECONDS.toNanos(1) == 0) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+        }
+        return nanos + "ns";
+    }
+
     @NotNull
     private static List<Parameter> parametersPatternToList(String parametersPatternInnerPart) {
         LinkedList<MethodConfig.Parameter> parameters = new LinkedList<>();
@@ -184,7 +240,8 @@ public class MethodConfig implements Comparable<MethodConfig>, Cloneable {
 
     @Override
     public String toString() {
-        return getQualifiedName() + parametersWithSaveToString() + (saveReturnValue ? "+" : "");
+        return getQualifiedName() + parametersWithSaveToString() + (saveReturnValue ? "+" : "") +
+                (durationThreshold == DEFAULT_DURATION_THRESHOLD ? "" : ">" + durationToString(durationThreshold));
     }
 
     String getQualifiedName() {
@@ -223,6 +280,14 @@ public class MethodConfig implements Comparable<MethodConfig>, Cloneable {
         this.parameters = parameters;
     }
 
+    public long getDurationThreshold() {
+        return durationThreshold;
+    }
+
+    public void setDurationThreshold(long durationThreshold) {
+        this.durationThreshold = durationThreshold;
+    }
+
     public boolean isEnabled() {
         return isEnabled;
     }
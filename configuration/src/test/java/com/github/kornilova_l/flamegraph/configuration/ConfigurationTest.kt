@@ -1,5 +1,6 @@
 package com.github.kornilova_l.flamegraph.configuration
 
+import org.junit.Assert.assertEquals
 import org.junit.Assert.assertFalse
 import org.junit.Assert.assertTrue
 import org.junit.Test
@@ -23,4 +24,18 @@ class ConfigurationTest {
         assertTrue(someMethods.isMethodInstrumented(className, methodName, listOf()))
         assertFalse(someMethods.isMethodInstrumented(className, methodName, listOf("int")))
     }
-}
\ No newline at end of file
+
+    @Test
+    fun durationThreshold() {
+        val configuration = Configuration(listOf("my_package.MyClass.*(*)>200us", "*.*(*)"))
+        val methodConfigs = configuration.includingMethodConfigs
+        val withThreshold = methodConfigs.first { it.classPatternString == className }
+        assertEquals(200_000, withThreshold.durationThreshold)
+        assertEquals("my_package.MyClass.*(*)>200us", withThreshold.toString())
+        assertEquals(MethodConfig.DEFAULT_DURATION_THRESHOLD, methodConfigs.first { it.classPatternString == "*" }.durationThreshold)
+
+        assertEquals(1_500_000, MethodConfig.parseDuration("1500us"))
+        assertEquals("1500us", MethodConfig.durationToString(1_500_000))
+        assertEquals("2s", MethodConfig.durationToString(MethodConfig.parseDuration("2000ms")))
+    }
+}